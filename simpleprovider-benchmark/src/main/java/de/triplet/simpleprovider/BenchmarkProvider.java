@@ -0,0 +1,46 @@
+package de.triplet.simpleprovider;
+
+import android.net.Uri;
+
+public class BenchmarkProvider extends AbstractProvider {
+
+    public static final String AUTHORITY = "de.triplet.simpleprovider.BENCHMARK";
+
+    public static final Uri POSTS = Uri.parse("content://" + AUTHORITY + "/posts");
+
+    public static final Uri SETTINGS = Uri.parse("content://" + AUTHORITY + "/settings");
+
+    @Override
+    protected String getAuthority() {
+        return AUTHORITY;
+    }
+
+    @Table
+    public class Post {
+
+        @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+        public static final String ID = "_id";
+
+        @Column(Column.FieldType.TEXT)
+        public static final String CONTENT = "content";
+
+        @Column(Column.FieldType.TEXT)
+        public static final String AUTHOR = "author";
+
+        @Column(value = Column.FieldType.INTEGER, since = 2)
+        public static final String CREATION_DATE = "creation_date";
+
+    }
+
+    @Table(rowCacheSize = 16)
+    public class Setting {
+
+        @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+        public static final String ID = "_id";
+
+        @Column(Column.FieldType.TEXT)
+        public static final String VALUE = "value";
+
+    }
+
+}
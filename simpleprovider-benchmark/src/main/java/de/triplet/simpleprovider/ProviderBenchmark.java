@@ -0,0 +1,160 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+
+/**
+ * End-to-end benchmarks of the CRUD operations of {@link AbstractProvider} on a table with
+ * {@value #ROWS} rows.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProviderBenchmark {
+
+    private static final int ROWS = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    private BenchmarkProvider mProvider;
+    private Uri mPostUri;
+    private Uri mPageUri;
+    private Uri mSettingUri;
+    private ContentValues mValues;
+    private ContentValues[] mRows;
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mProvider = new BenchmarkProvider();
+        mProvider.onCreate();
+
+        mValues = new ContentValues();
+        mValues.put(BenchmarkProvider.Post.CONTENT, "Lorem ipsum dolor sit amet");
+        mValues.put(BenchmarkProvider.Post.AUTHOR, "John Doe");
+
+        mRows = new ContentValues[BATCH_SIZE];
+        mOperations = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mRows[i] = new ContentValues(mValues);
+            mOperations.add(ContentProviderOperation.newInsert(BenchmarkProvider.POSTS)
+                    .withValues(mValues).build());
+        }
+
+        mPostUri = ContentUris.withAppendedId(BenchmarkProvider.POSTS, ROWS / 2);
+        mPageUri = PageIterator.getPageUri(BenchmarkProvider.POSTS, (long) ROWS / 2, BATCH_SIZE);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetTables() {
+        // The insert benchmarks grow the table, which would slow down later iterations. The
+        // database is also shared by all benchmarks.
+        mProvider.delete(BenchmarkProvider.POSTS, null, null);
+        for (int i = 0; i < ROWS / BATCH_SIZE; i++) {
+            mProvider.bulkInsert(BenchmarkProvider.POSTS, mRows);
+        }
+
+        mProvider.delete(BenchmarkProvider.SETTINGS, null, null);
+        ContentValues setting = new ContentValues();
+        setting.put(BenchmarkProvider.Setting.VALUE, "Lorem ipsum dolor sit amet");
+        mSettingUri = mProvider.insert(BenchmarkProvider.SETTINGS, setting);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearNotifications() {
+        // Robolectric keeps track of every notification
+        ContentResolver resolver = Robolectric.application.getContentResolver();
+        ShadowContentResolver shadow = Robolectric.shadowOf_(resolver);
+        shadow.getNotifiedUris().clear();
+    }
+
+    @Benchmark
+    public Uri insert() {
+        return mProvider.insert(BenchmarkProvider.POSTS, mValues);
+    }
+
+    @Benchmark
+    public String queryById() {
+        Cursor cursor = mProvider.query(mPostUri, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    public String queryCachedById() {
+        Cursor cursor = mProvider.query(mSettingUri, null, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    public int querySelection() {
+        Cursor cursor = mProvider.query(BenchmarkProvider.POSTS,
+                new String[]{BenchmarkProvider.Post.ID, BenchmarkProvider.Post.CONTENT},
+                BenchmarkProvider.Post.ID + " < ?", new String[]{"100"},
+                BenchmarkProvider.Post.ID + " DESC");
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    public int queryPage() {
+        Cursor cursor = mProvider.query(mPageUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    public int update() {
+        return mProvider.update(mPostUri, mValues, null, null);
+    }
+
+    @Benchmark
+    public int insertAndDelete() {
+        Uri uri = mProvider.insert(BenchmarkProvider.POSTS, mValues);
+        return mProvider.delete(uri, null, null);
+    }
+
+    @Benchmark
+    public int bulkInsert() {
+        return mProvider.bulkInsert(BenchmarkProvider.POSTS, mRows);
+    }
+
+    @Benchmark
+    public ContentProviderResult[] applyBatch() throws OperationApplicationException {
+        return mProvider.applyBatch(mOperations);
+    }
+
+}
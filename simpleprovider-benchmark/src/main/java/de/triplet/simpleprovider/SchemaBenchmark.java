@@ -0,0 +1,33 @@
+package de.triplet.simpleprovider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading the schema of a provider via reflection, which happens once per class, with
+ * looking up the schema that has already been loaded.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SchemaBenchmark {
+
+    @Benchmark
+    public Schema reflect() {
+        return new ReflectionSchema(BenchmarkProvider.class);
+    }
+
+    @Benchmark
+    public Schema forClass() {
+        return Schema.forClass(BenchmarkProvider.class);
+    }
+
+    @Benchmark
+    public String getCreateStatement() {
+        return Schema.forClass(BenchmarkProvider.class).getCreateStatement("posts");
+    }
+
+}
@@ -0,0 +1,63 @@
+package de.triplet.simpleprovider;
+
+import android.provider.BaseColumns;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SelectionBuilderBenchmark {
+
+    private SelectionBuilder mBuilder;
+
+    @Setup
+    public void setUp() {
+        mBuilder = new SelectionBuilder("posts")
+                .whereEquals(BaseColumns._ID, "42")
+                .where("content LIKE ? OR author = ?", "%foo%", "bar");
+    }
+
+    @Benchmark
+    public SelectionBuilder where() {
+        return new SelectionBuilder("posts")
+                .where("content LIKE ? OR author = ?", "%foo%", "bar");
+    }
+
+    @Benchmark
+    public SelectionBuilder whereEquals() {
+        return new SelectionBuilder("posts").whereEquals(BaseColumns._ID, "42");
+    }
+
+    @Benchmark
+    public int whereEqualsLongPooled() {
+        SelectionBuilder builder = SelectionBuilder.obtain("posts")
+                .whereEquals(BaseColumns._ID, 42L);
+        try {
+            return builder.getArgumentCount();
+        } finally {
+            builder.recycle();
+        }
+    }
+
+    @Benchmark
+    public String getSelection() {
+        return mBuilder.getSelection();
+    }
+
+    @Benchmark
+    public String[] getSelectionArgs() {
+        return mBuilder.getSelectionArgs();
+    }
+
+    @Benchmark
+    public String toStringWithArgs() {
+        return mBuilder.toString();
+    }
+
+}
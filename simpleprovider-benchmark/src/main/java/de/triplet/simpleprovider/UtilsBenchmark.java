@@ -0,0 +1,45 @@
+package de.triplet.simpleprovider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UtilsBenchmark {
+
+    private Field mField;
+    private Column mColumn;
+
+    @Setup
+    public void setUp() throws NoSuchFieldException {
+        mField = BenchmarkProvider.Post.class.getField("ID");
+        mColumn = mField.getAnnotation(Column.class);
+    }
+
+    @Benchmark
+    public String pluralize(Names names) {
+        return Utils.pluralize(names.mName);
+    }
+
+    @Benchmark
+    public String getColumnConstraint() throws IllegalAccessException {
+        return Utils.getColumnConstraint(mField, mColumn);
+    }
+
+    @State(Scope.Thread)
+    public static class Names {
+
+        @Param({"Post", "Journey", "Whisky", "Ballantines"})
+        public String mName;
+
+    }
+
+}
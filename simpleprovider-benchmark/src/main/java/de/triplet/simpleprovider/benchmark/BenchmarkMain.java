@@ -0,0 +1,24 @@
+package de.triplet.simpleprovider.benchmark;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+/**
+ * Entry point of the <code>benchmark</code> task. The benchmarks need the Android framework, so
+ * they are started from within a Robolectric test, see {@link BenchmarkRunner}.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) {
+        Result result = JUnitCore.runClasses(BenchmarkRunner.class);
+        for (Failure failure : result.getFailures()) {
+            System.err.println(failure.getTrace());
+        }
+        System.exit(result.wasSuccessful() ? 0 : 1);
+    }
+
+}
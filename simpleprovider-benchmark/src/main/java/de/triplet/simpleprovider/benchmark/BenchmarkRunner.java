@@ -0,0 +1,43 @@
+package de.triplet.simpleprovider.benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs the JMH benchmarks inside Robolectric's class loader, which provides the Android
+ * framework classes and a native SQLite on the JVM. The benchmarks can't be forked as the forked
+ * JVMs wouldn't use that class loader, so results are only comparable between runs on the same
+ * machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws RunnerException {
+        // Robolectric loads the system resources lazily, which isn't thread safe
+        Robolectric.application.getString(android.R.string.ok);
+
+        // JMH loads the benchmarks using the context class loader of its threads
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", ".*"))
+                .forks(0)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("benchmark.results", "results.json"))
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,411 @@
+package de.triplet.simpleprovider.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <code>Schema</code> subclass for every class that declares tables using the
+ * <code>@Table</code> annotation. The generated class contains the same statements
+ * <code>SimpleSQLHelper</code> would otherwise create by reading the annotations via reflection
+ * each time the database is created or upgraded.
+ */
+@SupportedAnnotationTypes(SchemaProcessor.TABLE)
+public final class SchemaProcessor extends AbstractProcessor {
+
+    static final String TABLE = "de.triplet.simpleprovider.Table";
+    static final String COLUMN = "de.triplet.simpleprovider.Column";
+
+    private static final String SCHEMA = "de.triplet.simpleprovider.Schema";
+    private static final String FIELD_TYPE = "de.triplet.simpleprovider.Column.FieldType";
+    private static final String SUFFIX = "$$Schema";
+
+    private final Set<String> mProcessed = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement table = processingEnv.getElementUtils().getTypeElement(TABLE);
+        if (table == null) {
+            return false;
+        }
+
+        // Tables are inner classes of the provider (or helper) that declares them
+        Set<TypeElement> owners = new LinkedHashSet<TypeElement>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(table)) {
+            Element enclosing = element.getEnclosingElement();
+            if (enclosing instanceof TypeElement) {
+                owners.add((TypeElement) enclosing);
+            }
+        }
+
+        for (TypeElement owner : owners) {
+            if (mProcessed.add(owner.getQualifiedName().toString())) {
+                try {
+                    generateSchema(owner);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Unable to write schema: " + e.getMessage(), owner);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void generateSchema(TypeElement owner) throws IOException {
+        Elements elements = processingEnv.getElementUtils();
+        StringBuilder body = new StringBuilder();
+
+        for (TypeElement tableClass : getTableClasses(owner)) {
+            Map<String, Object> table = getValues(getAnnotation(tableClass, TABLE));
+            String tableName = (String) table.get("value");
+            if (tableName.length() == 0) {
+                tableName = pluralize(tableClass.getSimpleName().toString());
+            }
+
+            List<String> names = new ArrayList<String>();
+            List<String> constraints = new ArrayList<String>();
+            List<Map<String, Object>> columns = new ArrayList<Map<String, Object>>();
+            for (VariableElement field : getColumnFields(tableClass)) {
+                if (!field.getModifiers().contains(Modifier.STATIC)) {
+                    // Reflection can't read the name either and skips the column
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            "Column names must be static, ignoring column", field);
+                    continue;
+                }
+
+                Object name = field.getConstantValue();
+                if (name == null) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            "Column name is not a constant, the schema of " + owner
+                                    + " will be read via reflection", field);
+                    return;
+                }
+
+                Map<String, Object> column = getValues(getAnnotation(field, COLUMN));
+                names.add(String.valueOf(name));
+                columns.add(column);
+                constraints.add(getColumnConstraint(String.valueOf(name), column));
+            }
+
+            body.append("        addTable(")
+                    .append(elements.getConstantExpression(tableName)).append(", ")
+                    .append(table.get("since")).append(", ")
+                    .append(table.get("rowCacheSize")).append(", ")
+                    .append(elements.getConstantExpression("CREATE TABLE " + tableName + " ("
+                            + join(constraints) + ");"))
+                    .append(");\n");
+
+            String database = (String) table.get("database");
+            if (database.length() > 0) {
+                body.append("        setDatabase(")
+                        .append(elements.getConstantExpression(tableName)).append(", ")
+                        .append(elements.getConstantExpression(database)).append(");\n");
+            }
+
+            for (int i = 0; i < columns.size(); i++) {
+                body.append("        addColumn(")
+                        .append(elements.getConstantExpression(tableName)).append(", ")
+                        .append(elements.getConstantExpression(names.get(i))).append(", ")
+                        .append(FIELD_TYPE).append('.').append(columns.get(i).get("value"))
+                        .append(", ")
+                        .append(columns.get(i).get("since")).append(", ")
+                        .append(Boolean.TRUE.equals(columns.get(i).get("heavy"))).append(", ")
+                        .append(elements.getConstantExpression("ALTER TABLE " + tableName
+                                + " ADD COLUMN " + constraints.get(i) + ";"))
+                        .append(");\n");
+            }
+
+            for (int i = 0; i < columns.size(); i++) {
+                if (Boolean.TRUE.equals(columns.get(i).get("index"))) {
+                    appendIndex(body, tableName, "", Collections.singletonList(names.get(i)),
+                            false, "", columns.get(i).get("since"));
+                }
+            }
+
+            List<String> fullTextColumns = new ArrayList<String>();
+            for (int i = 0; i < columns.size(); i++) {
+                if (Boolean.TRUE.equals(columns.get(i).get("fullText"))) {
+                    fullTextColumns.add(names.get(i));
+                }
+            }
+            if (!fullTextColumns.isEmpty()) {
+                body.append("        addFullTextIndex(")
+                        .append(elements.getConstantExpression(tableName)).append(", ");
+                appendStringArray(body, fullTextColumns);
+                body.append(", ").append(table.get("fullTextSince")).append(");\n");
+            }
+
+            List<String> fileColumns = new ArrayList<String>();
+            for (int i = 0; i < columns.size(); i++) {
+                if (Boolean.TRUE.equals(columns.get(i).get("file"))) {
+                    fileColumns.add(names.get(i));
+                }
+            }
+            if (!fileColumns.isEmpty()) {
+                body.append("        setFileColumns(")
+                        .append(elements.getConstantExpression(tableName)).append(", ");
+                appendStringArray(body, fileColumns);
+                body.append(");\n");
+            }
+
+            for (int i = 0; i < columns.size(); i++) {
+                if (Boolean.TRUE.equals(columns.get(i).get("primaryKey"))) {
+                    appendUniqueKey(body, tableName, Collections.singletonList(names.get(i)));
+                }
+            }
+            for (int i = 0; i < columns.size(); i++) {
+                if (Boolean.TRUE.equals(columns.get(i).get("unique"))
+                        && !Boolean.TRUE.equals(columns.get(i).get("primaryKey"))) {
+                    appendUniqueKey(body, tableName, Collections.singletonList(names.get(i)));
+                }
+            }
+
+            for (Object value : (List<?>) table.get("indices")) {
+                Map<String, Object> index = getValues((AnnotationMirror) ((AnnotationValue) value)
+                        .getValue());
+                List<String> indexColumns = new ArrayList<String>();
+                for (Object column : (List<?>) index.get("columns")) {
+                    indexColumns.add(String.valueOf(((AnnotationValue) column).getValue()));
+                }
+                appendIndex(body, tableName, (String) index.get("name"), indexColumns,
+                        Boolean.TRUE.equals(index.get("unique")), (String) index.get("where"),
+                        index.get("since"));
+
+                // Partial indices only apply to some rows and can't be a conflict target
+                if (Boolean.TRUE.equals(index.get("unique"))
+                        && ((String) index.get("where")).length() == 0) {
+                    appendUniqueKey(body, tableName, indexColumns);
+                }
+            }
+        }
+
+        String packageName = elements.getPackageOf(owner).getQualifiedName().toString();
+        String className = elements.getBinaryName(owner).toString();
+        if (packageName.length() > 0) {
+            className = className.substring(packageName.length() + 1);
+        }
+        className += SUFFIX;
+
+        String qualifiedName = packageName.length() > 0
+                ? packageName + "." + className : className;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, owner);
+        Writer writer = file.openWriter();
+        try {
+            writer.write("// Generated code from SimpleProvider. Do not modify!\n");
+            if (packageName.length() > 0) {
+                writer.write("package " + packageName + ";\n\n");
+            }
+            writer.write("public final class " + className + " extends " + SCHEMA + " {\n\n");
+            writer.write("    public " + className + "() {\n");
+            writer.write(body.toString());
+            writer.write("    }\n\n");
+            writer.write("}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void appendIndex(StringBuilder body, String tableName, String name,
+                             List<String> columns, boolean unique, String where, Object since) {
+        Elements elements = processingEnv.getElementUtils();
+        if (name.length() == 0) {
+            name = getIndexName(tableName, columns);
+        }
+
+        body.append("        addIndex(")
+                .append(elements.getConstantExpression(tableName)).append(", ")
+                .append(elements.getConstantExpression(name)).append(", ");
+        appendStringArray(body, columns);
+        body.append(", ")
+                .append(since).append(", ")
+                .append(elements.getConstantExpression("CREATE " + (unique ? "UNIQUE " : "")
+                        + "INDEX " + name + " ON " + tableName + " (" + join(columns) + ")"
+                        + (where.length() == 0 ? "" : " WHERE " + where) + ";"))
+                .append(");\n");
+    }
+
+    private void appendUniqueKey(StringBuilder body, String tableName, List<String> columns) {
+        Elements elements = processingEnv.getElementUtils();
+        body.append("        addUniqueKey(")
+                .append(elements.getConstantExpression(tableName)).append(", ");
+        appendStringArray(body, columns);
+        body.append(");\n");
+    }
+
+    private void appendStringArray(StringBuilder body, List<String> strings) {
+        Elements elements = processingEnv.getElementUtils();
+        body.append("new String[]{");
+        for (int i = 0; i < strings.size(); i++) {
+            body.append(i > 0 ? ", " : "").append(elements.getConstantExpression(strings.get(i)));
+        }
+        body.append('}');
+    }
+
+    /**
+     * Same as <code>Utils.getIndexName()</code> in the library.
+     */
+    static String getIndexName(String table, List<String> columns) {
+        StringBuilder name = new StringBuilder(table);
+        for (String column : columns) {
+            name.append('_').append(column.trim().split("\\s+")[0]);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the public member classes annotated with <code>@Table</code>, including inherited
+     * ones. This matches the classes returned by <code>Class.getClasses()</code>.
+     */
+    private List<TypeElement> getTableClasses(TypeElement owner) {
+        List<TypeElement> tables = new ArrayList<TypeElement>();
+        for (TypeElement type = owner; type != null; type = getSuperclass(type)) {
+            for (Element member : type.getEnclosedElements()) {
+                if (member instanceof TypeElement
+                        && member.getModifiers().contains(Modifier.PUBLIC)
+                        && getAnnotation(member, TABLE) != null) {
+                    tables.add((TypeElement) member);
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Returns the public fields annotated with <code>@Column</code>, including inherited ones.
+     * This matches the fields returned by <code>Class.getFields()</code>.
+     */
+    private List<VariableElement> getColumnFields(TypeElement type) {
+        List<VariableElement> fields = new ArrayList<VariableElement>();
+        collectColumnFields(type, fields);
+        return fields;
+    }
+
+    private void collectColumnFields(TypeElement type, List<VariableElement> fields) {
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.FIELD
+                    && member.getModifiers().contains(Modifier.PUBLIC)
+                    && getAnnotation(member, COLUMN) != null) {
+                fields.add((VariableElement) member);
+            }
+        }
+
+        for (TypeMirror iface : type.getInterfaces()) {
+            collectColumnFields(asTypeElement(iface), fields);
+        }
+
+        TypeElement superclass = getSuperclass(type);
+        if (superclass != null) {
+            collectColumnFields(superclass, fields);
+        }
+    }
+
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return asTypeElement(superclass);
+    }
+
+    private TypeElement asTypeElement(TypeMirror type) {
+        return (TypeElement) processingEnv.getTypeUtils().asElement(type);
+    }
+
+    private static AnnotationMirror getAnnotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (type.getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> getValues(AnnotationMirror mirror) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            Object value = entry.getValue().getValue();
+            if (value instanceof VariableElement) {
+                // Enum constants
+                value = ((VariableElement) value).getSimpleName().toString();
+            }
+            values.put(entry.getKey().getSimpleName().toString(), value);
+        }
+        return values;
+    }
+
+    private static String getColumnConstraint(String name, Map<String, Object> column) {
+        return name + " " + column.get("value")
+                + (Boolean.TRUE.equals(column.get("primaryKey")) ? " PRIMARY KEY" : "")
+                + (Boolean.TRUE.equals(column.get("notNull")) ? " NOT NULL" : "")
+                + (Boolean.TRUE.equals(column.get("unique")) ? " UNIQUE" : "");
+    }
+
+    private static String join(List<String> strings) {
+        StringBuilder builder = new StringBuilder();
+        for (String string : strings) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Same as <code>Utils.pluralize()</code> in the library.
+     */
+    static String pluralize(String string) {
+        string = string.toLowerCase(Locale.US);
+
+        if (string.endsWith("s")) {
+            return string;
+        } else if (string.endsWith("ay")) {
+            return string.replaceAll("ay$", "ays");
+        } else if (string.endsWith("ey")) {
+            return string.replaceAll("ey$", "eys");
+        } else if (string.endsWith("oy")) {
+            return string.replaceAll("oy$", "oys");
+        } else if (string.endsWith("uy")) {
+            return string.replaceAll("uy$", "uys");
+        } else if (string.endsWith("y")) {
+            return string.replaceAll("y$", "ies");
+        } else {
+            return string + "s";
+        }
+    }
+
+}
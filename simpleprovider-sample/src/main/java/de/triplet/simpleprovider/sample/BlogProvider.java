@@ -2,6 +2,7 @@ package de.triplet.simpleprovider.sample;
 
 import de.triplet.simpleprovider.AbstractProvider;
 import de.triplet.simpleprovider.Column;
+import de.triplet.simpleprovider.Index;
 import de.triplet.simpleprovider.Table;
 
 /**
@@ -10,32 +11,38 @@ import de.triplet.simpleprovider.Table;
  *     <li>Defines the Authority that will be used in the AndroidManifest</li>
  *     <li>Defines two tables</li>
  *     <li>Shows how to use the <code>since</code> attribute on tables and columns to automatically upgrade the schema</li>
+ *     <li>Declares indices for the columns used to query comments</li>
+ *     <li>Adds a full-text index to search posts</li>
  * </ul>
  */
 public class BlogProvider extends AbstractProvider {
 
-    // we have made two changes to our schema so we define the version manually.
-    private static final int SCHEMA_VERSION = 3;
+    // we have made four changes to our schema so we define the version manually.
+    private static final int SCHEMA_VERSION = 5;
 
     @Override
     protected String getAuthority() {
         return getContext().getString(R.string.authority);
     }
 
-    @Table
+    // the full-text index on content was added in schema version 5. Search it with the
+    // "search" query parameter instead of using LIKE '%term%', which scans the whole table.
+    @Table(fullTextSince = 5)
     public class Post {
         @Column(Column.FieldType.INTEGER)
         public static final String ID = "_id";
 
-        @Column(Column.FieldType.TEXT)
+        @Column(value = Column.FieldType.TEXT, fullText = true)
         public static final String CONTENT = "content";
 
         @Column(Column.FieldType.TEXT)
         public static final String AUTHOR = "author";
     }
 
-    // this table was added in schema version 2
-    @Table(since = 2)
+    // this table was added in schema version 2, the index on post_id and timestamp was added
+    // in schema version 4
+    @Table(since = 2, indices = @Index(columns = {Comment.POST_ID, Comment.TIMESTAMP},
+            since = 4))
     public class Comment {
         @Column(Column.FieldType.INTEGER)
         public static final String ID = "_id";
@@ -55,8 +62,10 @@ public class BlogProvider extends AbstractProvider {
     }
 
     // we override the schema version so it reflects the changes to our schema. That way
-    // the comments table will be added (since version 2) and the additional field author on
-    // comments will be added (since schema version 3).
+    // the comments table will be added (since version 2), the additional field author on
+    // comments will be added (since schema version 3), the index on comments will be
+    // created (since schema version 4) and the existing posts will be indexed for full-text
+    // search (since schema version 5).
     @Override
     protected int getSchemaVersion() {
         return SCHEMA_VERSION;
@@ -7,22 +7,280 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.content.OperationApplicationException;
+import android.content.pm.PackageManager;
+import android.content.pm.PathPermission;
+import android.database.AbstractWindowedCursor;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 @SuppressWarnings("unused") // Public API
 public abstract class AbstractProvider extends ContentProvider {
 
+    /**
+     * Query parameter that marks a request as coming from a sync adapter. Changes made by such
+     * requests are not synced back to the network by default.
+     *
+     * @see #syncToNetwork(Uri)
+     */
+    public static final String QUERY_CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
+    /**
+     * Query parameter that limits the number of rows returned by a query.
+     *
+     * @see PageIterator
+     */
+    public static final String QUERY_LIMIT = "limit";
+
+    /**
+     * Query parameter that selects only rows with an <code>_id</code> greater than the given
+     * one, ordered by <code>_id</code>. Combined with {@link #QUERY_LIMIT}, this pages through a
+     * table with constant cost per page, unlike <code>OFFSET</code>, which has to skip all
+     * previous rows.
+     *
+     * @see PageIterator
+     */
+    public static final String QUERY_AFTER = "after";
+
+    /**
+     * Query parameter holding the comma separated columns to group the rows of a query by, so
+     * aggregates in the projection, e.g. <code>count(*) AS comments</code>, are computed per
+     * group inside the database. Columns are validated like the projection.
+     */
+    public static final String QUERY_GROUP_BY = "group_by";
+
+    /**
+     * Query parameter holding the condition that groups of a query with
+     * {@link #QUERY_GROUP_BY} have to meet, e.g. <code>count(*) &gt; 1</code>. The condition
+     * can't contain arguments.
+     */
+    public static final String QUERY_HAVING = "having";
+
+    /**
+     * Query parameter that removes duplicate rows from the results of a query if set to
+     * <code>true</code>.
+     */
+    public static final String QUERY_DISTINCT = "distinct";
+
+    /**
+     * Last path segment that turns a query into a count of the selected rows, e.g.
+     * <code>/posts/count</code>. The result has a single row with the column
+     * {@link BaseColumns#_COUNT}. The count is computed by a compiled statement, so no cursor
+     * window is filled. Counts can be combined with a selection, {@link #QUERY_AFTER} and
+     * {@link #QUERY_SEARCH}.
+     */
+    public static final String PATH_COUNT = "count";
+
+    /**
+     * Query parameter that turns inserts into upserts: a row that has the same unique key as an
+     * existing row updates the columns of that row instead of failing. The value is either
+     * <code>true</code> to use the first unique key of the table, which is its primary key if it
+     * has one, or a comma separated list of the columns of a unique key. Unique keys are
+     * declared using {@link Column#primaryKey()}, {@link Column#unique()} and
+     * {@link Index#unique()}. Columns that are not part of the inserted values are not changed.
+     */
+    public static final String QUERY_UPSERT = "upsert";
+
+    /**
+     * Query parameter that selects the rows whose full-text index matches the given FTS query,
+     * e.g. <code>android OR sqlite</code>. Rows are ordered by the number of matched terms
+     * unless a sort order is given. Only tables with {@link Column#fullText()} columns can be
+     * searched.
+     */
+    public static final String QUERY_SEARCH = "search";
+
+    /**
+     * Query parameter that adds {@link #COLUMN_SNIPPET} to the results of a search if set to
+     * <code>true</code>.
+     */
+    public static final String QUERY_SNIPPET = "snippet";
+
+    /**
+     * Column of search results holding the matched terms in context, marked up with
+     * <code>&lt;b&gt;</code> tags.
+     *
+     * @see #QUERY_SNIPPET
+     */
+    public static final String COLUMN_SNIPPET = "snippet";
+
+    /**
+     * Method for {@link #call(String, String, Bundle)} that runs several queries against the
+     * same snapshot of the database and returns all their rows at once. The caller needs the
+     * same permissions as for querying each of the URIs.
+     *
+     * @see SnapshotQuery#query(ContentResolver, String, List)
+     */
+    public static final String CALL_QUERY_SNAPSHOT = "query_snapshot";
+
+    /**
+     * Method for {@link #call(String, String, Bundle)} that deletes the rows with the ids given
+     * in {@link #EXTRA_IDS} from the table whose URI is passed as <code>arg</code>. Returns the
+     * number of deleted rows in {@link #EXTRA_COUNT}. The caller needs the same permissions as
+     * for deleting through the URI.
+     *
+     * @see #deleteByIds(Uri, long[], String, String[])
+     */
+    public static final String CALL_DELETE_BY_IDS = "delete_by_ids";
+
+    /**
+     * Method for {@link #call(String, String, Bundle)} that updates the rows with the ids given
+     * in {@link #EXTRA_IDS} with the {@link #EXTRA_VALUES} in the table whose URI is passed as
+     * <code>arg</code>. Returns the number of updated rows in {@link #EXTRA_COUNT}. The caller
+     * needs the same permissions as for updating through the URI.
+     *
+     * @see #updateByIds(Uri, long[], ContentValues, String, String[])
+     */
+    public static final String CALL_UPDATE_BY_IDS = "update_by_ids";
+
+    /**
+     * <code>long[]</code> extra holding the ids of the rows to delete or update.
+     */
+    public static final String EXTRA_IDS = "ids";
+
+    /**
+     * {@link ContentValues} extra holding the new values of {@link #CALL_UPDATE_BY_IDS}.
+     */
+    public static final String EXTRA_VALUES = "values";
+
+    /**
+     * Optional <code>String</code> extra further restricting the rows to delete or update.
+     */
+    public static final String EXTRA_SELECTION = "selection";
+
+    /**
+     * Optional <code>String[]</code> extra holding the arguments of {@link #EXTRA_SELECTION}.
+     */
+    public static final String EXTRA_SELECTION_ARGS = "selectionArgs";
+
+    /**
+     * <code>int</code> result holding the number of deleted or updated rows.
+     */
+    public static final String EXTRA_COUNT = "count";
+
+    /**
+     * Suffix appended to the path of a database to get the directory of the files of its
+     * {@link Column#file()} columns. Each table has its own subdirectory.
+     */
+    public static final String FILES_SUFFIX = "-files";
+
+    /**
+     * Maximum number of arguments SQLite binds to a single statement by default, see
+     * <code>SQLITE_MAX_VARIABLE_NUMBER</code>.
+     */
+    private static final int MAX_BIND_ARGS = 999;
+
+    private static final String KEYSET_ORDER = "(?i)\\s*" + BaseColumns._ID + "(\\s+ASC)?\\s*";
+
+    private static final String SNAPSHOT_SAVEPOINT = "snapshot";
+
     protected final String mLogTag;
-    protected SQLiteDatabase mDatabase;
+
+    /**
+     * The database of this provider. Use {@link #getDatabase()} instead of accessing this field
+     * directly, as it is <code>null</code> until the database has been opened if the provider
+     * doesn't use {@link OpenMode#EAGER}.
+     */
+    protected volatile SQLiteDatabase mDatabase;
+
+    /**
+     * All databases by name, starting with the main database. Published by {@link #mDatabase}.
+     */
+    private Map<String, SQLiteDatabase> mDatabases;
+
+    /**
+     * Opens the databases. Replaced under {@link #mOpenLock} if opening has failed.
+     */
+    private FutureTask<SQLiteDatabase> mOpenTask;
+
+    private final Object mOpenLock = new Object();
+
+    /**
+     * Whether a database has been upgraded or downgraded while opening the databases. Only
+     * accessed by the thread running {@link #mOpenTask}.
+     */
+    private boolean mSchemaChanged;
+
+    private StatementCache mStatementCache;
+
+    private UriRouter mRouter;
+
+    private volatile ProviderMetrics mMetrics;
+
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * The read-only connections of the snapshot the current thread is reading, by the database
+     * they read from.
+     */
+    private final ThreadLocal<Map<SQLiteDatabase, SQLiteDatabase>> mSnapshot =
+            new ThreadLocal<Map<SQLiteDatabase, SQLiteDatabase>>();
+
+    /**
+     * Idle read-only connections for snapshots of databases with write-ahead logging.
+     */
+    private final Map<SQLiteDatabase, List<SQLiteDatabase>> mSnapshotReaders =
+            new HashMap<SQLiteDatabase, List<SQLiteDatabase>>();
+
+    /**
+     * Defines when the database is opened. Opening the database includes running all schema
+     * upgrades, which can take some time after an update of the app.
+     *
+     * @see #getOpenMode()
+     */
+    public enum OpenMode {
+
+        /**
+         * The database is opened in {@link #onCreate()}, that is, on the main thread while the
+         * application starts.
+         */
+        EAGER,
+
+        /**
+         * The database is opened by the first request that accesses it.
+         */
+        LAZY,
+
+        /**
+         * The database is opened on the executor returned by {@link #getOpenExecutor()} right
+         * after {@link #onCreate()}. Requests arriving before it has been opened wait for it.
+         */
+        BACKGROUND
+
+    }
 
     protected AbstractProvider() {
         mLogTag = getClass().getName();
@@ -30,28 +288,264 @@ public abstract class AbstractProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        try {
-            SimpleSQLHelper dbHelper = new SimpleSQLHelper(getContext(), getDatabaseFileName(),
-                    getSchemaVersion()) {
+        mStatementCache = new StatementCache(getStatementCacheSize());
+        final FutureTask<SQLiteDatabase> openTask = newOpenTask();
+        synchronized (mOpenLock) {
+            mOpenTask = openTask;
+        }
+
+        switch (getOpenMode()) {
+            case LAZY:
+                return true;
+            case BACKGROUND:
+                getOpenExecutor().execute(openTask);
+                return true;
+            default:
+                try {
+                    getDatabase();
+                    return true;
+                } catch (SQLiteException e) {
+                    Log.w(mLogTag, "Database Opening exception", e);
+                }
+                return false;
+        }
+    }
+
+    private FutureTask<SQLiteDatabase> newOpenTask() {
+        // All callers share this task, so the database is opened only once
+        return new FutureTask<SQLiteDatabase>(new Callable<SQLiteDatabase>() {
+
+            @Override
+            public SQLiteDatabase call() {
+                long start = SystemClock.elapsedRealtime();
+                mSchemaChanged = false;
+                final Schema schema = Schema.forClass(AbstractProvider.this.getClass());
+                final Map<String, SQLiteDatabase> databases =
+                        new LinkedHashMap<String, SQLiteDatabase>();
+                try {
+                    databases.put("", openDatabase(schema, ""));
+                    for (String database : schema.getDatabaseNames()) {
+                        databases.put(database, openDatabase(schema, database));
+                    }
+                } catch (RuntimeException e) {
+                    for (SQLiteDatabase db : databases.values()) {
+                        db.close();
+                    }
+                    throw e;
+                }
+
+                mRouter = new UriRouter(schema, databases, isTableValidationEnabled());
+                if (isColumnValidationEnabled()) {
+                    mStatementCache.setSchema(schema);
+                }
+                mDatabases = databases;
+                SQLiteDatabase db = databases.get("");
+                mDatabase = db;
+                if (mSchemaChanged) {
+                    // The migration might have dropped rows or columns that referenced files
+                    deleteOrphanedFiles();
+                }
+                onDatabaseOpened(db, SystemClock.elapsedRealtime() - start);
+                return db;
+            }
+
+        });
+    }
+
+    /**
+     * Opens and, if needed, creates or upgrades the given database.
+     *
+     * @param database The name of the database or an empty string for the main database.
+     */
+    private SQLiteDatabase openDatabase(Schema schema, String database) {
+        final SimpleSQLHelper dbHelper = new SimpleSQLHelper(getContext(),
+                getDatabaseFileName(database), getSchemaVersion(database)) {
+
+            @Override
+            public void onConfigure(SQLiteDatabase db) {
+                super.onConfigure(db);
+                AbstractProvider.this.onConfigure(db);
+                suspendForeignKeys(db);
+            }
+
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                mSchemaChanged = true;
+                final ProviderMetrics metrics = mMetrics;
+                final long start = metrics != null ? System.nanoTime() : 0;
+
+                super.onUpgrade(db, oldVersion, newVersion);
+
+                // Call onUpgrade of outer class so derived classes can extend the default
+                // behaviour
+                AbstractProvider.this.onUpgrade(db, oldVersion, newVersion);
+
+                if (metrics != null) {
+                    metrics.record(db, null, ProviderMetrics.Operation.UPGRADE, start, 0,
+                            "Upgrade from " + oldVersion + " to " + newVersion, null);
+                }
+            }
 
-                @Override
-                public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-                    super.onUpgrade(db, oldVersion, newVersion);
+            @Override
+            public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                mSchemaChanged = true;
+                super.onDowngrade(db, oldVersion, newVersion);
+            }
 
-                    // Call onUpgrade of outer class so derived classes can extend the default
-                    // behaviour
-                    AbstractProvider.this.onUpgrade(db, oldVersion, newVersion);
+        };
+        dbHelper.setSchema(schema.forDatabase(database));
+        dbHelper.setConfiguration(getDatabaseConfiguration());
+        dbHelper.setMigrator(getSchemaMigrator());
+        return dbHelper.getWritableDatabase();
+    }
+
+    /**
+     * Returns the main database of this provider. If the database hasn't been opened yet, it is
+     * opened on the calling thread, or, if another thread is already opening it, the calling
+     * thread waits until it is available. All other databases are opened along with it. If
+     * opening fails, the next call tries again.
+     *
+     * @return The writable database.
+     * @throws SQLiteException If the database can't be opened.
+     */
+    protected final SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db != null) {
+            return db;
+        }
+
+        final FutureTask<SQLiteDatabase> openTask;
+        synchronized (mOpenLock) {
+            openTask = mOpenTask;
+        }
+        // Does nothing if the task is already running or done
+        openTask.run();
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return openTask.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
+            }
+        } catch (ExecutionException e) {
+            synchronized (mOpenLock) {
+                // Callers waiting for this task fail as well, later callers open the database again
+                if (mOpenTask == openTask) {
+                    mOpenTask = newOpenTask();
+                }
+            }
 
-            };
-            dbHelper.setTableClass(getClass());
-            mDatabase = dbHelper.getWritableDatabase();
-            return true;
-        } catch (SQLiteException e) {
-            Log.w(mLogTag, "Database Opening exception", e);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLiteException("Unable to open database: " + cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
+    }
 
-        return false;
+    /**
+     * Returns the given database of this provider, opening all databases if they haven't been
+     * opened yet.
+     *
+     * @param database The name of the database, see {@link Table#database()}, or an empty string
+     *                 for the main database.
+     * @throws IllegalArgumentException If no table is stored in the database.
+     */
+    protected final SQLiteDatabase getDatabase(String database) {
+        getDatabase();
+        final SQLiteDatabase db = mDatabases.get(database);
+        if (db == null) {
+            throw new IllegalArgumentException("Unknown database " + database);
+        }
+        return db;
+    }
+
+    /**
+     * Returns the database of the given route. Within a batch, a transaction is begun on the
+     * database if it isn't part of the batch yet.
+     */
+    private SQLiteDatabase getDatabase(UriRouter.Route route) {
+        final SQLiteDatabase db = route.mDatabase;
+        final Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.join(db);
+        }
+        return db;
+    }
+
+    /**
+     * Returns when the database should be opened. Defaults to {@link OpenMode#EAGER}. Override
+     * this method to keep opening and upgrading the database off the main thread.
+     *
+     * @return The mode used by {@link #onCreate()}.
+     */
+    protected OpenMode getOpenMode() {
+        return OpenMode.EAGER;
+    }
+
+    /**
+     * Returns the executor that opens the database if the provider uses
+     * {@link OpenMode#BACKGROUND}.
+     *
+     * @return {@link AsyncTask#THREAD_POOL_EXECUTOR} by default.
+     */
+    protected Executor getOpenExecutor() {
+        return AsyncTask.THREAD_POOL_EXECUTOR;
+    }
+
+    /**
+     * Called on the thread that opened the database, right after it has been opened and
+     * upgraded. Override this method to measure the impact of the database on startup time. All
+     * other databases have been opened as well and are returned by {@link #getDatabase(String)}.
+     *
+     * @param db             The database.
+     * @param durationMillis The time it took to open and upgrade the database.
+     */
+    protected void onDatabaseOpened(SQLiteDatabase db, long durationMillis) {
+        // override if needed
+    }
+
+    /**
+     * Returns the connection settings of the database, e.g. to enable write-ahead logging so
+     * queries are no longer blocked by writes of other threads. By default, the settings of the
+     * platform are used.
+     *
+     * @return The settings applied whenever the database is opened.
+     */
+    protected DatabaseConfiguration getDatabaseConfiguration() {
+        return new DatabaseConfiguration();
+    }
+
+    /**
+     * Returns the migrator used to upgrade and downgrade the database. By default, upgrades only
+     * add tables, columns and indices based on their <code>since</code> version and downgrades
+     * fail. Return a {@link SchemaMigrator} to rebuild tables whose columns have been changed
+     * or removed instead.
+     *
+     * @return The migrator or <code>null</code>.
+     */
+    protected SchemaMigrator getSchemaMigrator() {
+        return null;
+    }
+
+    /**
+     * Called when the database connection is being configured, after the settings of
+     * {@link #getDatabaseConfiguration()} have been applied and before tables are created or
+     * upgraded. Override this method to execute additional <code>PRAGMA</code> statements.
+     * Foreign keys enabled here are turned off while the {@link #getSchemaMigrator()} migrates
+     * the tables.
+     *
+     * @param db The database.
+     */
+    protected void onConfigure(SQLiteDatabase db) {
+        // override if needed
     }
 
     /**
@@ -64,7 +558,10 @@ public abstract class AbstractProvider extends ContentProvider {
      * this method.<br>
      * <br>
      * This method executes within a transaction. If an exception is thrown, all changes will
-     * automatically be rolled back.
+     * automatically be rolled back.<br>
+     * <br>
+     * If tables are stored in several databases using {@link Table#database()}, this method is
+     * called for each database that is upgraded.
      *
      * @param db         The database.
      * @param oldVersion The old database version.
@@ -78,6 +575,25 @@ public abstract class AbstractProvider extends ContentProvider {
         return getClass().getName().toLowerCase() + ".db";
     }
 
+    /**
+     * Returns the file name of the given database. By default, the name of the database is
+     * appended to the name of the main database, e.g. <code>provider-events.db</code>.
+     *
+     * @param database The name of the database, see {@link Table#database()}, or an empty string
+     *                 for the main database.
+     */
+    protected String getDatabaseFileName(String database) {
+        final String fileName = getDatabaseFileName();
+        if (database.length() == 0) {
+            return fileName;
+        }
+
+        final int extension = fileName.lastIndexOf('.');
+        return extension > 0
+                ? fileName.substring(0, extension) + "-" + database + fileName.substring(extension)
+                : fileName + "-" + database;
+    }
+
     /**
      * Returns the current schema version. This number will be used to automatically trigger
      * upgrades and downgrades. You may override this method in derived classes if anything has
@@ -89,8 +605,93 @@ public abstract class AbstractProvider extends ContentProvider {
         return 1;
     }
 
+    /**
+     * Returns the current schema version of the given database. Each database is upgraded
+     * separately, so the <code>since</code> versions of its tables and columns refer to this
+     * version. Defaults to {@link #getSchemaVersion()} for all databases.
+     *
+     * @param database The name of the database, see {@link Table#database()}, or an empty string
+     *                 for the main database.
+     * @return Current schema version of the database.
+     */
+    protected int getSchemaVersion(String database) {
+        return getSchemaVersion();
+    }
+
     protected abstract String getAuthority();
 
+    /**
+     * Returns the maximum number of request shapes whose SQL is cached. A shape consists of the
+     * table, whether a row id is part of the URI, the selection, the projection and the sort
+     * order. Override this method if your provider uses more distinct requests. Use
+     * {@link #getStatementCache()} to check the hit rate of the cache.
+     *
+     * @return Maximum number of cached statements.
+     */
+    protected int getStatementCacheSize() {
+        return 32;
+    }
+
+    /**
+     * Returns whether the projections of queries and the columns of updates are checked against
+     * the declared columns. Unknown columns are rejected with an
+     * {@link IllegalArgumentException} before any SQL is built. Expressions like
+     * <code>count(*)</code> and tables that are not declared are not checked. Each distinct
+     * request is only checked once, as long as its SQL is cached. Override this method if the
+     * provider uses columns that are not declared using {@link Column}.
+     *
+     * @return <code>true</code> by default.
+     */
+    protected boolean isColumnValidationEnabled() {
+        return true;
+    }
+
+    /**
+     * Returns whether requests for tables that are not declared using {@link Table} are
+     * rejected with an {@link IllegalArgumentException} before any SQL is built. Override this
+     * method if the provider uses tables or views that are created in
+     * {@link #onUpgrade(SQLiteDatabase, int, int)}.
+     *
+     * @return <code>true</code> by default.
+     */
+    protected boolean isTableValidationEnabled() {
+        return true;
+    }
+
+    /**
+     * Returns the row cache of the given table, which opens the database if it hasn't been opened
+     * yet. Derived classes that change rows without using this class have to invalidate the
+     * affected rows.
+     *
+     * @return The row cache or <code>null</code> if {@link Table#rowCacheSize()} hasn't been set
+     * for the table.
+     */
+    public final RowCache getRowCache(String table) {
+        getDatabase();
+        final UriRouter.Route route = mRouter.get(table);
+        return route != null ? route.mRowCache : null;
+    }
+
+    /**
+     * Enables metrics for all operations of this provider, or disables them if
+     * <code>metrics</code> is <code>null</code>. To include schema upgrades, metrics have to be
+     * set before {@link #onCreate()}.
+     */
+    public final void setMetrics(ProviderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public final ProviderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the cache that holds the SQL of recent requests.
+     */
+    public final StatementCache getStatementCache() {
+        return mStatementCache;
+    }
+
     @Override
     public String getType(Uri uri) {
         return null;
@@ -99,95 +700,1711 @@ public abstract class AbstractProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        final SelectionBuilder builder = buildBaseQuery(uri);
-        final Cursor cursor = builder.where(selection, selectionArgs).query(mDatabase, projection,
-                sortOrder);
-        if (cursor != null) {
-            cursor.setNotificationUri(getContentResolver(), uri);
-        }
-        return cursor;
-    }
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
 
-    private ContentResolver getContentResolver() {
-        Context context = getContext();
-        if (context == null) {
-            return null;
+        final List<String> segments = uri.getPathSegments();
+        final UriRouter.Route route = route(uri, segments);
+        final SQLiteDatabase db = getReadDatabase(route);
+        final boolean count = segments.size() == 2 && PATH_COUNT.equals(segments.get(1));
+        final String id = count ? null : getId(segments);
+        final String after = getAfter(uri);
+        final String limit = getLimit(uri);
+        final String search = getSearch(uri, route);
+        final String groupBy = uri.getQueryParameter(QUERY_GROUP_BY);
+        final String having = uri.getQueryParameter(QUERY_HAVING);
+        final boolean distinct = uri.getBooleanQueryParameter(QUERY_DISTINCT, false);
+        if (having != null && TextUtils.isEmpty(groupBy)) {
+            throw new IllegalArgumentException(QUERY_HAVING + "= requires " + QUERY_GROUP_BY
+                    + "=");
+        }
+        if (count) {
+            if (limit != null || groupBy != null || distinct) {
+                throw new IllegalArgumentException("Counting doesn't support " + QUERY_LIMIT
+                        + "=, " + QUERY_GROUP_BY + "= or " + QUERY_DISTINCT + "=");
+            }
+            return queryCount(db, uri, route, after, search, selection, selectionArgs,
+                    metrics, start);
+        }
+        if (projection == null) {
+            // Leave out heavy columns unless they have been requested explicitly
+            projection = route.mDefaultProjection;
         }
 
-        return context.getContentResolver();
-    }
+        // Snapshots must not see rows that have been cached after they began
+        final RowCache rowCache = db == route.mDatabase ? route.mRowCache : null;
+        if (rowCache != null && id != null && after == null && limit == null && search == null
+                && groupBy == null && !distinct && TextUtils.isEmpty(selection)
+                && (selectionArgs == null || selectionArgs.length == 0)) {
+            final Cursor cursor = queryRowCache(db, rowCache, route.mTable, id, projection);
+            if (cursor != null) {
+                cursor.setNotificationUri(getContentResolver(), uri);
+                if (metrics != null) {
+                    metrics.record(db, route.mTable, ProviderMetrics.Operation.QUERY, start,
+                            cursor.getCount(), null, null);
+                }
+                return cursor;
+            }
+        }
 
-    private SelectionBuilder buildBaseQuery(Uri uri) {
-        List<String> pathSegments = uri.getPathSegments();
-        if (pathSegments == null) {
-            return null;
+        if (after != null) {
+            if (!TextUtils.isEmpty(sortOrder) && !sortOrder.matches(KEYSET_ORDER)) {
+                throw new IllegalArgumentException(
+                        "Paging with after= requires ordering by " + BaseColumns._ID);
+            }
+            sortOrder = BaseColumns._ID;
         }
 
-        SelectionBuilder builder = new SelectionBuilder(pathSegments.get(0));
+        final StatementCache.Entry entry = mStatementCache.get(new StatementCache.Key(
+                StatementCache.QUERY, route.mTable, id != null, after != null,
+                limit != null, search != null,
+                search != null && uri.getBooleanQueryParameter(QUERY_SNIPPET, false),
+                distinct, groupBy, having, selection, projection, sortOrder));
 
-        if (pathSegments.size() == 2) {
-            builder.whereEquals(BaseColumns._ID, uri.getLastPathSegment());
+        String[] args = buildSelectionArgs(id, selection, selectionArgs);
+        if (after != null) {
+            args = insertArg(args, id == null ? 0 : 1, after);
+        }
+        if (limit != null) {
+            args = insertArg(args, args == null ? 0 : args.length, limit);
+        }
+        if (search != null) {
+            // The full-text index is matched in the FROM clause, before all other arguments
+            args = insertArg(args, 0, search);
         }
 
-        return builder;
-    }
-
-    @Override
-    public Uri insert(Uri uri, ContentValues values) {
-        List<String> segments = uri.getPathSegments();
-        if (segments == null || segments.size() != 1) {
+        final Cursor cursor = db.rawQuery(entry.mSql, args);
+        if (cursor == null) {
+            if (metrics != null) {
+                metrics.record(db, route.mTable, ProviderMetrics.Operation.QUERY, start, 0,
+                        entry.mSql, args);
+            }
             return null;
         }
 
-        long rowId = mDatabase.insert(segments.get(0), null, values);
-
-        if (rowId > -1) {
-            getContentResolver().notifyChange(uri, null);
-
-            return ContentUris.withAppendedId(uri, rowId);
+        cursor.setNotificationUri(getContentResolver(), uri);
+        if (metrics != null) {
+            // Recorded once the cursor executes the query, so metrics don't change when it runs
+            return metrics.recordQuery(cursor, db, route.mTable, start, entry.mSql, args);
         }
-
-        return null;
+        return cursor;
+    }
+
+    /**
+     * Counts the selected rows using a compiled <code>count(*)</code> statement.
+     *
+     * @see #PATH_COUNT
+     */
+    private Cursor queryCount(SQLiteDatabase db, Uri uri, UriRouter.Route route, String after,
+                              String search, String selection, String[] selectionArgs,
+                              ProviderMetrics metrics, long start) {
+        final StatementCache.Entry entry = mStatementCache.get(new StatementCache.Key(
+                StatementCache.COUNT, route.mTable, false, after != null, false,
+                search != null, false, selection, null, null));
+
+        String[] args = buildSelectionArgs(null, selection, selectionArgs);
+        if (after != null) {
+            args = insertArg(args, 0, after);
+        }
+        if (search != null) {
+            args = insertArg(args, 0, search);
+        }
+
+        // Statements compiled for the connections of snapshots aren't cached
+        final long count = db == route.mDatabase ? entry.simpleQueryForLong(db, args)
+                : DatabaseUtils.longForQuery(db, entry.mSql, args);
+        final MatrixCursor cursor = new MatrixCursor(new String[]{BaseColumns._COUNT}, 1);
+        cursor.addRow(new Object[]{count});
+        cursor.setNotificationUri(getContentResolver(), uri);
+        if (metrics != null) {
+            metrics.record(db, route.mTable, ProviderMetrics.Operation.QUERY, start, 1,
+                    entry.mSql, args);
+        }
+        return cursor;
+    }
+
+    /**
+     * Runs the given queries against the same snapshot of the database, so changes committed by
+     * other threads in the meantime can't show up in only some of the results. With write-ahead
+     * logging, the queries read within a transaction on a separate read-only connection, so
+     * writes don't wait for the snapshot. Otherwise they run within a transaction on the
+     * connection of the provider, which writes of other threads wait for. Either way, the
+     * transaction is only held while the rows are read.<br>
+     * <br>
+     * All rows are read before this method returns. Results that don't fit into the cursor
+     * window of their query are copied into memory. If the queries refer to tables of several
+     * databases, a transaction is held on each of them. Within a batch, the snapshot includes
+     * the changes of the batch.
+     *
+     * @return The cursors in the order of the queries.
+     * @see SnapshotQuery#query(ContentResolver, String, List)
+     */
+    public final Cursor[] querySnapshot(List<SnapshotQuery> queries) {
+        getDatabase();
+        final Set<SQLiteDatabase> used = new HashSet<SQLiteDatabase>();
+        for (SnapshotQuery query : queries) {
+            used.add(findDatabase(query.getUri()));
+        }
+        final List<SQLiteDatabase> databases = sortDatabases(used);
+
+        final Map<SQLiteDatabase, SQLiteDatabase> readers =
+                new HashMap<SQLiteDatabase, SQLiteDatabase>();
+        final Cursor[] cursors = new Cursor[queries.size()];
+        boolean successful = false;
+        int begun = 0;
+        try {
+            for (SQLiteDatabase db : databases) {
+                if (db.isWriteAheadLoggingEnabled() && !db.inTransaction()) {
+                    readers.put(db, beginSnapshot(db));
+                } else {
+                    db.beginTransactionNonExclusive();
+                }
+                begun++;
+            }
+            mSnapshot.set(readers);
+            for (int i = 0; i < cursors.length; i++) {
+                final SnapshotQuery query = queries.get(i);
+                cursors[i] = fill(query(query.getUri(), query.getProjection(),
+                        query.getSelection(), query.getSelectionArgs(), query.getSortOrder()),
+                        query.getUri());
+            }
+            successful = true;
+        } finally {
+            mSnapshot.remove();
+            for (int i = 0; i < begun; i++) {
+                final SQLiteDatabase db = databases.get(i);
+                final SQLiteDatabase reader = readers.get(db);
+                if (reader != null) {
+                    endSnapshot(db, reader);
+                    continue;
+                }
+
+                if (successful) {
+                    db.setTransactionSuccessful();
+                }
+                db.endTransaction();
+            }
+            if (!successful) {
+                for (Cursor cursor : cursors) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Begins a read transaction on an idle read-only connection of the given database, or on a
+     * new one. The transaction is begun with a savepoint, as the transactions of
+     * {@link SQLiteDatabase} would take the write lock.
+     *
+     * @return The connection to read the snapshot from.
+     */
+    private SQLiteDatabase beginSnapshot(SQLiteDatabase db) {
+        SQLiteDatabase reader = null;
+        synchronized (mSnapshotReaders) {
+            final List<SQLiteDatabase> idle = mSnapshotReaders.get(db);
+            if (idle != null && !idle.isEmpty()) {
+                reader = idle.remove(idle.size() - 1);
+            }
+        }
+        if (reader == null) {
+            reader = SQLiteDatabase.openDatabase(db.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+        }
+
+        try {
+            reader.execSQL("SAVEPOINT " + SNAPSHOT_SAVEPOINT);
+            // The snapshot is only taken by the first read
+            DatabaseUtils.longForQuery(reader, "SELECT count(*) FROM sqlite_master", null);
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Ends the read transaction of the given connection and keeps it for the next snapshot.
+     */
+    private void endSnapshot(SQLiteDatabase db, SQLiteDatabase reader) {
+        try {
+            reader.execSQL("RELEASE " + SNAPSHOT_SAVEPOINT);
+        } catch (RuntimeException e) {
+            // All rows have been read, but the connection can't be used again
+            Log.w(mLogTag, "Could not end snapshot", e);
+            reader.close();
+            return;
+        }
+
+        synchronized (mSnapshotReaders) {
+            List<SQLiteDatabase> idle = mSnapshotReaders.get(db);
+            if (idle == null) {
+                idle = new ArrayList<SQLiteDatabase>(1);
+                mSnapshotReaders.put(db, idle);
+            }
+            idle.add(reader);
+        }
+    }
+
+    /**
+     * Returns the database that queries of the given route read from, which is the read-only
+     * connection of the snapshot the current thread is reading, if any.
+     */
+    private SQLiteDatabase getReadDatabase(UriRouter.Route route) {
+        final Map<SQLiteDatabase, SQLiteDatabase> snapshot = mSnapshot.get();
+        final SQLiteDatabase reader = snapshot != null ? snapshot.get(route.mDatabase) : null;
+        return reader != null ? reader : getDatabase(route);
+    }
+
+    /**
+     * Reads all rows of the given cursor, so it no longer depends on the state of the database.
+     */
+    private Cursor fill(Cursor cursor, Uri uri) {
+        // Executes the query and fills the first window
+        final int count = cursor.getCount();
+        final Cursor wrapped = cursor instanceof CursorWrapper
+                ? ((CursorWrapper) cursor).getWrappedCursor() : cursor;
+        if (!(wrapped instanceof AbstractWindowedCursor)) {
+            // Cursors of the row cache are kept in memory anyway
+            return cursor;
+        }
+
+        final CursorWindow window = ((AbstractWindowedCursor) wrapped).getWindow();
+        if (window != null && window.getStartPosition() == 0 && window.getNumRows() == count) {
+            return cursor;
+        }
+
+        final Cursor copy = SnapshotQuery.copy(cursor);
+        copy.setNotificationUri(getContentResolver(), uri);
+        return copy;
+    }
+
+    /**
+     * Handles {@link #CALL_QUERY_SNAPSHOT}. Other methods are passed to the super class.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (CALL_QUERY_SNAPSHOT.equals(method)) {
+            final List<SnapshotQuery> queries = SnapshotQuery.fromExtras(extras);
+            for (SnapshotQuery query : queries) {
+                enforcePermission(query.getUri(), false);
+            }
+            return SnapshotQuery.writeCursors(querySnapshot(queries));
+        }
+        if (CALL_DELETE_BY_IDS.equals(method) || CALL_UPDATE_BY_IDS.equals(method)) {
+            if (arg == null || extras == null) {
+                throw new IllegalArgumentException(method + " requires a table URI and ids");
+            }
+
+            final ContentValues values = CALL_UPDATE_BY_IDS.equals(method)
+                    ? (ContentValues) extras.getParcelable(EXTRA_VALUES) : null;
+            if (CALL_UPDATE_BY_IDS.equals(method) && values == null) {
+                throw new IllegalArgumentException("Empty values");
+            }
+
+            final Uri uri = Uri.parse(arg);
+            enforcePermission(uri, true);
+            final Bundle result = new Bundle();
+            result.putInt(EXTRA_COUNT, updateOrDeleteByIds(uri,
+                    extras.getLongArray(EXTRA_IDS), values, extras.getString(EXTRA_SELECTION),
+                    extras.getStringArray(EXTRA_SELECTION_ARGS)));
+            return result;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Checks that the caller may read or write the given URI the same way the framework checks
+     * {@link #query} and the other methods. The framework doesn't check any permissions for
+     * {@link #call(String, String, Bundle)} itself. The caller needs the permission of the
+     * provider, a matching path permission or a permission granted for the URI.
+     *
+     * @throws IllegalArgumentException If the URI belongs to another provider.
+     * @throws SecurityException        If the caller isn't allowed to access the URI.
+     */
+    private void enforcePermission(Uri uri, boolean write) {
+        if (!getAuthority().equals(uri.getAuthority())) {
+            throw new IllegalArgumentException("Unknown authority in " + uri);
+        }
+
+        final Context context = getContext();
+        if (context == null) {
+            return;
+        }
+
+        final String permission = write ? getWritePermission() : getReadPermission();
+        if (permission != null && context.checkCallingOrSelfPermission(permission)
+                == PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+
+        boolean required = permission != null;
+        final PathPermission[] pathPermissions = getPathPermissions();
+        if (pathPermissions != null) {
+            final String path = uri.getPath();
+            for (PathPermission pathPermission : pathPermissions) {
+                final String pathPerm = write ? pathPermission.getWritePermission()
+                        : pathPermission.getReadPermission();
+                if (pathPerm != null && pathPermission.match(path)) {
+                    if (context.checkCallingOrSelfPermission(pathPerm)
+                            == PackageManager.PERMISSION_GRANTED) {
+                        return;
+                    }
+                    required = true;
+                }
+            }
+        }
+
+        if (required && context.checkCallingOrSelfUriPermission(uri, write
+                ? Intent.FLAG_GRANT_WRITE_URI_PERMISSION : Intent.FLAG_GRANT_READ_URI_PERMISSION)
+                != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Permission denial: " + (write ? "writing " : "reading ")
+                    + uri + " requires " + permission);
+        }
+    }
+
+    /**
+     * Returns the requested row from the row cache, reading the complete row from the database
+     * if it isn't cached yet.
+     *
+     * @return The row or <code>null</code> if the row can't be answered from the cache.
+     */
+    private Cursor queryRowCache(SQLiteDatabase db, RowCache rowCache, String table, String id,
+                                 String[] projection) {
+        final long rowId;
+        try {
+            rowId = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        RowCache.Row row = rowCache.get(rowId);
+        if (row == null) {
+            if (db.inTransaction()) {
+                // Don't cache changes that haven't been committed yet
+                return null;
+            }
+
+            final int version = rowCache.getVersion();
+            final StatementCache.Entry entry = mStatementCache.get(new StatementCache.Key(
+                    StatementCache.QUERY, table, true, null, null, null));
+            final Cursor cursor = db.rawQuery(entry.mSql, new String[]{id});
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                row = new RowCache.Row(cursor);
+            } finally {
+                cursor.close();
+            }
+            rowCache.put(rowId, row, version);
+        }
+
+        return row.toCursor(projection);
+    }
+
+    /**
+     * Returns the route of the table addressed by the given URI, opening the database if it
+     * hasn't been opened yet.
+     *
+     * @throws IllegalArgumentException If the table is unknown.
+     */
+    private UriRouter.Route route(Uri uri, List<String> segments) {
+        getDatabase();
+        return mRouter.route(uri, segments);
+    }
+
+    private ContentResolver getContentResolver() {
+        Context context = getContext();
+        if (context == null) {
+            return null;
+        }
+
+        return context.getContentResolver();
+    }
+
+    private StatementCache.Entry buildBaseQuery(int type, UriRouter.Route route,
+                                                List<String> pathSegments, String selection,
+                                                String[] columns, String sortOrder) {
+        return mStatementCache.get(new StatementCache.Key(type, route.mTable,
+                getId(pathSegments) != null, selection, columns, sortOrder));
+    }
+
+    private static String getId(List<String> pathSegments) {
+        return pathSegments.size() == 2 ? pathSegments.get(1) : null;
+    }
+
+    private static String getAfter(Uri uri) {
+        final String after = uri.getQueryParameter(QUERY_AFTER);
+        if (after == null) {
+            return null;
+        }
+
+        try {
+            return Long.toString(Long.parseLong(after));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + QUERY_AFTER + "=" + after);
+        }
+    }
+
+    private static String getSearch(Uri uri, UriRouter.Route route) {
+        final String search = uri.getQueryParameter(QUERY_SEARCH);
+        if (search == null) {
+            return null;
+        }
+
+        if (!route.mFullText) {
+            throw new IllegalArgumentException("Table " + route.mTable
+                    + " has no full-text index");
+        }
+        return search;
+    }
+
+    private static String getLimit(Uri uri) {
+        final String limit = uri.getQueryParameter(QUERY_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+
+        try {
+            final int value = Integer.parseInt(limit);
+            if (value > 0) {
+                return Integer.toString(value);
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        throw new IllegalArgumentException("Invalid " + QUERY_LIMIT + "=" + limit);
+    }
+
+    private static String[] insertArg(String[] args, int index, String arg) {
+        final int count = args == null ? 0 : args.length;
+        final String[] result = new String[count + 1];
+        if (index > 0) {
+            System.arraycopy(args, 0, result, 0, index);
+        }
+        result[index] = arg;
+        if (index < count) {
+            System.arraycopy(args, index, result, index + 1, count - index);
+        }
+        return result;
+    }
+
+    private static String[] buildSelectionArgs(String id, String selection,
+                                               String[] selectionArgs) {
+        if (TextUtils.isEmpty(selection)) {
+            if (selectionArgs != null && selectionArgs.length > 0) {
+                throw new IllegalArgumentException(
+                        "Valid selection required when including arguments=");
+            }
+            selectionArgs = null;
+        }
+
+        if (id == null) {
+            return selectionArgs;
+        }
+
+        int count = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[count + 1];
+        args[0] = id;
+        if (count > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, count);
+        }
+        return args;
+    }
+
+    /**
+     * Same as {@link #buildSelectionArgs(String, String, String[])}, but leaves
+     * <code>offset</code> slots at the start for other arguments and binds numeric ids as
+     * integers, which avoids a conversion for each <code>INTEGER PRIMARY KEY</code> lookup.
+     */
+    private static Object[] buildBindArgs(int offset, String id, String selection,
+                                          String[] selectionArgs) {
+        final String[] args = buildSelectionArgs(id, selection, selectionArgs);
+        final int count = args == null ? 0 : args.length;
+        final Object[] bindArgs = new Object[offset + count];
+        if (count > 0) {
+            System.arraycopy(args, 0, bindArgs, offset, count);
+        }
+
+        if (id != null) {
+            try {
+                bindArgs[offset] = Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                // Not a row id, keep comparing it as text
+            }
+        }
+        return bindArgs;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() != 1) {
+            return null;
+        }
+
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final UriRouter.Route route = route(uri, segments);
+        checkFileColumns(route, values);
+        final String table = route.mTable;
+        final String[] key = getUpsertKey(uri, route);
+        long rowId;
+        final SQLiteDatabase db = getDatabase(route);
+        if (key == null) {
+            rowId = db.insert(table, null, values);
+        } else {
+            final Map<String, SQLiteStatement> statements =
+                    new HashMap<String, SQLiteStatement>();
+            boolean successful = false;
+            // Another writer must not insert the key between looking up and inserting the row
+            beginBatch(Collections.singletonList(db));
+            try {
+                rowId = upsertRow(route, key, values, statements, true);
+                successful = true;
+            } finally {
+                endBatch(successful);
+                for (SQLiteStatement statement : statements.values()) {
+                    statement.close();
+                }
+            }
+        }
+
+        if (metrics != null) {
+            metrics.record(db, table, ProviderMetrics.Operation.INSERT, start,
+                    rowId > -1 ? 1 : 0, null, null);
+        }
+
+        if (rowId > -1) {
+            notifyChange(uri);
+
+            return ContentUris.withAppendedId(uri, rowId);
+        }
+
+        return null;
+    }
+
+    /**
+     * Inserts all rows within a single transaction. Rows sharing the same set of columns are
+     * bound to the same compiled <code>INSERT</code> statement and observers are notified only
+     * once, after the transaction has been committed. Upserts ({@link #QUERY_UPSERT}) use
+     * compiled <code>UPDATE</code> statements the same way.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() != 1) {
+            return 0;
+        }
+
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final UriRouter.Route route = route(uri, segments);
+        final String table = route.mTable;
+        final String[] key = getUpsertKey(uri, route);
+        final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+        int count = 0;
+
+        boolean successful = false;
+        beginBatch(Collections.singletonList(route.mDatabase));
+        try {
+            for (ContentValues row : values) {
+                checkFileColumns(route, row);
+                final long rowId = key == null ? insertRow(route, row, statements)
+                        : upsertRow(route, key, row, statements, false);
+                if (rowId > -1) {
+                    count++;
+                }
+            }
+
+            if (count > 0) {
+                notifyChange(uri);
+            }
+
+            successful = true;
+        } finally {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+
+            endBatch(successful);
+        }
+
+        if (metrics != null) {
+            metrics.record(route.mDatabase, table, ProviderMetrics.Operation.BULK_INSERT, start,
+                    count, null, null);
+        }
+
+        return count;
+    }
+
+    private long insertRow(UriRouter.Route route, ContentValues row,
+                           Map<String, SQLiteStatement> statements) {
+        if (row == null || row.size() == 0) {
+            // Same as SQLiteDatabase#insert() without a nullColumnHack
+            return -1;
+        }
+
+        // The column list doubles as cache key and defines the order of the bind arguments
+        StringBuilder columns = new StringBuilder();
+        for (Map.Entry<String, Object> entry : row.valueSet()) {
+            if (columns.length() > 0) {
+                columns.append(',');
+            }
+            columns.append(entry.getKey());
+        }
+
+        String key = columns.toString();
+        SQLiteStatement statement = statements.get(key);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(route.mTable)
+                    .append(" (").append(key).append(") VALUES (");
+            for (int i = 0; i < row.size(); i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+
+            statement = route.mDatabase.compileStatement(sql.toString());
+            statements.put(key, statement);
+        }
+
+        int index = 1;
+        for (Map.Entry<String, Object> entry : row.valueSet()) {
+            Utils.bindValue(statement, index++, entry.getValue());
+        }
+
+        try {
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            // Mimic SQLiteDatabase#insert() which logs and skips rows that can't be inserted
+            Log.e(mLogTag, "Error inserting " + row, e);
+            return -1;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /**
+     * Returns the unique key used by an upsert.
+     *
+     * @return The columns of the key or <code>null</code> if the request isn't an upsert.
+     * @throws IllegalArgumentException If the table has no matching unique key.
+     */
+    private static String[] getUpsertKey(Uri uri, UriRouter.Route route) {
+        final String upsert = uri.getQueryParameter(QUERY_UPSERT);
+        if (upsert == null || "false".equals(upsert)) {
+            return null;
+        }
+
+        final String table = route.mTable;
+        final List<String[]> keys = route.mUniqueKeys;
+        if ("true".equals(upsert)) {
+            if (keys.isEmpty()) {
+                throw new IllegalArgumentException("Table " + table + " has no unique key");
+            }
+            return keys.get(0);
+        }
+
+        final Set<String> columns = new HashSet<String>();
+        for (String column : upsert.split(",")) {
+            columns.add(column.trim());
+        }
+        for (String[] key : keys) {
+            if (columns.equals(new HashSet<String>(Arrays.asList(key)))) {
+                return key;
+            }
+        }
+        throw new IllegalArgumentException("Table " + table + " has no unique key " + upsert);
+    }
+
+    /**
+     * Updates the row that has the same key as the given one or inserts the row if there is
+     * none. Unlike <code>CONFLICT_REPLACE</code>, this keeps the row id and all columns that are
+     * not part of <code>row</code>.
+     *
+     * @param returnRowId Whether to look up the row id of an updated row.
+     * @return The row id, <code>0</code> if a row has been updated and <code>returnRowId</code>
+     * is <code>false</code>, or <code>-1</code> if an error occurred.
+     */
+    private long upsertRow(UriRouter.Route route, String[] key, ContentValues row,
+                           Map<String, SQLiteStatement> statements, boolean returnRowId) {
+        if (row == null || row.size() == 0) {
+            return -1;
+        }
+
+        final String table = route.mTable;
+        final StringBuilder where = new StringBuilder();
+        for (String column : key) {
+            if (!row.containsKey(column)) {
+                throw new IllegalArgumentException("Upsert into " + table
+                        + " requires a value for " + column);
+            }
+            where.append(where.length() > 0 ? " AND " : "").append(column).append("=?");
+        }
+
+        // Looked up before the update, which might change the id of the row
+        final long rowId = findRow(route, key, row, where, statements);
+        if (rowId == -1) {
+            return insertRow(route, row, statements);
+        }
+
+        // Otherwise there is nothing to update, the row just has to exist
+        if (row.size() > key.length) {
+            final StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            int columns = 0;
+            for (Map.Entry<String, Object> entry : row.valueSet()) {
+                if (!isKeyColumn(key, entry.getKey())) {
+                    sql.append(columns++ > 0 ? "," : "").append(entry.getKey()).append("=?");
+                }
+            }
+            sql.append(" WHERE ").append(where);
+
+            final SQLiteStatement statement = getStatement(route.mDatabase, sql.toString(),
+                    statements);
+            int index = 1;
+            for (Map.Entry<String, Object> entry : row.valueSet()) {
+                if (!isKeyColumn(key, entry.getKey())) {
+                    Utils.bindValue(statement, index++, entry.getValue());
+                }
+            }
+            for (String column : key) {
+                Utils.bindValue(statement, index++, row.get(column));
+            }
+
+            try {
+                statement.executeUpdateDelete();
+            } catch (SQLException e) {
+                Log.e(mLogTag, "Error updating " + row, e);
+                return -1;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+
+        invalidateRows(route.mRowCache, rowId);
+        final Long newRowId = row.getAsLong(BaseColumns._ID);
+        if (newRowId != null && newRowId != rowId) {
+            invalidateRows(route.mRowCache, newRowId);
+            return returnRowId ? findRow(route, key, row, where, statements) : 0;
+        }
+        return returnRowId ? rowId : 0;
+    }
+
+    /**
+     * @return The row id of the row with the same key as <code>row</code> or <code>-1</code>.
+     */
+    private long findRow(UriRouter.Route route, String[] key, ContentValues row,
+                         CharSequence where, Map<String, SQLiteStatement> statements) {
+        final SQLiteStatement statement = getStatement(route.mDatabase,
+                "SELECT _rowid_ FROM " + route.mTable + " WHERE " + where, statements);
+        for (int i = 0; i < key.length; i++) {
+            Utils.bindValue(statement, i + 1, row.get(key[i]));
+        }
+
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    private static SQLiteStatement getStatement(SQLiteDatabase db, String sql,
+                                                Map<String, SQLiteStatement> statements) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static boolean isKeyColumn(String[] key, String column) {
+        for (String keyColumn : key) {
+            if (keyColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final List<String> segments = uri.getPathSegments();
+        final UriRouter.Route route = route(uri, segments);
+        final StatementCache.Entry entry = buildBaseQuery(StatementCache.DELETE, route,
+                segments, selection, null, null);
+        final Object[] bindArgs = buildBindArgs(0, getId(segments), selection, selectionArgs);
+        final SQLiteDatabase db = getDatabase(route);
+        int count;
+        if (route.mFileColumns == null) {
+            count = entry.executeUpdateDelete(db, bindArgs);
+        } else {
+            // The files may only be deleted once the rows are gone for good
+            boolean successful = false;
+            beginBatch(Collections.singletonList(db));
+            try {
+                deleteFiles(route, segments, selection, selectionArgs);
+                count = entry.executeUpdateDelete(db, bindArgs);
+                successful = true;
+            } finally {
+                endBatch(successful);
+            }
+        }
+
+        if (metrics != null) {
+            metrics.record(db, route.mTable, ProviderMetrics.Operation.DELETE,
+                    start, count, entry.mSql, bindArgs);
+        }
+
+        if (count > 0) {
+            invalidateRows(route, segments);
+            notifyChange(uri);
+        }
+
+        return count;
     }
 
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        final SelectionBuilder builder = buildBaseQuery(uri);
-        int count = builder.where(selection, selectionArgs).delete(mDatabase);
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final List<String> segments = uri.getPathSegments();
+        final UriRouter.Route route = route(uri, segments);
+        checkFileColumns(route, values);
+        final String[] columns = new String[values.size()];
+        final Object[] bindArgs = buildBindArgs(columns.length, getId(segments), selection,
+                selectionArgs);
+
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            columns[i] = value.getKey();
+            bindArgs[i++] = value.getValue();
+        }
+
+        final StatementCache.Entry entry = buildBaseQuery(StatementCache.UPDATE, route,
+                segments, selection, columns, null);
+        final SQLiteDatabase db = getDatabase(route);
+        int count = entry.executeUpdateDelete(db, bindArgs);
+
+        if (metrics != null) {
+            metrics.record(db, route.mTable, ProviderMetrics.Operation.UPDATE,
+                    start, count, entry.mSql, bindArgs);
+        }
 
         if (count > 0) {
-            getContentResolver().notifyChange(uri, null);
+            invalidateRows(route, segments);
+            notifyChange(uri);
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Deletes the rows of a table with the given ids within a single transaction. The ids are
+     * bound to <code>_id IN (...)</code> statements in chunks that stay below SQLite's limit of
+     * bind arguments, and observers of the table are notified once.
+     *
+     * @param uri           The URI of the table.
+     * @param ids           The <code>_id</code>s of the rows.
+     * @param selection     An optional filter the rows have to match as well.
+     * @param selectionArgs The arguments of <code>selection</code>.
+     * @return The number of deleted rows.
+     * @see #CALL_DELETE_BY_IDS
+     */
+    public final int deleteByIds(Uri uri, long[] ids, String selection, String[] selectionArgs) {
+        return updateOrDeleteByIds(uri, ids, null, selection, selectionArgs);
+    }
+
+    /**
+     * Updates the rows of a table with the given ids within a single transaction, like
+     * {@link #deleteByIds(Uri, long[], String, String[])}.
+     *
+     * @return The number of updated rows.
+     * @see #CALL_UPDATE_BY_IDS
+     */
+    public final int updateByIds(Uri uri, long[] ids, ContentValues values, String selection,
+                                 String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        return updateOrDeleteByIds(uri, ids, values, selection, selectionArgs);
+    }
+
+    /**
+     * @param values The new values or <code>null</code> to delete the rows.
+     */
+    private int updateOrDeleteByIds(Uri uri, long[] ids, ContentValues values, String selection,
+                                    String[] selectionArgs) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() != 1) {
+            throw new IllegalArgumentException("Not a table URI " + uri);
+        }
+        if (ids == null) {
+            throw new IllegalArgumentException("No ids");
+        }
+
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final UriRouter.Route route = route(uri, segments);
+        checkFileColumns(route, values);
+        final String[] args = buildSelectionArgs(null, selection, selectionArgs);
+        final int argCount = args == null ? 0 : args.length;
+        final String[] columns = values == null ? null : new String[values.size()];
+        final int valueCount = columns == null ? 0 : columns.length;
+        final int chunkSize = MAX_BIND_ARGS - valueCount - argCount;
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Too many arguments");
+        }
+
+        final Object[] valueArgs = new Object[valueCount];
+        if (values != null) {
+            int i = 0;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                columns[i] = value.getKey();
+                valueArgs[i++] = value.getValue();
+            }
+        }
+
+        final SQLiteDatabase db = route.mDatabase;
+        int count = 0;
+        boolean successful = false;
+        beginBatch(Collections.singletonList(db));
+        try {
+            for (int offset = 0; offset < ids.length; offset += chunkSize) {
+                final int size = Math.min(chunkSize, ids.length - offset);
+
+                // Round up to a power of two, so that only a few statements have to be cached
+                int padded = Integer.highestOneBit(size);
+                if (padded < size) {
+                    padded = Math.min(padded << 1, chunkSize);
+                }
+
+                final Object[] bindArgs = new Object[valueCount + padded + argCount];
+                System.arraycopy(valueArgs, 0, bindArgs, 0, valueCount);
+                for (int i = 0; i < padded; i++) {
+                    // Repeating the last id doesn't change the selected rows
+                    bindArgs[valueCount + i] = ids[offset + Math.min(i, size - 1)];
+                }
+                if (argCount > 0) {
+                    System.arraycopy(args, 0, bindArgs, valueCount + padded, argCount);
+                }
+
+                final String chunkSelection = buildIdSelection(padded, selection);
+                if (values == null && route.mFileColumns != null) {
+                    final String[] chunkArgs = new String[padded + argCount];
+                    for (int i = 0; i < chunkArgs.length; i++) {
+                        chunkArgs[i] = String.valueOf(bindArgs[i]);
+                    }
+                    deleteFiles(route, segments, chunkSelection, chunkArgs);
+                }
+
+                final StatementCache.Entry entry = buildBaseQuery(values == null
+                        ? StatementCache.DELETE : StatementCache.UPDATE, route, segments,
+                        chunkSelection, columns, null);
+                count += entry.executeUpdateDelete(db, bindArgs);
+            }
+
+            if (count > 0) {
+                for (long id : ids) {
+                    invalidateRows(route.mRowCache, id);
+                }
+                notifyChange(uri);
+            }
+
+            successful = true;
+        } finally {
+            endBatch(successful);
+        }
+
+        if (metrics != null) {
+            metrics.record(db, route.mTable, values == null ? ProviderMetrics.Operation.DELETE
+                    : ProviderMetrics.Operation.UPDATE, start, count, null, null);
         }
 
         return count;
     }
 
+    /**
+     * Returns <code>_id IN (?, ...)</code> with the given number of arguments, followed by the
+     * optional selection.
+     */
+    private static String buildIdSelection(int count, String selection) {
+        final StringBuilder sql = new StringBuilder(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" AND (").append(selection).append(')');
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Opens the file of a {@link Column#file()} column. The URI addresses the column of a single
+     * row, i.e. <code>/table/id/column</code>. Opening a file for writing creates it if the row
+     * doesn't have one yet. Truncating writes (modes <code>w</code>, <code>wt</code> and
+     * <code>rwt</code>) always get a new file, which replaces the previous one of the row. The
+     * previous file is deleted, but readers that have already opened it can keep reading it.
+     *
+     * @throws FileNotFoundException If the URI doesn't address a file column, if the row doesn't
+     *                               exist or if it has no file and is opened for reading only.
+     */
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        final SelectionBuilder builder = buildBaseQuery(uri);
-        int count = builder.where(selection, selectionArgs).update(mDatabase, values);
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        final List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() != 3) {
+            throw new FileNotFoundException("No file column in " + uri);
+        }
 
-        if (count > 0) {
-            getContentResolver().notifyChange(uri, null);
+        final List<String> row = segments.subList(0, 2);
+        final UriRouter.Route route = route(uri, row);
+        final String column = segments.get(2);
+        if (route.mFileColumns == null || !Arrays.asList(route.mFileColumns).contains(column)) {
+            throw new FileNotFoundException("No file column in " + uri);
+        }
+
+        final int fileMode = parseMode(mode);
+        final File file;
+        if ((fileMode & ParcelFileDescriptor.MODE_WRITE_ONLY) == 0) {
+            final String name = queryFileName(route, row, column);
+            if (name == null) {
+                throw new FileNotFoundException("No file in " + uri);
+            }
+            file = getFile(route, name);
+        } else {
+            file = prepareFile(uri, route, row, column,
+                    (fileMode & ParcelFileDescriptor.MODE_TRUNCATE) != 0);
+        }
+
+        // The file exists, unless it has been replaced in the meantime
+        return ParcelFileDescriptor.open(file, fileMode & ~ParcelFileDescriptor.MODE_CREATE);
+    }
+
+    /**
+     * Returns the file of the given row to write to. A new file is created and stored in the row
+     * if the row has no file yet or if <code>replace</code> is set.
+     */
+    private File prepareFile(Uri uri, UriRouter.Route route, List<String> row, String column,
+                             boolean replace) throws FileNotFoundException {
+        final long rowId;
+        try {
+            rowId = Long.parseLong(row.get(1));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("No row " + row.get(1) + " in " + route.mTable);
+        }
+
+        File created = null;
+        boolean committed = false;
+        try {
+            boolean successful = false;
+            beginBatch(Collections.singletonList(route.mDatabase));
+            try {
+                final String name = queryFileName(route, row, column);
+                if (name != null && !replace) {
+                    successful = true;
+                    return getFile(route, name);
+                }
+
+                final File directory = getFileDirectory(route);
+                if (!directory.mkdirs() && !directory.isDirectory()) {
+                    throw new FileNotFoundException("Could not create " + directory);
+                }
+                try {
+                    created = File.createTempFile(column + "-" + rowId + "-", "", directory);
+                } catch (IOException e) {
+                    throw new FileNotFoundException("Could not create a file in " + directory
+                            + ": " + e.getMessage());
+                }
+
+                final StatementCache.Entry entry = buildBaseQuery(StatementCache.UPDATE, route,
+                        row, null, new String[]{column}, null);
+                final Object[] bindArgs = buildBindArgs(1, row.get(1), null, null);
+                bindArgs[0] = created.getName();
+                entry.executeUpdateDelete(route.mDatabase, bindArgs);
+
+                if (name != null) {
+                    mBatch.get().deleteFile(getFile(route, name));
+                }
+                invalidateRows(route.mRowCache, rowId);
+                notifyChange(uri.buildUpon().path(route.mTable).appendPath(row.get(1)).build());
+
+                successful = true;
+            } finally {
+                endBatch(successful);
+            }
+            committed = true;
+        } finally {
+            if (!committed && created != null && !created.delete()) {
+                Log.w(mLogTag, "Could not delete " + created);
+            }
+        }
+
+        return created;
+    }
+
+    /**
+     * Returns the name of the file stored in the given column of a row.
+     *
+     * @return The name or <code>null</code> if the row has no file.
+     * @throws FileNotFoundException If the row doesn't exist.
+     */
+    private String queryFileName(UriRouter.Route route, List<String> row, String column)
+            throws FileNotFoundException {
+        final StatementCache.Entry entry = buildBaseQuery(StatementCache.QUERY, route, row,
+                null, new String[]{column}, null);
+        final Cursor cursor = getDatabase(route).rawQuery(entry.mSql, new String[]{row.get(1)});
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No row " + row.get(1) + " in " + route.mTable);
+            }
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the files of the selected rows once the current batch has been committed.
+     */
+    private void deleteFiles(UriRouter.Route route, List<String> segments, String selection,
+                             String[] selectionArgs) {
+        final StatementCache.Entry entry = buildBaseQuery(StatementCache.QUERY, route, segments,
+                selection, route.mFileColumns, null);
+        final Batch batch = mBatch.get();
+        final Cursor cursor = getDatabase(route).rawQuery(entry.mSql,
+                buildSelectionArgs(getId(segments), selection, selectionArgs));
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < route.mFileColumns.length; i++) {
+                    final String name = cursor.getString(i);
+                    if (isFileName(name)) {
+                        batch.deleteFile(new File(getFileDirectory(route), name));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Deletes the files of {@link Column#file()} columns that no row refers to anymore, e.g.
+     * because their rows have been deleted by <code>ON DELETE CASCADE</code> or their column has
+     * been dropped by the {@link SchemaMigrator}. Called after the database has been upgraded
+     * or downgraded. Each table is swept within a transaction, so files that are being stored
+     * concurrently are kept.
+     *
+     * @return The number of deleted files.
+     */
+    public int deleteOrphanedFiles() {
+        getDatabase();
+        int count = 0;
+        for (UriRouter.Route route : mRouter.getRoutes()) {
+            if (route.mFileColumns != null) {
+                count += deleteOrphanedFiles(route);
+            }
         }
+        return count;
+    }
+
+    private int deleteOrphanedFiles(UriRouter.Route route) {
+        int count = 0;
+        boolean successful = false;
+        beginBatch(Collections.singletonList(route.mDatabase));
+        try {
+            // Listed within the transaction, so the rows of all listed files have been committed
+            final File[] files = getFileDirectory(route).listFiles();
+            if (files != null && files.length > 0) {
+                final Set<String> names = new HashSet<String>();
+                final Cursor cursor = route.mDatabase.query(route.mTable, route.mFileColumns,
+                        null, null, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        for (int i = 0; i < route.mFileColumns.length; i++) {
+                            names.add(cursor.getString(i));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
 
+                final Batch batch = mBatch.get();
+                for (File file : files) {
+                    if (!names.contains(file.getName())) {
+                        batch.deleteFile(file);
+                        count++;
+                    }
+                }
+            }
+            successful = true;
+        } finally {
+            endBatch(successful);
+        }
         return count;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the values contain a {@link Column#file()} column,
+     *                                  which is only written by {@link #openFile(Uri, String)}.
+     */
+    private static void checkFileColumns(UriRouter.Route route, ContentValues values) {
+        if (route.mFileColumns == null || values == null) {
+            return;
+        }
+
+        for (String column : route.mFileColumns) {
+            if (values.containsKey(column)) {
+                throw new IllegalArgumentException("Column " + column
+                        + " can only be written through openFile()");
+            }
+        }
+    }
+
+    private static File getFileDirectory(UriRouter.Route route) {
+        return new File(route.mDatabase.getPath() + FILES_SUFFIX, route.mTable);
+    }
+
+    /**
+     * @throws FileNotFoundException If the name doesn't denote a file of the table's directory.
+     */
+    private static File getFile(UriRouter.Route route, String name)
+            throws FileNotFoundException {
+        if (!isFileName(name)) {
+            throw new FileNotFoundException("Invalid file name " + name);
+        }
+        return new File(getFileDirectory(route), name);
+    }
+
+    /**
+     * Returns whether the given name denotes a file inside the directory of a table.
+     */
+    private static boolean isFileName(String name) {
+        return !TextUtils.isEmpty(name) && name.indexOf(File.separatorChar) < 0
+                && !".".equals(name) && !"..".equals(name);
+    }
 
+    /**
+     * Same as <code>ParcelFileDescriptor.parseMode()</code>, which requires API level 19.
+     */
+    private static int parseMode(String mode) {
+        if ("r".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_ONLY;
+        } else if ("w".equals(mode) || "wt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+        } else if ("wa".equals(mode)) {
+            return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_APPEND;
+        } else if ("rw".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+        } else if ("rwt".equals(mode)) {
+            return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                    | ParcelFileDescriptor.MODE_TRUNCATE;
+        }
+        throw new IllegalArgumentException("Invalid mode " + mode);
     }
 
+    /**
+     * Applies all operations within a single transaction, unless
+     * {@link #getBatchOptions(ArrayList)} splits the batch into several transactions. Change
+     * notifications are collected and dispatched once after each transaction has been committed.
+     * If a transaction is rolled back, its notifications are not sent at all.
+     */
     @SuppressWarnings("NullableProblems")
     @Override
     public final ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
+        return applyBatch(operations, getBatchOptions(operations));
+    }
+
+    /**
+     * Same as {@link #applyBatch(ArrayList)}, but commits the operations according to the given
+     * options. Use this method to apply large batches from within the same process, e.g. through
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     *
+     * @param options The options or <code>null</code> to apply all operations within a single
+     *                transaction.
+     * @throws OperationApplicationException If an operation fails. Operations that have been
+     *                                       committed before are not rolled back.
+     */
+    public final ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations,
+                                                    BatchOptions options)
+            throws OperationApplicationException {
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
         ContentProviderResult[] result = null;
-        mDatabase.beginTransaction();
         try {
-            result = super.applyBatch(operations);
-            mDatabase.setTransactionSuccessful();
+            if (options == null) {
+                boolean successful = false;
+                beginBatch(getDatabases(operations));
+                try {
+                    result = super.applyBatch(operations);
+                    successful = true;
+                } finally {
+                    endBatch(successful);
+                }
+            } else {
+                result = applyChunkedBatch(operations, options);
+            }
         } finally {
-            mDatabase.endTransaction();
+            // Failed batches are recorded without rows, they take their time as well
+            if (metrics != null) {
+                metrics.record(mDatabase, null, ProviderMetrics.Operation.APPLY_BATCH, start,
+                        countRows(result), null, null);
+            }
         }
         return result;
     }
 
+    /**
+     * Returns the number of rows inserted, updated, deleted or asserted by a batch.
+     */
+    private static int countRows(ContentProviderResult[] results) {
+        if (results == null) {
+            return 0;
+        }
+
+        int rows = 0;
+        for (ContentProviderResult result : results) {
+            if (result.count != null) {
+                rows += result.count;
+            } else if (result.uri != null) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Runs the given writes within a single transaction, so they are committed together and
+     * observers are notified once. Used by {@link AsyncProvider} to commit adjacent writes as a
+     * group.
+     *
+     * @return The results of the writes in order.
+     * @throws Exception The exception of the first write that failed. The whole group has been
+     *                   rolled back.
+     */
+    final Object[] applyGroup(List<? extends Callable<?>> writes) throws Exception {
+        final ProviderMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+
+        final Object[] results = new Object[writes.size()];
+        boolean successful = false;
+        // The tables of the writes are unknown, they join the group once they access a database
+        beginBatch(Collections.<SQLiteDatabase>emptyList());
+        try {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = writes.get(i).call();
+            }
+            successful = true;
+        } finally {
+            endBatch(successful);
+        }
+
+        if (metrics != null) {
+            metrics.record(getDatabase(), null, ProviderMetrics.Operation.GROUP_COMMIT, start,
+                    results.length, null, null);
+        }
+        return results;
+    }
+
+    /**
+     * Returns how a batch passed to {@link #applyBatch(ArrayList)} is committed. Override this
+     * method to split large batches into several transactions, e.g.
+     * <pre>
+     * return operations.size() > 1000 ? new BatchOptions().chunkSize(500) : null;
+     * </pre>
+     *
+     * @return The options or <code>null</code> to apply all operations within a single
+     * transaction, which is the default.
+     */
+    protected BatchOptions getBatchOptions(ArrayList<ContentProviderOperation> operations) {
+        return null;
+    }
+
+    private ContentProviderResult[] applyChunkedBatch(List<ContentProviderOperation> operations,
+                                                      BatchOptions options)
+            throws OperationApplicationException {
+        final int total = operations.size();
+        final int chunkSize = options.getChunkSize() > 0 ? options.getChunkSize() : total;
+        final BatchOptions.ProgressListener listener = options.getProgressListener();
+        final ContentProviderResult[] results = new ContentProviderResult[total];
+
+        final List<SQLiteDatabase> databases = getDatabases(operations);
+        int committed = 0;
+        int yields = 0;
+        long lastCommit = SystemClock.elapsedRealtime();
+        while (committed < total) {
+            final int end = Math.min(committed + chunkSize, total);
+            int index = committed;
+            boolean successful = false;
+            beginBatch(databases);
+            try {
+                for (; index < end; index++) {
+                    final ContentProviderOperation operation = operations.get(index);
+                    if (index > committed && options.isYieldIfContended()
+                            && operation.isYieldAllowed() && yieldBatch()) {
+                        // Everything up to this operation has been committed
+                        committed = index;
+                        yields++;
+                        if (listener != null) {
+                            final long now = SystemClock.elapsedRealtime();
+                            listener.onProgress(committed, total, now - lastCommit);
+                            lastCommit = now;
+                        }
+                    }
+                    results[index] = operation.apply(this, results, index);
+                }
+                successful = true;
+            } catch (OperationApplicationException e) {
+                final ProviderMetrics metrics = mMetrics;
+                if (metrics != null) {
+                    metrics.onFailedBatch(committed, total);
+                }
+                OperationApplicationException failure = new OperationApplicationException(
+                        "Operation " + index + " failed after " + committed
+                                + " committed operations: " + e.getMessage(), yields);
+                failure.initCause(e);
+                throw failure;
+            } finally {
+                endBatch(successful);
+            }
+
+            committed = end;
+            if (listener != null) {
+                final long now = SystemClock.elapsedRealtime();
+                listener.onProgress(committed, total, now - lastCommit);
+                lastCommit = now;
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Commits the current batch if another thread is waiting for one of its databases and
+     * dispatches its notifications. Batches within other transactions can't be committed.
+     *
+     * @return <code>true</code> if the batch has been committed.
+     */
+    private boolean yieldBatch() {
+        final Batch batch = mBatch.get();
+        if (!batch.isOutermost()) {
+            return false;
+        }
+
+        final List<SQLiteDatabase> databases = batch.getDatabases();
+        boolean yielded = false;
+        for (SQLiteDatabase db : databases) {
+            if (db.yieldIfContendedSafely()) {
+                yielded = true;
+            }
+        }
+        if (!yielded) {
+            return false;
+        }
+
+        // Commit the other databases as well, so the notifications only cover committed changes
+        batch.endTransactions(!batch.isFailed());
+        dispatch(batch, true);
+        batch.clear();
+        for (SQLiteDatabase db : databases) {
+            batch.join(db);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the databases of the tables the given operations refer to.
+     *
+     * @see #sortDatabases(Set)
+     */
+    private List<SQLiteDatabase> getDatabases(List<ContentProviderOperation> operations) {
+        final SQLiteDatabase main = getDatabase();
+        if (mDatabases.size() == 1) {
+            return Collections.singletonList(main);
+        }
+
+        final Set<SQLiteDatabase> databases = new HashSet<SQLiteDatabase>();
+        for (ContentProviderOperation operation : operations) {
+            databases.add(findDatabase(operation.getUri()));
+        }
+        return sortDatabases(databases);
+    }
+
+    /**
+     * Returns the database of the table the given URI refers to, or the main database if the
+     * table is unknown. Unlike {@link #route(Uri, List)}, this doesn't reject any URI.
+     */
+    private SQLiteDatabase findDatabase(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final UriRouter.Route route = segments.isEmpty() ? null : mRouter.get(segments.get(0));
+        return route != null ? route.mDatabase : mDatabase;
+    }
+
+    /**
+     * Returns the given databases in the order of {@link #mDatabases}. Threads that need several
+     * databases begin their transactions in this order, so they can't deadlock each other.
+     */
+    private List<SQLiteDatabase> sortDatabases(Set<SQLiteDatabase> databases) {
+        final List<SQLiteDatabase> sorted = new ArrayList<SQLiteDatabase>(databases.size());
+        for (SQLiteDatabase db : mDatabases.values()) {
+            if (databases.contains(db)) {
+                sorted.add(db);
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns whether a change of the given URI should be synced to the network. By default,
+     * changes are synced unless the request has been made with
+     * {@link #QUERY_CALLER_IS_SYNC_ADAPTER} set to <code>true</code>. Override this method to
+     * implement a different policy.
+     *
+     * @param uri The URI that has been used to change the data.
+     * @return The <code>syncToNetwork</code> flag passed to
+     * {@link ContentResolver#notifyChange(Uri, android.database.ContentObserver, boolean)}.
+     */
+    protected boolean syncToNetwork(Uri uri) {
+        return !uri.getBooleanQueryParameter(QUERY_CALLER_IS_SYNC_ADAPTER, false);
+    }
+
+    /**
+     * Removes the changed rows from the row cache of their table. Inserts don't need to
+     * invalidate rows as they can't change existing ones.
+     */
+    private void invalidateRows(UriRouter.Route route, List<String> segments) {
+        Long rowId = null;
+        String id = getId(segments);
+        if (id != null) {
+            try {
+                rowId = Long.parseLong(id);
+            } catch (NumberFormatException e) {
+                // Invalidate all rows
+            }
+        }
+
+        invalidateRows(route.mRowCache, rowId);
+    }
+
+    /**
+     * @param rowId The <code>_id</code> of the changed row or <code>null</code> to invalidate all
+     *              rows of the table.
+     */
+    private void invalidateRows(RowCache rowCache, Long rowId) {
+        if (rowCache == null) {
+            return;
+        }
+
+        if (rowId != null) {
+            rowCache.invalidate(rowId);
+        } else {
+            rowCache.invalidateAll();
+        }
+
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            // Other threads might cache the old rows until the transaction has been committed
+            batch.getNotifications().invalidate(rowCache, rowId);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.getNotifications().add(uri, syncToNetwork(uri));
+        } else {
+            getContentResolver().notifyChange(uri, null, syncToNetwork(uri));
+        }
+    }
+
+    /**
+     * Begins a (possibly nested) batch. Transactions are begun on the given databases and on
+     * any other database once the batch accesses it. They are committed together when the
+     * outermost batch ends.
+     *
+     * @param databases The databases the batch is known to access, in the order of
+     *                  {@link #sortDatabases(Set)}.
+     */
+    private void beginBatch(List<SQLiteDatabase> databases) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.begin();
+
+        try {
+            for (SQLiteDatabase db : databases) {
+                batch.join(db);
+            }
+        } catch (RuntimeException e) {
+            // The caller only ends batches that have begun, so roll back the joined databases
+            endBatch(false);
+            throw e;
+        }
+    }
+
+    private void endBatch(boolean successful) {
+        Batch batch = mBatch.get();
+        boolean committed = false;
+        try {
+            if (batch.isOutermost()) {
+                batch.endTransactions(successful && !batch.isFailed());
+            }
+            committed = true;
+        } finally {
+            if (batch.end(successful && committed)) {
+                mBatch.remove();
+
+                if (!batch.isFailed()) {
+                    dispatch(batch, true);
+                } else if (batch.isPartiallyCommitted()) {
+                    // Observers must not miss the committed changes. Files are kept, as the rows
+                    // referencing them might have been rolled back.
+                    dispatch(batch, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param deleteFiles Whether to delete the files of deleted rows, which must only be done
+     *                    if all changes have been committed.
+     */
+    private void dispatch(Batch batch, boolean deleteFiles) {
+        final NotificationAggregator pending = batch.getNotifications();
+        pending.invalidateRowCaches();
+        if (deleteFiles) {
+            batch.deleteFiles();
+        }
+
+        ContentResolver resolver = getContentResolver();
+        for (Map.Entry<Uri, Boolean> entry : pending.collapse().entrySet()) {
+            resolver.notifyChange(entry.getKey(), null, entry.getValue());
+        }
+    }
+
 }
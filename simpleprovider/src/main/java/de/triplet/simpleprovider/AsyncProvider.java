@@ -0,0 +1,393 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking facade of an {@link AbstractProvider} for callers within the provider's process.
+ * Writes are queued and applied by a single writer thread, so callers never wait for the lock
+ * of the database. Adjacent inserts, updates and deletes are committed within one transaction
+ * (group commit), which saves a journal sync per write and notifies observers once per group.
+ * If a write of a group fails, the group is rolled back and its writes are applied one by one,
+ * so only the failed write fails. Batches are always applied on their own.<br>
+ * <br>
+ * Queries run on a fixed number of reader threads. With write-ahead logging enabled, they use
+ * pooled read connections and don't wait for the writer.<br>
+ * <br>
+ * Each method returns a {@link Future} of its result and optionally calls a {@link Callback} on
+ * the writer or reader thread, which must therefore return quickly. Values passed to a write
+ * must not be modified until it has completed. Cancelling a write only prevents it from being
+ * applied if it hasn't been started yet.
+ *
+ * @see ProviderMetrics.Operation#GROUP_COMMIT
+ */
+public final class AsyncProvider {
+
+    /**
+     * Receives the result of an asynchronous operation.
+     */
+    public interface Callback<T> {
+
+        void onSuccess(T result);
+
+        void onFailure(Exception e);
+
+    }
+
+    private static final String TAG = "AsyncProvider";
+
+    private static final int DEFAULT_READER_THREADS = 2;
+
+    private static final int DEFAULT_MAX_GROUP_SIZE = 64;
+
+    private final AbstractProvider mProvider;
+
+    private final int mMaxGroupSize;
+
+    private final BlockingQueue<Task<?>> mWrites = new LinkedBlockingQueue<Task<?>>();
+
+    private final Task<Void> mShutdownTask = new Task<Void>(new Callable<Void>() {
+
+        @Override
+        public Void call() {
+            return null;
+        }
+
+    }, null, false);
+
+    private final ExecutorService mReaders;
+
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    /**
+     * Guards checking {@link #mShutdown} together with queueing a write, so that no write is
+     * queued behind the shutdown task.
+     */
+    private final Object mShutdownSync = new Object();
+
+    private volatile boolean mShutdown;
+
+    public AsyncProvider(AbstractProvider provider) {
+        this(provider, DEFAULT_READER_THREADS, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    /**
+     * @param readerThreads The number of threads running queries.
+     * @param maxGroupSize  The maximum number of writes committed within one transaction.
+     */
+    public AsyncProvider(AbstractProvider provider, int readerThreads, int maxGroupSize) {
+        if (readerThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of reader threads "
+                    + readerThreads);
+        }
+        if (maxGroupSize <= 0) {
+            throw new IllegalArgumentException("Invalid group size " + maxGroupSize);
+        }
+
+        mProvider = provider;
+        mMaxGroupSize = maxGroupSize;
+        mReaders = Executors.newFixedThreadPool(readerThreads, new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncProvider reader #"
+                        + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runWriter();
+            }
+
+        }, "AsyncProvider writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public Future<Cursor> query(final Uri uri, final String[] projection, final String selection,
+                                final String[] selectionArgs, final String sortOrder,
+                                Callback<Cursor> callback) {
+        final Task<Cursor> task = new Task<Cursor>(new Callable<Cursor>() {
+
+            @Override
+            public Cursor call() {
+                final Cursor cursor = mProvider.query(uri, projection, selection, selectionArgs,
+                        sortOrder);
+                if (cursor != null) {
+                    // Executes the query on this thread instead of the caller's
+                    cursor.getCount();
+                }
+                return cursor;
+            }
+
+        }, callback, false);
+
+        if (mShutdown) {
+            throw new RejectedExecutionException("AsyncProvider has been shut down");
+        }
+        mReaders.execute(task);
+        return task;
+    }
+
+    public Future<Uri> insert(final Uri uri, final ContentValues values,
+                              Callback<Uri> callback) {
+        return enqueue(new Task<Uri>(new Callable<Uri>() {
+
+            @Override
+            public Uri call() {
+                return mProvider.insert(uri, values);
+            }
+
+        }, callback, true));
+    }
+
+    public Future<Integer> update(final Uri uri, final ContentValues values,
+                                  final String selection, final String[] selectionArgs,
+                                  Callback<Integer> callback) {
+        return enqueue(new Task<Integer>(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return mProvider.update(uri, values, selection, selectionArgs);
+            }
+
+        }, callback, true));
+    }
+
+    public Future<Integer> delete(final Uri uri, final String selection,
+                                  final String[] selectionArgs, Callback<Integer> callback) {
+        return enqueue(new Task<Integer>(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                return mProvider.delete(uri, selection, selectionArgs);
+            }
+
+        }, callback, true));
+    }
+
+    /**
+     * Applies the operations using {@link AbstractProvider#applyBatch(ArrayList)}, so the
+     * batch options of the provider apply. Batches are not grouped with other writes.
+     */
+    public Future<ContentProviderResult[]> applyBatch(
+            final ArrayList<ContentProviderOperation> operations,
+            Callback<ContentProviderResult[]> callback) {
+        return enqueue(new Task<ContentProviderResult[]>(
+                new Callable<ContentProviderResult[]>() {
+
+                    @Override
+                    public ContentProviderResult[] call() throws Exception {
+                        return mProvider.applyBatch(operations);
+                    }
+
+                }, callback, false));
+    }
+
+    /**
+     * Returns the number of writes waiting for the writer thread.
+     */
+    public int getQueueDepth() {
+        return mWrites.size();
+    }
+
+    /**
+     * Returns the highest number of writes that have been waiting at the same time.
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Stops accepting new operations. Writes and queries that have already been submitted are
+     * still applied, after which the threads terminate.
+     */
+    public void shutdown() {
+        synchronized (mShutdownSync) {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+            mWrites.add(mShutdownTask);
+        }
+        mReaders.shutdown();
+    }
+
+    private <T> Future<T> enqueue(Task<T> task) {
+        synchronized (mShutdownSync) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("AsyncProvider has been shut down");
+            }
+            mWrites.add(task);
+        }
+
+        final int depth = mWrites.size();
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+        return task;
+    }
+
+    private void runWriter() {
+        final List<Task<?>> group = new ArrayList<Task<?>>();
+        try {
+            while (true) {
+                final Task<?> first;
+                try {
+                    first = mWrites.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first == mShutdownTask) {
+                    return;
+                }
+
+                group.add(first);
+                if (first.mGroupable) {
+                    // This is the only consumer, so the peeked task is the one that is polled
+                    while (group.size() < mMaxGroupSize && mWrites.peek() != null
+                            && mWrites.peek().mGroupable) {
+                        group.add(mWrites.poll());
+                    }
+                    commit(group);
+                } else {
+                    first.run();
+                }
+                group.clear();
+            }
+        } finally {
+            failPendingWrites();
+        }
+    }
+
+    /**
+     * Fails the writes that are still queued once the writer has stopped, so that nobody waits
+     * for them forever.
+     */
+    private void failPendingWrites() {
+        synchronized (mShutdownSync) {
+            mShutdown = true;
+        }
+        Task<?> task;
+        while ((task = mWrites.poll()) != null) {
+            task.fail(new RejectedExecutionException("AsyncProvider has been shut down"));
+        }
+    }
+
+    private void commit(List<Task<?>> group) {
+        final List<Callable<?>> writes = new ArrayList<Callable<?>>(group.size());
+        final List<Task<?>> tasks = new ArrayList<Task<?>>(group.size());
+        for (Task<?> task : group) {
+            if (!task.isDone()) {
+                writes.add(task.mCallable);
+                tasks.add(task);
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        final Object[] results;
+        try {
+            results = mProvider.applyGroup(writes);
+        } catch (Exception e) {
+            // Nothing has been committed, apply the writes separately to find the failed one
+            for (Task<?> task : tasks) {
+                task.run();
+            }
+            return;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            tasks.get(i).complete(results[i]);
+        }
+    }
+
+    private static final class Task<T> extends FutureTask<T> {
+
+        final Callable<T> mCallable;
+
+        final boolean mGroupable;
+
+        private final Callback<T> mCallback;
+
+        Task(Callable<T> callable, Callback<T> callback, boolean groupable) {
+            super(callable);
+            mCallable = callable;
+            mCallback = callback;
+            mGroupable = groupable;
+        }
+
+        /**
+         * Completes this task with the result of its callable, which has been called within a
+         * group that has been committed.
+         */
+        @SuppressWarnings("unchecked")
+        void complete(Object result) {
+            set((T) result);
+        }
+
+        void fail(Exception e) {
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null || isCancelled()) {
+                return;
+            }
+
+            try {
+                notifyCallback();
+            } catch (RuntimeException e) {
+                // Runs on the writer thread, which must survive to complete the other tasks
+                Log.w(TAG, "Callback of " + mCallable + " failed", e);
+            }
+        }
+
+        private void notifyCallback() {
+            final T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                mCallback.onFailure(cause instanceof Exception ? (Exception) cause : e);
+                return;
+            } catch (InterruptedException e) {
+                // The task is done, so get() doesn't block
+                Thread.currentThread().interrupt();
+                return;
+            }
+            mCallback.onSuccess(result);
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+package de.triplet.simpleprovider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a (possibly nested) batch operation of one thread. A batch begins a transaction
+ * on each database it accesses and commits them together once the outermost batch ends. The
+ * changes to dispatch after the commit are collected by its {@link NotificationAggregator}. The
+ * files of deleted rows are kept by the batch itself, as they may only be removed once the rows
+ * are gone for good.
+ * This class is <em>not</em> thread safe, each thread running a batch has to use its own instance.
+ */
+final class Batch {
+
+    private static final String TAG = "Batch";
+
+    private final NotificationAggregator mNotifications = new NotificationAggregator();
+
+    private final List<SQLiteDatabase> mDatabases = new ArrayList<SQLiteDatabase>();
+
+    private final List<File> mDeletedFiles = new ArrayList<File>();
+
+    private int mDepth;
+
+    private boolean mFailed;
+
+    private boolean mPartiallyCommitted;
+
+    void begin() {
+        mDepth++;
+    }
+
+    /**
+     * Closes one (possibly nested) batch.
+     *
+     * @param successful Whether the batch has been marked as successful.
+     * @return <code>true</code> if the outermost batch has been closed.
+     */
+    boolean end(boolean successful) {
+        if (!successful) {
+            // SQLite rolls back the whole transaction if any nested transaction fails
+            mFailed = true;
+        }
+        return --mDepth == 0;
+    }
+
+    boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Returns whether some databases of the batch have been committed before committing another
+     * one failed.
+     */
+    boolean isPartiallyCommitted() {
+        return mPartiallyCommitted;
+    }
+
+    /**
+     * Returns whether only the outermost batch is open, that is, whether the transactions can be
+     * committed.
+     */
+    boolean isOutermost() {
+        return mDepth == 1;
+    }
+
+    NotificationAggregator getNotifications() {
+        return mNotifications;
+    }
+
+    /**
+     * Returns a copy of the databases on which the batch has begun a transaction, in the order
+     * they have been begun.
+     */
+    List<SQLiteDatabase> getDatabases() {
+        return new ArrayList<SQLiteDatabase>(mDatabases);
+    }
+
+    /**
+     * Deletes the given file once the transactions have been committed.
+     *
+     * @see Column#file()
+     */
+    void deleteFile(File file) {
+        mDeletedFiles.add(file);
+    }
+
+    /**
+     * Deletes the files of the committed changes and forgets them.
+     */
+    void deleteFiles() {
+        for (File file : mDeletedFiles) {
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+        mDeletedFiles.clear();
+    }
+
+    /**
+     * Forgets the collected changes after they have been dispatched.
+     */
+    void clear() {
+        mNotifications.clear();
+        mDeletedFiles.clear();
+    }
+
+    /**
+     * Begins a transaction on the given database unless it is already part of the batch.
+     */
+    void join(SQLiteDatabase db) {
+        if (!mDatabases.contains(db)) {
+            db.beginTransaction();
+            mDatabases.add(db);
+        }
+    }
+
+    /**
+     * Commits or rolls back the transactions of all databases of the batch in the order they
+     * have been begun. Databases are committed one after another, so if a commit fails, the
+     * databases committed before keep their changes while the others are rolled back. The batch
+     * is then marked as partially committed, so that its changes are still dispatched.
+     */
+    void endTransactions(boolean successful) {
+        RuntimeException failure = null;
+        boolean committed = false;
+        for (SQLiteDatabase db : mDatabases) {
+            try {
+                final boolean commit = successful && failure == null;
+                if (commit) {
+                    db.setTransactionSuccessful();
+                }
+                db.endTransaction();
+                committed |= commit;
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        mDatabases.clear();
+
+        if (failure != null) {
+            if (committed) {
+                mPartiallyCommitted = true;
+            }
+            throw failure;
+        }
+    }
+
+}
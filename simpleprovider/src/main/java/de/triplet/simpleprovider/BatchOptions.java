@@ -0,0 +1,85 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.OperationApplicationException;
+
+/**
+ * Settings that split a large batch into several transactions, so a long running batch doesn't
+ * hold the write lock of the database the whole time. By default, a batch is applied within a
+ * single transaction.<br>
+ * <br>
+ * Back-references ({@link ContentProviderOperation.Builder#withValueBackReference(String, int)})
+ * keep working across transactions, as the results of all operations are kept until the batch
+ * is done. If an operation fails, only the operations since the last commit are rolled back.
+ * {@link OperationApplicationException#getNumSuccessfulYieldPoints()} returns the number of
+ * successful yields ({@link #yieldIfContended(boolean)}), commits at the end of a chunk don't
+ * count. The number of committed operations, at which the batch can be resumed, is passed to
+ * {@link ProgressListener} and {@link ProviderMetrics#onFailedBatch(int, int)}.
+ *
+ * @see AbstractProvider#applyBatch(java.util.ArrayList, BatchOptions)
+ * @see AbstractProvider#getBatchOptions(java.util.ArrayList)
+ */
+public class BatchOptions {
+
+    /**
+     * Receives the progress of a batch whenever operations have been committed.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param committedOperations The number of operations committed so far.
+         * @param totalOperations     The number of operations of the batch.
+         * @param durationMillis      The time since the previous commit.
+         */
+        void onProgress(int committedOperations, int totalOperations, long durationMillis);
+
+    }
+
+    private int mChunkSize;
+    private boolean mYieldIfContended;
+    private ProgressListener mProgressListener;
+
+    /**
+     * Commits the batch after every <code>chunkSize</code> operations.
+     */
+    public BatchOptions chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+
+        mChunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Commits the batch before operations that allow it
+     * ({@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}) if another thread is
+     * waiting for the database, using
+     * {@link android.database.sqlite.SQLiteDatabase#yieldIfContendedSafely()}.
+     */
+    public BatchOptions yieldIfContended(boolean enabled) {
+        mYieldIfContended = enabled;
+        return this;
+    }
+
+    public BatchOptions progressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * @return The chunk size or <code>0</code> if the batch isn't split into chunks.
+     */
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public boolean isYieldIfContended() {
+        return mYieldIfContended;
+    }
+
+    public ProgressListener getProgressListener() {
+        return mProgressListener;
+    }
+
+}
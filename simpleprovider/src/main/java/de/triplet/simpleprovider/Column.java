@@ -17,6 +17,41 @@ public @interface Column {
 
     boolean unique() default false;
 
+    /**
+     * Whether to create an index on this column. The index is added in the same schema version
+     * as the column.
+     *
+     * @see Table#indices()
+     */
+    boolean index() default false;
+
+    /**
+     * Whether the column holds large values, like long texts or blobs, that should only be read
+     * if they are requested explicitly. Queries without a projection return all other columns.
+     */
+    boolean heavy() default false;
+
+    /**
+     * Whether the column is part of the full-text index of its table, which can be searched
+     * using {@link AbstractProvider#QUERY_SEARCH}. The index requires SQLite 3.7.9, which is
+     * available as of Android 4.1.
+     *
+     * @see Table#fullTextSince()
+     */
+    boolean fullText() default false;
+
+    /**
+     * Whether the values of this column are stored in files next to the database instead of the
+     * table, which only holds the file names. Declare such columns as
+     * {@link FieldType#TEXT TEXT}. The files are read and written through
+     * {@link android.content.ContentResolver#openInputStream(android.net.Uri)} and
+     * {@link android.content.ContentResolver#openOutputStream(android.net.Uri)} using the URI of
+     * the row followed by the name of the column, and are deleted together with their rows.
+     *
+     * @see AbstractProvider#openFile(android.net.Uri, String)
+     */
+    boolean file() default false;
+
     int since() default 1;
 
     enum FieldType {NULL, INTEGER, FLOAT, TEXT, BLOB, REAL}
@@ -0,0 +1,121 @@
+package de.triplet.simpleprovider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Connection settings that are applied whenever the database is opened, before any tables are
+ * created or upgraded. Settings that haven't been set keep the defaults of the platform.<br>
+ * <br>
+ * If write-ahead logging is enabled, queries that aren't part of a transaction run on a pool of
+ * read connections, so they are no longer blocked by concurrent writes. Note that the
+ * <code>PRAGMA</code> settings only apply to the primary connection, which is used for all writes
+ * and transactions. The read connections use the settings of the platform.
+ *
+ * @see AbstractProvider#getDatabaseConfiguration()
+ */
+public class DatabaseConfiguration {
+
+    public enum Synchronous {OFF, NORMAL, FULL}
+
+    public enum TempStore {DEFAULT, FILE, MEMORY}
+
+    private boolean mWriteAheadLogging;
+    private Synchronous mSynchronous;
+    private Integer mCacheSize;
+    private Long mMmapSize;
+    private TempStore mTempStore;
+    private Integer mPageSize;
+
+    /**
+     * Enables write-ahead logging so readers and a writer can access the database concurrently.
+     */
+    public DatabaseConfiguration writeAheadLogging(boolean enabled) {
+        mWriteAheadLogging = enabled;
+        return this;
+    }
+
+    /**
+     * Sets <code>PRAGMA synchronous</code>. {@link Synchronous#NORMAL} is safe in combination
+     * with write-ahead logging and avoids most calls to fsync.
+     */
+    public DatabaseConfiguration synchronous(Synchronous synchronous) {
+        mSynchronous = synchronous;
+        return this;
+    }
+
+    /**
+     * Sets <code>PRAGMA cache_size</code>. Positive values are a number of pages, negative
+     * values a number of KiB.
+     */
+    public DatabaseConfiguration cacheSize(int cacheSize) {
+        mCacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Sets <code>PRAGMA mmap_size</code>, the maximum number of bytes used for memory-mapped
+     * I/O. Ignored by SQLite versions that don't support memory-mapped I/O.
+     */
+    public DatabaseConfiguration mmapSize(long mmapSize) {
+        mMmapSize = mmapSize;
+        return this;
+    }
+
+    /**
+     * Sets <code>PRAGMA temp_store</code>, where temporary tables and indices are stored.
+     */
+    public DatabaseConfiguration tempStore(TempStore tempStore) {
+        mTempStore = tempStore;
+        return this;
+    }
+
+    /**
+     * Sets <code>PRAGMA page_size</code>. The page size can only be changed before the database
+     * has been created, it is ignored for existing databases.
+     */
+    public DatabaseConfiguration pageSize(int pageSize) {
+        mPageSize = pageSize;
+        return this;
+    }
+
+    public boolean isWriteAheadLoggingEnabled() {
+        return mWriteAheadLogging;
+    }
+
+    void apply(SQLiteDatabase db) {
+        // The page size has to be set before write-ahead logging is enabled
+        if (mPageSize != null) {
+            pragma(db, "page_size", mPageSize);
+        }
+
+        // Enabling write-ahead logging resets the synchronous mode, so do it first
+        if (mWriteAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+
+        if (mSynchronous != null) {
+            pragma(db, "synchronous", mSynchronous);
+        }
+        if (mCacheSize != null) {
+            pragma(db, "cache_size", mCacheSize);
+        }
+        if (mMmapSize != null) {
+            pragma(db, "mmap_size", mMmapSize);
+        }
+        if (mTempStore != null) {
+            pragma(db, "temp_store", mTempStore);
+        }
+    }
+
+    private static void pragma(SQLiteDatabase db, String name, Object value) {
+        // Some pragmas return the new value, which SQLiteDatabase#execSQL() doesn't allow
+        Cursor cursor = db.rawQuery("PRAGMA " + name + "=" + value, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package de.triplet.simpleprovider;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index on one or more columns of a table. Indices are declared using
+ * {@link Table#indices()}. Indices on a single column can also be declared using
+ * {@link Column#index()}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface Index {
+
+    /**
+     * The columns of the index. A column may be followed by <code>ASC</code> or
+     * <code>DESC</code>.
+     */
+    String[] columns();
+
+    /**
+     * The name of the index. Defaults to the table name followed by the column names, separated
+     * by underscores.
+     */
+    String name() default "";
+
+    boolean unique() default false;
+
+    /**
+     * Condition of a partial index, e.g. <code>"deleted = 0"</code>. Partial indices require
+     * SQLite 3.8.0, which is available as of Android 5.0.
+     */
+    String where() default "";
+
+    /**
+     * The schema version the index has been added in. An index is never created before all of
+     * its columns have been added.
+     */
+    int since() default 1;
+
+}
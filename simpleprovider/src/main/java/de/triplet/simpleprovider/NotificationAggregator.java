@@ -0,0 +1,128 @@
+package de.triplet.simpleprovider;
+
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the URIs that have been changed while a batch operation is running so observers can be
+ * notified once after the transaction has been committed. Changed rows of row caches are collected
+ * as well, as they have to be invalidated again once the changes are visible to other threads.
+ * This class is <em>not</em> thread safe, each thread running a batch has to use its own instance.
+ */
+final class NotificationAggregator {
+
+    /**
+     * Maximum number of row URIs per table that are dispatched individually. If more rows of a
+     * table have been changed, a single notification for the table URI is sent instead.
+     */
+    static final int MAX_ROW_URIS = 10;
+
+    private final Map<Uri, Boolean> mUris = new LinkedHashMap<Uri, Boolean>();
+
+    /**
+     * Invalidated row ids per cache, <code>null</code> if all rows have been invalidated.
+     */
+    private final Map<RowCache, Set<Long>> mInvalidations = new HashMap<RowCache, Set<Long>>();
+
+    /**
+     * Forgets all collected changes after they have been dispatched.
+     */
+    void clear() {
+        mUris.clear();
+        mInvalidations.clear();
+    }
+
+    void add(Uri uri, boolean syncToNetwork) {
+        Uri key = uri.buildUpon().clearQuery().fragment(null).build();
+        put(mUris, key, syncToNetwork);
+    }
+
+    /**
+     * @param rowId The changed row or <code>null</code> if any row might have been changed.
+     */
+    void invalidate(RowCache rowCache, Long rowId) {
+        Set<Long> rowIds = mInvalidations.get(rowCache);
+        if (rowIds == null && mInvalidations.containsKey(rowCache)) {
+            // All rows will be invalidated anyway
+            return;
+        }
+
+        if (rowId == null) {
+            mInvalidations.put(rowCache, null);
+        } else {
+            if (rowIds == null) {
+                rowIds = new HashSet<Long>();
+                mInvalidations.put(rowCache, rowIds);
+            }
+            rowIds.add(rowId);
+        }
+    }
+
+    void invalidateRowCaches() {
+        for (Map.Entry<RowCache, Set<Long>> entry : mInvalidations.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.getKey().invalidateAll();
+            } else {
+                for (Long rowId : entry.getValue()) {
+                    entry.getKey().invalidate(rowId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the smallest set of URIs that covers all collected changes. Row URIs are replaced
+     * by the URI of their table if the table URI has been changed itself or if there are more
+     * than {@link #MAX_ROW_URIS} changed rows in the table. A collapsed URI is synced to the
+     * network if any of the URIs it replaces requested so.
+     *
+     * @return The URIs to notify mapped to their <code>syncToNetwork</code> flag.
+     */
+    Map<Uri, Boolean> collapse() {
+        Map<Uri, Integer> rowCounts = new HashMap<Uri, Integer>();
+        for (Uri uri : mUris.keySet()) {
+            Uri table = getTableUri(uri);
+            if (table != null && !table.equals(uri)) {
+                Integer count = rowCounts.get(table);
+                rowCounts.put(table, count == null ? 1 : count + 1);
+            }
+        }
+
+        Map<Uri, Boolean> result = new LinkedHashMap<Uri, Boolean>();
+        for (Map.Entry<Uri, Boolean> entry : mUris.entrySet()) {
+            Uri uri = entry.getKey();
+            Uri table = getTableUri(uri);
+            if (table != null && (mUris.containsKey(table) || rowCounts.get(table) > MAX_ROW_URIS)) {
+                uri = table;
+            }
+            put(result, uri, entry.getValue());
+        }
+
+        return result;
+    }
+
+    private static void put(Map<Uri, Boolean> uris, Uri uri, boolean syncToNetwork) {
+        Boolean previous = uris.get(uri);
+        uris.put(uri, syncToNetwork || (previous != null && previous));
+    }
+
+    private static Uri getTableUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() < 2) {
+            return null;
+        }
+
+        return new Uri.Builder()
+                .scheme(uri.getScheme())
+                .encodedAuthority(uri.getEncodedAuthority())
+                .appendPath(segments.get(0))
+                .build();
+    }
+
+}
@@ -0,0 +1,164 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over all rows of a table in pages of a fixed size, ordered by <code>_id</code>. Each
+ * page is requested using {@link AbstractProvider#QUERY_AFTER} and
+ * {@link AbstractProvider#QUERY_LIMIT}, so each page costs the same no matter how large the
+ * table is, and only a single page is held in memory at a time.<br>
+ * <br>
+ * A page is closed as soon as {@link #hasNext()} or {@link #next()} is called again. Call
+ * {@link #close()} if the iteration is stopped early.
+ *
+ * <pre>
+ * PageIterator pages = new PageIterator(resolver, uri, null, null, null, 500);
+ * while (pages.hasNext()) {
+ *     Cursor page = pages.next();
+ *     while (page.moveToNext()) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class PageIterator implements Iterator<Cursor> {
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final int mPageSize;
+
+    private Cursor mPage;
+    private Cursor mNextPage;
+    private long mLastId;
+    private boolean mStarted;
+    private boolean mFinished;
+
+    /**
+     * @param uri        The URI of the table.
+     * @param projection The columns to return, which must include <code>_id</code>, or
+     *                   <code>null</code> for all columns.
+     * @param pageSize   The maximum number of rows per page.
+     */
+    public PageIterator(ContentResolver resolver, Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        }
+
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Returns the URI of the page after the row with the given <code>_id</code>.
+     *
+     * @param uri      The URI of the table.
+     * @param after    The <code>_id</code> of the last row of the previous page or
+     *                 <code>null</code> for the first page.
+     * @param pageSize The maximum number of rows of the page.
+     */
+    public static Uri getPageUri(Uri uri, Long after, int pageSize) {
+        Uri.Builder builder = uri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, Integer.toString(pageSize));
+        if (after != null) {
+            builder.appendQueryParameter(AbstractProvider.QUERY_AFTER, after.toString());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNextPage == null) {
+            closePage();
+            if (!mFinished) {
+                mNextPage = loadNextPage();
+            }
+        }
+        return mNextPage != null;
+    }
+
+    /**
+     * Returns the next page and closes the previous one.
+     */
+    @Override
+    public Cursor next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        mPage = mNextPage;
+        mNextPage = null;
+        return mPage;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the current page and stops the iteration.
+     */
+    public void close() {
+        closePage();
+        if (mNextPage != null) {
+            mNextPage.close();
+            mNextPage = null;
+        }
+        mFinished = true;
+    }
+
+    private Cursor loadNextPage() {
+        Uri uri = getPageUri(mUri, mStarted ? mLastId : null, mPageSize);
+        mStarted = true;
+
+        Cursor cursor = mResolver.query(uri, mProjection, mSelection, mSelectionArgs,
+                BaseColumns._ID);
+        if (cursor == null) {
+            mFinished = true;
+            return null;
+        }
+
+        int count = cursor.getCount();
+        if (count < mPageSize) {
+            mFinished = true;
+        }
+        if (count == 0) {
+            cursor.close();
+            return null;
+        }
+
+        int idColumn = cursor.getColumnIndex(BaseColumns._ID);
+        if (idColumn < 0) {
+            cursor.close();
+            throw new IllegalArgumentException("The projection must include " + BaseColumns._ID);
+        }
+
+        // Remember where the next page starts, as the caller may close this page or move it
+        cursor.moveToLast();
+        mLastId = cursor.getLong(idColumn);
+        cursor.moveToPosition(-1);
+        return cursor;
+    }
+
+    private void closePage() {
+        if (mPage != null) {
+            mPage.close();
+            mPage = null;
+        }
+    }
+
+}
@@ -0,0 +1,330 @@
+package de.triplet.simpleprovider;
+
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the latency and the number of rows of each operation of an {@link AbstractProvider}
+ * per table and operation, and logs operations that are slower than a threshold. Override
+ * {@link #onOperation(String, Operation, long, int)} or
+ * {@link #onSlowOperation(String, Operation, long, String, String)} to export the data and
+ * {@link #onFailedBatch(int, int)} to learn where a failed {@link BatchOptions batch} can be
+ * resumed.<br>
+ * <br>
+ * SQLite executes a query when its cursor is first accessed. Queries are therefore recorded at
+ * that point, measuring the time spent in the provider and the execution but not the time in
+ * between, so the metrics don't change when the query is executed. Queries whose cursors are
+ * closed without being accessed are recorded without rows.
+ *
+ * @see AbstractProvider#setMetrics(ProviderMetrics)
+ */
+public class ProviderMetrics {
+
+    /**
+     * The operations that are measured. {@link #GROUP_COMMIT} is a transaction of
+     * {@link AsyncProvider} that committed several writes, its row count is the number of writes.
+     */
+    public enum Operation {
+        QUERY, INSERT, BULK_INSERT, UPDATE, DELETE, APPLY_BATCH, UPGRADE, GROUP_COMMIT
+    }
+
+    /**
+     * Table name used for operations that aren't bound to a single table, i.e.
+     * {@link Operation#APPLY_BATCH}, {@link Operation#UPGRADE} and
+     * {@link Operation#GROUP_COMMIT}.
+     */
+    public static final String ALL_TABLES = "*";
+
+    private static final String TAG = "ProviderMetrics";
+
+    private final ConcurrentMap<String, Stats[]> mStats =
+            new ConcurrentHashMap<String, Stats[]>();
+
+    private volatile long mSlowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private volatile boolean mExplainSlowQueries;
+
+    /**
+     * Sets the duration above which operations are passed to
+     * {@link #onSlowOperation(String, Operation, long, String, String)}. Defaults to 100 ms.
+     */
+    public ProviderMetrics slowOperationThreshold(long millis) {
+        mSlowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * Runs <code>EXPLAIN QUERY PLAN</code> for slow queries, which shows whether the query uses
+     * an index. Disabled by default.
+     */
+    public ProviderMetrics explainSlowQueries(boolean enabled) {
+        mExplainSlowQueries = enabled;
+        return this;
+    }
+
+    /**
+     * Returns the latencies of the given operation on the given table.
+     */
+    public LatencyHistogram getHistogram(String table, Operation operation) {
+        return getStats(table, operation).mHistogram;
+    }
+
+    /**
+     * Returns the total number of rows returned or affected by the given operation on the given
+     * table.
+     */
+    public long getRowCount(String table, Operation operation) {
+        return getStats(table, operation).mRows.get();
+    }
+
+    /**
+     * Returns the names of all tables operations have been recorded for.
+     */
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(mStats.keySet());
+    }
+
+    /**
+     * Called after each operation. Records the latency and the number of rows by default.
+     *
+     * @param table         The name of the table or {@link #ALL_TABLES}.
+     * @param durationNanos The duration of the operation.
+     * @param rows          The number of rows returned or affected.
+     */
+    protected void onOperation(String table, Operation operation, long durationNanos, int rows) {
+        Stats stats = getStats(table, operation);
+        stats.mHistogram.record(durationNanos);
+        stats.mRows.addAndGet(rows);
+    }
+
+    /**
+     * Called after each operation that took longer than the slow operation threshold. Logs the
+     * operation as a warning by default.
+     *
+     * @param sql       The SQL and its arguments or <code>null</code> if not available.
+     * @param queryPlan The output of <code>EXPLAIN QUERY PLAN</code> or <code>null</code>.
+     */
+    protected void onSlowOperation(String table, Operation operation, long durationNanos,
+                                   String sql, String queryPlan) {
+        Log.w(TAG, "Slow " + operation + " on " + table + " took "
+                + TimeUnit.NANOSECONDS.toMillis(durationNanos) + " ms"
+                + (sql != null ? ": " + sql : "")
+                + (queryPlan != null ? "\n" + queryPlan : ""));
+    }
+
+    /**
+     * Called when a batch applied with {@link BatchOptions} fails. The operations committed
+     * before are not rolled back, so the batch can be resumed at the first operation that hasn't
+     * been committed. Logs the failure as a warning by default.
+     *
+     * @param committedOperations The number of operations that have been committed.
+     * @param totalOperations     The number of operations of the batch.
+     */
+    protected void onFailedBatch(int committedOperations, int totalOperations) {
+        Log.w(TAG, "Batch failed after " + committedOperations + " of " + totalOperations
+                + " operations have been committed");
+    }
+
+    void record(SQLiteDatabase db, String table, Operation operation, long startNanos, int rows,
+                String sql, Object[] args) {
+        recordDuration(db, table, operation, System.nanoTime() - startNanos, rows, sql, args);
+    }
+
+    /**
+     * Returns a cursor that records the query once it has been executed by the first access.
+     *
+     * @param startNanos When the query has been started by the provider.
+     */
+    Cursor recordQuery(Cursor cursor, SQLiteDatabase db, String table, long startNanos,
+                       String sql, Object[] args) {
+        return new RecordingCursor(cursor, db, table, System.nanoTime() - startNanos, sql, args);
+    }
+
+    private void recordDuration(SQLiteDatabase db, String table, Operation operation,
+                                long durationNanos, int rows, String sql, Object[] args) {
+        if (table == null) {
+            table = ALL_TABLES;
+        }
+
+        onOperation(table, operation, durationNanos, rows);
+
+        if (durationNanos > mSlowThresholdNanos) {
+            String queryPlan = null;
+            if (mExplainSlowQueries && operation == Operation.QUERY && sql != null) {
+                queryPlan = explain(db, sql, args);
+            }
+            if (sql != null && args != null && args.length > 0) {
+                sql += ", args=" + Arrays.deepToString(args);
+            }
+            onSlowOperation(table, operation, durationNanos, sql, queryPlan);
+        }
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, Object[] args) {
+        String[] selectionArgs = null;
+        if (args != null) {
+            selectionArgs = new String[args.length];
+            for (int i = 0; i < args.length; i++) {
+                selectionArgs[i] = String.valueOf(args[i]);
+            }
+        }
+
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detail = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+
+    private Stats getStats(String table, Operation operation) {
+        Stats[] stats = mStats.get(table);
+        if (stats == null) {
+            stats = new Stats[Operation.values().length];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new Stats();
+            }
+
+            Stats[] previous = mStats.putIfAbsent(table, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        return stats[operation.ordinal()];
+    }
+
+    /**
+     * Records its query on the first access that executes it, or when it is closed.
+     */
+    private final class RecordingCursor extends CrossProcessCursorWrapper {
+
+        private final SQLiteDatabase mDatabase;
+        private final String mTable;
+        private final String mSql;
+        private final Object[] mArgs;
+
+        /**
+         * The time spent in the provider, or -1 once the query has been recorded.
+         */
+        private long mDurationNanos;
+
+        RecordingCursor(Cursor cursor, SQLiteDatabase db, String table, long durationNanos,
+                        String sql, Object[] args) {
+            super(cursor);
+            mDatabase = db;
+            mTable = table;
+            mDurationNanos = durationNanos;
+            mSql = sql;
+            mArgs = args;
+        }
+
+        private void recordExecution() {
+            if (mDurationNanos >= 0) {
+                final long start = System.nanoTime();
+                final int rows = super.getCount();
+                recordDuration(mDatabase, mTable, Operation.QUERY,
+                        mDurationNanos + System.nanoTime() - start, rows, mSql, mArgs);
+                mDurationNanos = -1;
+            }
+        }
+
+        @Override
+        public int getCount() {
+            recordExecution();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            recordExecution();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            recordExecution();
+            return super.move(offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            recordExecution();
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            recordExecution();
+            return super.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            recordExecution();
+            return super.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            recordExecution();
+            return super.moveToPrevious();
+        }
+
+        @Override
+        public boolean isLast() {
+            recordExecution();
+            return super.isLast();
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            recordExecution();
+            return super.isAfterLast();
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            recordExecution();
+            super.fillWindow(position, window);
+        }
+
+        @Override
+        public void close() {
+            if (mDurationNanos >= 0 && !isClosed()) {
+                // The query has never been executed
+                recordDuration(mDatabase, mTable, Operation.QUERY, mDurationNanos, 0, mSql,
+                        mArgs);
+                mDurationNanos = -1;
+            }
+            super.close();
+        }
+
+    }
+
+    private static final class Stats {
+
+        final LatencyHistogram mHistogram = new LatencyHistogram();
+        final AtomicLong mRows = new AtomicLong();
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package de.triplet.simpleprovider;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Schema} that reads the {@link Table} and {@link Column} annotations via reflection. Used
+ * if no schema has been generated at compile time.
+ */
+final class ReflectionSchema extends Schema {
+
+    ReflectionSchema(Class<?> tableClass) {
+        for (Class<?> clazz : tableClass.getClasses()) {
+            Table table = clazz.getAnnotation(Table.class);
+            if (table != null) {
+                String tableName = Utils.getTableName(clazz, table);
+                addTable(tableName, table.since(), table.rowCacheSize(), table.fullTextSince(),
+                        clazz);
+                if (table.database().length() > 0) {
+                    setDatabase(tableName, table.database());
+                }
+                for (Index index : table.indices()) {
+                    addIndex(tableName, index.name(), index.columns(), index.unique(),
+                            index.where(), index.since());
+
+                    // Partial indices only apply to some rows and can't be a conflict target
+                    if (index.unique() && TextUtils.isEmpty(index.where())) {
+                        addUniqueKey(tableName, index.columns());
+                    }
+                }
+            }
+        }
+    }
+
+    private void addTable(String tableName, int since, int rowCacheSize, int fullTextSince,
+                          Class<?> tableClass) {
+        List<String> names = new ArrayList<String>();
+        List<Column> columns = new ArrayList<Column>();
+        List<String> constraints = new ArrayList<String>();
+        for (Field field : tableClass.getFields()) {
+            Column column = field.getAnnotation(Column.class);
+            if (column != null) {
+                try {
+                    String constraint = Utils.getColumnConstraint(field, column);
+                    names.add(String.valueOf(field.get(null)));
+                    columns.add(column);
+                    constraints.add(constraint);
+                } catch (Exception e) {
+                    Log.e("SimpleSQLHelper", "Error accessing " + field, e);
+                }
+            }
+        }
+
+        addTable(tableName, since, rowCacheSize,
+                "CREATE TABLE " + tableName + " (" + TextUtils.join(", ", constraints) + ");");
+
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            addColumn(tableName, names.get(i), column.value(), column.since(), column.heavy(),
+                    "ALTER TABLE " + tableName + " ADD COLUMN " + constraints.get(i) + ";");
+        }
+
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            if (column.index()) {
+                addIndex(tableName, "", new String[]{names.get(i)}, false, "", column.since());
+            }
+        }
+
+        List<String> fullTextColumns = new ArrayList<String>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).fullText()) {
+                fullTextColumns.add(names.get(i));
+            }
+        }
+        if (!fullTextColumns.isEmpty()) {
+            addFullTextIndex(tableName,
+                    fullTextColumns.toArray(new String[fullTextColumns.size()]), fullTextSince);
+        }
+
+        List<String> fileColumns = new ArrayList<String>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).file()) {
+                fileColumns.add(names.get(i));
+            }
+        }
+        if (!fileColumns.isEmpty()) {
+            setFileColumns(tableName, fileColumns.toArray(new String[fileColumns.size()]));
+        }
+
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).primaryKey()) {
+                addUniqueKey(tableName, new String[]{names.get(i)});
+            }
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).unique() && !columns.get(i).primaryKey()) {
+                addUniqueKey(tableName, new String[]{names.get(i)});
+            }
+        }
+    }
+
+    private void addIndex(String tableName, String name, String[] columns, boolean unique,
+                          String where, int since) {
+        if (TextUtils.isEmpty(name)) {
+            name = Utils.getIndexName(tableName, columns);
+        }
+        addIndex(tableName, name, columns, since,
+                Utils.getIndexStatement(tableName, name, columns, unique, where));
+    }
+
+}
@@ -0,0 +1,168 @@
+package de.triplet.simpleprovider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+/**
+ * Bounded LRU cache of complete rows of a single table, keyed by <code>_id</code>.
+ * <code>AbstractProvider</code> uses it to answer queries for a single row without accessing the
+ * database. Rows are copied when they are cached and when they are returned, so cached rows
+ * can't be modified.<br>
+ * <br>
+ * Each invalidation increments the version of the cache. Rows that have been read from the
+ * database before an invalidation are not added to the cache, so a concurrent write can't be
+ * overwritten by the old state of the row.
+ *
+ * @see Table#rowCacheSize()
+ * @see AbstractProvider#getRowCache(String)
+ */
+public final class RowCache {
+
+    private final LruCache<Long, Row> mCache;
+
+    private int mVersion;
+
+    RowCache(int maxSize) {
+        mCache = new LruCache<Long, Row>(maxSize);
+    }
+
+    Row get(long id) {
+        return mCache.get(id);
+    }
+
+    synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Adds a row unless the cache has been invalidated since <code>version</code>.
+     */
+    synchronized void put(long id, Row row, int version) {
+        if (version == mVersion) {
+            mCache.put(id, row);
+        }
+    }
+
+    /**
+     * Removes the row with the given <code>_id</code> from the cache.
+     */
+    public synchronized void invalidate(long id) {
+        mVersion++;
+        mCache.remove(id);
+    }
+
+    /**
+     * Removes all rows from the cache.
+     */
+    public synchronized void invalidateAll() {
+        mVersion++;
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of queries that have been answered from the cache.
+     */
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * Returns the number of queries that had to read the row from the database.
+     */
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * Returns the number of rows that have been evicted because the cache was full.
+     */
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return mCache.toString();
+    }
+
+    /**
+     * Immutable copy of all columns of a row.
+     */
+    static final class Row {
+
+        private final String[] mColumns;
+        private final Object[] mValues;
+
+        /**
+         * Copies the current row of the given cursor.
+         */
+        Row(Cursor cursor) {
+            mColumns = cursor.getColumnNames();
+            mValues = new Object[mColumns.length];
+            for (int i = 0; i < mValues.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        mValues[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        mValues[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        mValues[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        mValues[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        mValues[i] = null;
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Returns a cursor containing the given columns of this row.
+         *
+         * @param projection The columns to return or <code>null</code> for all columns.
+         * @return The cursor or <code>null</code> if the projection contains anything but
+         * column names of this row.
+         */
+        Cursor toCursor(String[] projection) {
+            final String[] columns = projection != null ? projection : mColumns;
+            final Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                final int index = indexOf(columns[i]);
+                if (index < 0) {
+                    return null;
+                }
+
+                values[i] = mValues[index] instanceof byte[]
+                        ? ((byte[]) mValues[index]).clone() : mValues[index];
+            }
+
+            final MatrixCursor cursor = new MatrixCursor(columns, 1);
+            cursor.addRow(values);
+            return cursor;
+        }
+
+        private int indexOf(String column) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equalsIgnoreCase(column)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,571 @@
+package de.triplet.simpleprovider;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Describes the tables and columns that have been declared using {@link Table} and
+ * {@link Column} annotations inside a provider or {@link SimpleSQLHelper}, together with the
+ * statements needed to create and upgrade them.<br>
+ * <br>
+ * Subclasses are generated at compile time by the <code>simpleprovider-compiler</code>
+ * annotation processor. If no generated class can be found, the schema is read via reflection
+ * instead.<br>
+ * <br>
+ * Schemas are immutable once they have been constructed, so a single instance per class is
+ * shared by all providers and helpers of the process.
+ *
+ * @see #forClass(Class)
+ */
+public abstract class Schema {
+
+    /**
+     * Suffix appended to the name of the class that declares the tables to get the name of the
+     * generated schema class.
+     */
+    public static final String SUFFIX = "$$Schema";
+
+    /**
+     * Suffix appended to the name of a table to get the name of its full-text index.
+     */
+    public static final String FULL_TEXT_SUFFIX = "_fts";
+
+    private static final String[] TRIGGER_SUFFIXES = {"_ai", "_bu", "_au", "_bd"};
+
+    private static final ConcurrentMap<Class<?>, Schema> sSchemas =
+            new ConcurrentHashMap<Class<?>, Schema>();
+
+    private final Map<String, TableInfo> mTables = new LinkedHashMap<String, TableInfo>();
+
+    protected Schema() {
+    }
+
+    /**
+     * Returns the generated schema for the given class or falls back to reading the annotations
+     * via reflection if no schema has been generated. Each schema is only loaded once per
+     * process, later calls return the same instance.
+     *
+     * @param tableClass The class declaring the tables as inner classes.
+     * @return The schema of <code>tableClass</code>.
+     */
+    public static Schema forClass(Class<?> tableClass) {
+        Schema schema = sSchemas.get(tableClass);
+        if (schema == null) {
+            // Concurrent callers might both load the schema, but only one instance is kept
+            schema = load(tableClass);
+            final Schema previous = sSchemas.putIfAbsent(tableClass, schema);
+            if (previous != null) {
+                schema = previous;
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Same as {@link #forClass(Class)}, but loads the schema again instead of returning the one
+     * that has been loaded before.
+     */
+    static Schema load(Class<?> tableClass) {
+        try {
+            Class<?> schemaClass = Class.forName(tableClass.getName() + SUFFIX, true,
+                    tableClass.getClassLoader());
+            return (Schema) schemaClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            // No annotation processor has been run for this class
+        } catch (Exception e) {
+            Log.w("Schema", "Error instantiating generated schema for " + tableClass, e);
+        }
+
+        return new ReflectionSchema(tableClass);
+    }
+
+    /**
+     * Registers a table. Tables must be registered before their columns.
+     *
+     * @param name            The name of the table.
+     * @param since           The schema version the table has been added in.
+     * @param createStatement The statement that creates the table with all its columns.
+     */
+    protected final void addTable(String name, int since, String createStatement) {
+        addTable(name, since, 0, createStatement);
+    }
+
+    /**
+     * Registers a table. Tables must be registered before their columns.
+     *
+     * @param name            The name of the table.
+     * @param since           The schema version the table has been added in.
+     * @param rowCacheSize    The number of rows to cache, see {@link Table#rowCacheSize()}.
+     * @param createStatement The statement that creates the table with all its columns.
+     */
+    protected final void addTable(String name, int since, int rowCacheSize,
+                                  String createStatement) {
+        mTables.put(name, new TableInfo(since, rowCacheSize, createStatement));
+    }
+
+    /**
+     * Registers a column of a previously registered table.
+     *
+     * @param table          The name of the table.
+     * @param name           The name of the column.
+     * @param type           The type of the column.
+     * @param since          The schema version the column has been added in.
+     * @param alterStatement The statement that adds the column to an existing table.
+     */
+    protected final void addColumn(String table, String name, Column.FieldType type, int since,
+                                   String alterStatement) {
+        addColumn(table, name, type, since, false, alterStatement);
+    }
+
+    /**
+     * Registers a column of a previously registered table.
+     *
+     * @param table          The name of the table.
+     * @param name           The name of the column.
+     * @param type           The type of the column.
+     * @param since          The schema version the column has been added in.
+     * @param heavy          Whether the column is excluded from the default projection, see
+     *                       {@link Column#heavy()}.
+     * @param alterStatement The statement that adds the column to an existing table.
+     */
+    protected final void addColumn(String table, String name, Column.FieldType type, int since,
+                                   boolean heavy, String alterStatement) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        if (heavy) {
+            info.mHeavyColumns.add(name);
+        }
+        info.mColumnTypes.put(name, type);
+        info.mColumnSince.add(since);
+        info.mAlterStatements.add(alterStatement);
+    }
+
+    /**
+     * Registers an index of a previously registered table. Columns of the index must have been
+     * registered before.
+     *
+     * @param table           The name of the table.
+     * @param name            The name of the index.
+     * @param columns         The columns of the index, optionally followed by <code>ASC</code> or
+     *                        <code>DESC</code>.
+     * @param since           The schema version the index has been added in.
+     * @param createStatement The statement that creates the index.
+     */
+    protected final void addIndex(String table, String name, String[] columns, int since,
+                                  String createStatement) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        // The index can't be created before all of its columns exist
+        List<String> columnNames = new ArrayList<String>(info.mColumnTypes.keySet());
+        for (String column : columns) {
+            int index = columnNames.indexOf(column.trim().split("\\s+")[0]);
+            if (index >= 0) {
+                since = Math.max(since, info.mColumnSince.get(index));
+            }
+        }
+
+        info.mIndexNames.add(name);
+        info.mIndexSince.add(since);
+        info.mIndexStatements.add(createStatement);
+    }
+
+    /**
+     * Registers a unique key of a previously registered table, that is, its primary key, a
+     * unique column or the columns of a unique index. Keys should be registered in that order,
+     * as the first key is the default conflict target of upserts.
+     *
+     * @param table   The name of the table.
+     * @param columns The columns of the key, optionally followed by <code>ASC</code> or
+     *                <code>DESC</code>.
+     */
+    protected final void addUniqueKey(String table, String[] columns) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        String[] key = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = columns[i].trim().split("\\s+")[0];
+        }
+        info.mUniqueKeys.add(key);
+    }
+
+    /**
+     * Registers the full-text index of a previously registered table. Columns of the index must
+     * have been registered before.
+     *
+     * @param table   The name of the table.
+     * @param columns The columns of the index.
+     * @param since   The schema version the index has been added in, see
+     *                {@link Table#fullTextSince()}.
+     */
+    protected final void addFullTextIndex(String table, String[] columns, int since) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        // The index is created again whenever one of its columns is added
+        List<String> columnNames = new ArrayList<String>(info.mColumnTypes.keySet());
+        for (String column : columns) {
+            int index = columnNames.indexOf(column);
+            if (index >= 0) {
+                since = Math.max(since, info.mColumnSince.get(index));
+            }
+        }
+
+        info.mFullTextColumns = columns.clone();
+        info.mFullTextSince = since;
+    }
+
+    /**
+     * Places a previously registered table in a separate database file.
+     *
+     * @param table    The name of the table.
+     * @param database The name of the database, see {@link Table#database()}.
+     */
+    protected final void setDatabase(String table, String database) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        info.mDatabase = database;
+    }
+
+    /**
+     * Stores the values of columns of a previously registered table in files.
+     *
+     * @param table   The name of the table.
+     * @param columns The columns, see {@link Column#file()}.
+     */
+    protected final void setFileColumns(String table, String[] columns) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalStateException("Table " + table + " has not been added");
+        }
+
+        info.mFileColumns = columns.clone();
+    }
+
+    /**
+     * Returns the names of all tables in order of declaration.
+     */
+    public List<String> getTableNames() {
+        return new ArrayList<String>(mTables.keySet());
+    }
+
+    /**
+     * Returns the schema version the given table has been added in.
+     */
+    public int getSince(String table) {
+        return getTable(table).mSince;
+    }
+
+    /**
+     * Returns the name of the database the given table is stored in.
+     *
+     * @return The name or an empty string for the main database of the provider.
+     * @see Table#database()
+     */
+    public String getDatabase(String table) {
+        return getTable(table).mDatabase;
+    }
+
+    /**
+     * Returns the names of all databases besides the main database in order of their first
+     * table.
+     */
+    public List<String> getDatabaseNames() {
+        List<String> names = new ArrayList<String>();
+        for (TableInfo info : mTables.values()) {
+            if (info.mDatabase.length() > 0 && !names.contains(info.mDatabase)) {
+                names.add(info.mDatabase);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns a schema of the tables stored in the given database.
+     *
+     * @param database The name of the database or an empty string for the main database.
+     */
+    Schema forDatabase(String database) {
+        final Schema schema = new Schema() {
+        };
+        for (Map.Entry<String, TableInfo> entry : mTables.entrySet()) {
+            if (entry.getValue().mDatabase.equals(database)) {
+                schema.mTables.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Returns the number of rows of the given table that should be cached.
+     */
+    public int getRowCacheSize(String table) {
+        return getTable(table).mRowCacheSize;
+    }
+
+    /**
+     * Returns the <code>CREATE TABLE</code> statement of the given table.
+     */
+    public String getCreateStatement(String table) {
+        return getTable(table).mCreateStatement;
+    }
+
+    /**
+     * Returns the names and types of all columns of the given table in order of declaration.
+     */
+    public Map<String, Column.FieldType> getColumnTypes(String table) {
+        return Collections.unmodifiableMap(getTable(table).mColumnTypes);
+    }
+
+    /**
+     * Returns the columns returned by queries of the given table without a projection, that is,
+     * all columns that are not {@link Column#heavy()}.
+     *
+     * @return The columns in order of declaration or <code>null</code> if the table has no heavy
+     * columns, so all columns are returned.
+     */
+    public String[] getDefaultProjection(String table) {
+        TableInfo info = getTable(table);
+        if (info.mHeavyColumns.isEmpty()) {
+            return null;
+        }
+
+        List<String> columns = new ArrayList<String>();
+        for (String column : info.mColumnTypes.keySet()) {
+            if (!info.mHeavyColumns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Returns the names of all indices of the given table in order of declaration.
+     */
+    public List<String> getIndexNames(String table) {
+        return Collections.unmodifiableList(getTable(table).mIndexNames);
+    }
+
+    /**
+     * Returns the <code>CREATE INDEX</code> statements of the given table in order of
+     * declaration.
+     */
+    public List<String> getIndexStatements(String table) {
+        return Collections.unmodifiableList(getTable(table).mIndexStatements);
+    }
+
+    /**
+     * Returns the columns of all unique keys of the given table in order of registration.
+     *
+     * @see #addUniqueKey(String, String[])
+     */
+    public List<String[]> getUniqueKeys(String table) {
+        List<String[]> keys = new ArrayList<String[]>();
+        for (String[] key : getTable(table).mUniqueKeys) {
+            keys.add(key.clone());
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the columns of the full-text index of the given table.
+     *
+     * @return The columns in order of declaration or <code>null</code> if the table has no
+     * full-text index.
+     */
+    public String[] getFullTextColumns(String table) {
+        String[] columns = getTable(table).mFullTextColumns;
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * Returns the columns of the given table whose values are stored in files.
+     *
+     * @return The columns in order of declaration or <code>null</code> if the table has no such
+     * columns.
+     * @see Column#file()
+     */
+    public String[] getFileColumns(String table) {
+        String[] columns = getTable(table).mFileColumns;
+        return columns == null ? null : columns.clone();
+    }
+
+    /**
+     * Returns the name of the full-text index of the given table.
+     */
+    public static String getFullTextTableName(String table) {
+        return table + FULL_TEXT_SUFFIX;
+    }
+
+    /**
+     * Returns the statements that create the full-text index of the given table and the
+     * triggers that keep it in sync with the table. The index is an FTS4 table that reads the
+     * indexed values from the table itself instead of storing a copy.
+     *
+     * @return The statements or an empty list if the table has no full-text index.
+     */
+    public List<String> getFullTextStatements(String table) {
+        String[] columns = getTable(table).mFullTextColumns;
+        List<String> statements = new ArrayList<String>();
+        if (columns == null) {
+            return statements;
+        }
+
+        String fts = getFullTextTableName(table);
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String column : columns) {
+            names.append(", ").append(column);
+            values.append(", new.").append(column);
+        }
+        String insert = "INSERT INTO " + fts + " (docid" + names + ") VALUES (new.rowid" + values
+                + ");";
+        String delete = "DELETE FROM " + fts + " WHERE docid = old.rowid;";
+
+        statements.add("CREATE VIRTUAL TABLE " + fts + " USING fts4(content=\"" + table + "\""
+                + names + ");");
+        // Deleted values are read from the table, so they are removed before the row changes
+        statements.add(createTrigger(fts + TRIGGER_SUFFIXES[0], "AFTER INSERT", table, insert));
+        statements.add(createTrigger(fts + TRIGGER_SUFFIXES[1], "BEFORE UPDATE", table, delete));
+        statements.add(createTrigger(fts + TRIGGER_SUFFIXES[2], "AFTER UPDATE", table, insert));
+        statements.add(createTrigger(fts + TRIGGER_SUFFIXES[3], "BEFORE DELETE", table, delete));
+        return statements;
+    }
+
+    /**
+     * Returns the statements that drop the full-text index of the given table if it exists,
+     * create it again and index all existing rows.
+     *
+     * @return The statements or an empty list if the table has no full-text index.
+     */
+    public List<String> getFullTextRebuildStatements(String table) {
+        List<String> statements = new ArrayList<String>();
+        if (getTable(table).mFullTextColumns == null) {
+            return statements;
+        }
+
+        String fts = getFullTextTableName(table);
+        for (String suffix : TRIGGER_SUFFIXES) {
+            statements.add("DROP TRIGGER IF EXISTS " + fts + suffix + ";");
+        }
+        statements.add("DROP TABLE IF EXISTS " + fts + ";");
+        statements.addAll(getFullTextStatements(table));
+        statements.add("INSERT INTO " + fts + " (" + fts + ") VALUES ('rebuild');");
+        return statements;
+    }
+
+    private static String createTrigger(String name, String event, String table,
+                                        String statement) {
+        return "CREATE TRIGGER " + name + " " + event + " ON " + table + " BEGIN " + statement
+                + " END;";
+    }
+
+    /**
+     * Returns the statements needed to create all tables, their indices and full-text indices.
+     */
+    public List<String> getCreateStatements() {
+        List<String> statements = new ArrayList<String>(mTables.size());
+        for (Map.Entry<String, TableInfo> table : mTables.entrySet()) {
+            statements.add(table.getValue().mCreateStatement);
+            statements.addAll(table.getValue().mIndexStatements);
+            statements.addAll(getFullTextStatements(table.getKey()));
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the statements needed to upgrade the database from <code>oldVersion</code> to
+     * <code>newVersion</code>. Tables that have been added in between are created together with
+     * their indices, columns and indices that have been added in between are added to the
+     * existing tables. Full-text indices that have been added or changed in between are rebuilt.
+     */
+    public List<String> getUpgradeStatements(int oldVersion, int newVersion) {
+        List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, TableInfo> entry : mTables.entrySet()) {
+            TableInfo table = entry.getValue();
+            if (isInRange(table.mSince, oldVersion, newVersion)) {
+                statements.add(table.mCreateStatement);
+                statements.addAll(table.mIndexStatements);
+                statements.addAll(getFullTextStatements(entry.getKey()));
+            } else {
+                for (int i = 0; i < table.mAlterStatements.size(); i++) {
+                    if (isInRange(table.mColumnSince.get(i), oldVersion, newVersion)) {
+                        statements.add(table.mAlterStatements.get(i));
+                    }
+                }
+                for (int i = 0; i < table.mIndexStatements.size(); i++) {
+                    if (isInRange(table.mIndexSince.get(i), oldVersion, newVersion)) {
+                        statements.add(table.mIndexStatements.get(i));
+                    }
+                }
+                if (table.mFullTextColumns != null
+                        && isInRange(table.mFullTextSince, oldVersion, newVersion)) {
+                    statements.addAll(getFullTextRebuildStatements(entry.getKey()));
+                }
+            }
+        }
+        return statements;
+    }
+
+    private static boolean isInRange(int since, int oldVersion, int newVersion) {
+        return oldVersion < since && newVersion >= since;
+    }
+
+    private TableInfo getTable(String table) {
+        TableInfo info = mTables.get(table);
+        if (info == null) {
+            throw new IllegalArgumentException("Unknown table " + table);
+        }
+        return info;
+    }
+
+    private static final class TableInfo {
+
+        final int mSince;
+        final int mRowCacheSize;
+        final String mCreateStatement;
+        final Map<String, Column.FieldType> mColumnTypes =
+                new LinkedHashMap<String, Column.FieldType>();
+        final List<Integer> mColumnSince = new ArrayList<Integer>();
+        final Set<String> mHeavyColumns = new HashSet<String>();
+        final List<String> mAlterStatements = new ArrayList<String>();
+        final List<String> mIndexNames = new ArrayList<String>();
+        final List<Integer> mIndexSince = new ArrayList<Integer>();
+        final List<String> mIndexStatements = new ArrayList<String>();
+        final List<String[]> mUniqueKeys = new ArrayList<String[]>();
+        String[] mFullTextColumns;
+        int mFullTextSince;
+        String[] mFileColumns;
+        String mDatabase = "";
+
+        TableInfo(int since, int rowCacheSize, String createStatement) {
+            mSince = since;
+            mRowCacheSize = rowCacheSize;
+            mCreateStatement = createStatement;
+        }
+
+    }
+
+}
@@ -0,0 +1,393 @@
+package de.triplet.simpleprovider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Migrates the tables of a database to the declared {@link Schema} by comparing it with the
+ * tables that actually exist, instead of relying on {@link Column#since()}. This allows changes
+ * that <code>ALTER TABLE</code> doesn't support, like changing the type or constraints of a
+ * column or dropping a column, without deleting the data of the table.<br>
+ * <br>
+ * For each declared table, the migrator
+ * <ul>
+ * <li>creates the table if it doesn't exist,</li>
+ * <li>adds new columns using <code>ALTER TABLE</code> if that is possible,</li>
+ * <li>otherwise rebuilds the table: it creates a new table, copies the rows in batches ordered
+ * by row id, drops the old table and renames the new one,</li>
+ * <li>creates declared indices that don't exist or have been changed. Indices of rebuilt tables
+ * are created after the rows have been copied.</li>
+ * <li>rebuilds the full-text index if it doesn't exist, has been changed or the table has been
+ * changed.</li>
+ * </ul>
+ * Tables and indices that are not declared are left alone. The migrator is run by
+ * {@link SimpleSQLHelper} within the transaction of the upgrade or downgrade, so either all
+ * tables are migrated or none. Rows are copied by SQLite itself, so the memory used doesn't depend
+ * on the size of the tables.<br>
+ * <br>
+ * Tables can only be rebuilt while foreign key constraints are turned off, as dropping the old
+ * table would delete or change the rows referencing it. {@link SimpleSQLHelper} turns them off
+ * for the migration and checks them afterwards, see
+ * {@link SimpleSQLHelper#suspendForeignKeys(SQLiteDatabase)}.
+ *
+ * @see AbstractProvider#getSchemaMigrator()
+ * @see SimpleSQLHelper#setMigrator(SchemaMigrator)
+ */
+public class SchemaMigrator {
+
+    public enum Change {CREATED, ALTERED, REBUILT}
+
+    private static final String TAG = "SchemaMigrator";
+
+    private static final String TEMP_PREFIX = "_migrate_";
+
+    private int mBatchSize = 10000;
+
+    /**
+     * Sets the number of rows copied by each statement while a table is rebuilt.
+     */
+    public SchemaMigrator batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        }
+
+        mBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Migrates all tables of the given schema. Must be called within a transaction.
+     */
+    public void migrate(SQLiteDatabase db, Schema schema) {
+        final boolean foreignKeys =
+                DatabaseUtils.longForQuery(db, "PRAGMA foreign_keys", null) == 1;
+        for (String table : schema.getTableNames()) {
+            final long start = SystemClock.elapsedRealtime();
+            final Map<String, String> declared = parseColumns(schema.getCreateStatement(table));
+            final String sql = queryCreateStatement(db, "table", table);
+
+            Change change = null;
+            long rows = 0;
+            if (sql == null) {
+                db.execSQL(schema.getCreateStatement(table));
+                change = Change.CREATED;
+            } else {
+                final Map<String, String> existing = parseColumns(sql);
+                if (!normalize(existing).equals(normalize(declared))) {
+                    if (canAlter(existing, declared)) {
+                        for (Map.Entry<String, String> column : declared.entrySet()) {
+                            if (!existing.containsKey(column.getKey())) {
+                                db.execSQL("ALTER TABLE " + table + " ADD COLUMN "
+                                        + column.getValue());
+                            }
+                        }
+                        change = Change.ALTERED;
+                    } else {
+                        if (foreignKeys) {
+                            throw new SQLiteException("Can't rebuild " + table
+                                    + " while foreign keys are enabled");
+                        }
+                        rows = rebuildTable(db, table, existing, declared);
+                        change = Change.REBUILT;
+                    }
+                }
+            }
+
+            final boolean tableChanged = change != null;
+            if (createIndices(db, schema.getIndexStatements(table)) && change == null) {
+                change = Change.ALTERED;
+            }
+            if (createFullTextIndex(db, schema, table, tableChanged) && change == null) {
+                change = Change.ALTERED;
+            }
+
+            if (change != null) {
+                onTableMigrated(table, change, rows, SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    /**
+     * Returns the SQL expression that fills a column of a rebuilt table, e.g. a cast to convert
+     * the values of a column whose type has changed or the old name of a renamed column. By
+     * default, columns that already exist are copied and new columns are left empty. New columns
+     * that are not null need an expression, otherwise the migration fails.
+     *
+     * @param table           The name of the table.
+     * @param column          The name of the declared column.
+     * @param existingColumns The names of the columns of the existing table, ignoring case.
+     * @return The expression or <code>null</code> to leave the column empty.
+     */
+    protected String getCopyExpression(String table, String column, Set<String> existingColumns) {
+        return existingColumns.contains(column) ? column : null;
+    }
+
+    /**
+     * Called after a table has been migrated. Override this method to measure migrations.
+     *
+     * @param table          The name of the table.
+     * @param change         How the table has been migrated.
+     * @param copiedRows     The number of rows copied into the rebuilt table.
+     * @param durationMillis The time it took to migrate the table and create its indices.
+     */
+    protected void onTableMigrated(String table, Change change, long copiedRows,
+                                   long durationMillis) {
+        Log.d(TAG, change + " " + table + " in " + durationMillis + "ms"
+                + (change == Change.REBUILT ? ", copied " + copiedRows + " rows" : ""));
+    }
+
+    /**
+     * Returns whether the declared columns can be reached by adding columns. SQLite can't add
+     * primary keys, unique columns or columns that are not null without a default value.
+     */
+    private static boolean canAlter(Map<String, String> existing, Map<String, String> declared) {
+        for (Map.Entry<String, String> column : existing.entrySet()) {
+            final String definition = declared.get(column.getKey());
+            if (definition == null || !normalize(definition).equals(normalize(column.getValue()))) {
+                return false;
+            }
+        }
+
+        for (Map.Entry<String, String> column : declared.entrySet()) {
+            final String definition = normalize(column.getValue());
+            if (!existing.containsKey(column.getKey()) && (definition.contains(" PRIMARY KEY")
+                    || definition.contains(" UNIQUE") || definition.contains(" NOT NULL"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long rebuildTable(SQLiteDatabase db, String table, Map<String, String> existing,
+                              Map<String, String> declared) {
+        final String temp = TEMP_PREFIX + table;
+        db.execSQL("DROP TABLE IF EXISTS " + temp);
+        db.execSQL("CREATE TABLE " + temp + " (" + TextUtils.join(", ", declared.values()) + ")");
+
+        final Set<String> existingColumns = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (String definition : existing.values()) {
+            existingColumns.add(getName(definition));
+        }
+
+        final List<String> columns = new ArrayList<String>();
+        final List<String> expressions = new ArrayList<String>();
+        boolean hasRowIdAlias = false;
+        for (Map.Entry<String, String> column : declared.entrySet()) {
+            final String name = getName(column.getValue());
+            final String expression = getCopyExpression(table, name, existingColumns);
+            if (expression != null) {
+                columns.add(name);
+                expressions.add(expression);
+                hasRowIdAlias |= normalize(column.getValue()).contains(" INTEGER PRIMARY KEY");
+            }
+        }
+        if (!hasRowIdAlias) {
+            // Keep the row ids, which might be referenced elsewhere
+            columns.add("_rowid_");
+            expressions.add("_rowid_");
+        }
+
+        for (String column : existingColumns) {
+            if (!declared.containsKey(column.toLowerCase(Locale.US))) {
+                Log.i(TAG, "Dropping column " + column + " of " + table);
+            }
+        }
+
+        // Each batch is selected by a range of row ids, so it can be found using the table's
+        // b-tree instead of skipping all rows that have already been copied
+        final SQLiteStatement nextBatch = db.compileStatement("SELECT _rowid_ FROM " + table
+                + " WHERE _rowid_ > ? ORDER BY _rowid_ LIMIT 1 OFFSET " + (mBatchSize - 1));
+        final SQLiteStatement copy = db.compileStatement("INSERT INTO " + temp + " ("
+                + TextUtils.join(", ", columns) + ") SELECT "
+                + TextUtils.join(", ", expressions) + " FROM " + table
+                + " WHERE _rowid_ > ? AND _rowid_ <= ?");
+        long rows = 0;
+        try {
+            long lastRowId = Long.MIN_VALUE;
+            while (true) {
+                long batchEnd;
+                nextBatch.bindLong(1, lastRowId);
+                try {
+                    batchEnd = nextBatch.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    batchEnd = Long.MAX_VALUE;
+                }
+
+                copy.bindLong(1, lastRowId);
+                copy.bindLong(2, batchEnd);
+                rows += copy.executeUpdateDelete();
+
+                if (batchEnd == Long.MAX_VALUE) {
+                    break;
+                }
+                lastRowId = batchEnd;
+            }
+        } finally {
+            nextBatch.close();
+            copy.close();
+        }
+
+        // Dropping the table drops its indices, they are created again after the copy
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + temp + " RENAME TO " + table);
+        return rows;
+    }
+
+    /**
+     * Checks the foreign key constraints of all tables after they have been migrated with the
+     * constraints turned off. Requires SQLite 3.7.16, which is available as of Android 5.0, older
+     * versions skip the check.
+     *
+     * @throws SQLiteConstraintException If a row references a row that doesn't exist.
+     */
+    static void checkForeignKeys(SQLiteDatabase db) {
+        final Cursor cursor = db.rawQuery("PRAGMA foreign_key_check", null);
+        try {
+            if (cursor.moveToFirst()) {
+                throw new SQLiteConstraintException("Row " + cursor.getLong(1) + " of "
+                        + cursor.getString(0) + " references a missing row of "
+                        + cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Creates the indices that don't exist or whose definition has changed.
+     *
+     * @return <code>true</code> if an index has been created.
+     */
+    private static boolean createIndices(SQLiteDatabase db, List<String> statements) {
+        boolean created = false;
+        for (String statement : statements) {
+            final String name = statement.trim().split("\\s+")[
+                    statement.contains("UNIQUE INDEX") ? 3 : 2];
+            final String sql = queryCreateStatement(db, "index", name);
+            if (sql != null && normalize(sql).equals(normalize(statement))) {
+                continue;
+            }
+
+            if (sql != null) {
+                db.execSQL("DROP INDEX " + name);
+            }
+            db.execSQL(statement);
+            created = true;
+        }
+        return created;
+    }
+
+    /**
+     * Rebuilds the full-text index of the table, including its triggers, unless it matches the
+     * declared one and the table hasn't been changed.
+     *
+     * @return <code>true</code> if the index has been rebuilt.
+     */
+    private static boolean createFullTextIndex(SQLiteDatabase db, Schema schema, String table,
+                                               boolean changed) {
+        final List<String> statements = schema.getFullTextStatements(table);
+        if (statements.isEmpty() || !changed && isUpToDate(db, statements)) {
+            return false;
+        }
+
+        for (String statement : schema.getFullTextRebuildStatements(table)) {
+            db.execSQL(statement);
+        }
+        return true;
+    }
+
+    private static boolean isUpToDate(SQLiteDatabase db, List<String> statements) {
+        for (String statement : statements) {
+            final String[] words = statement.split(" ");
+            final boolean trigger = "TRIGGER".equals(words[1]);
+            final String sql = queryCreateStatement(db, trigger ? "trigger" : "table",
+                    words[trigger ? 2 : 3]);
+            if (sql == null || !normalize(sql).equals(normalize(statement))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String queryCreateStatement(SQLiteDatabase db, String type, String name) {
+        final Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE type = ? AND "
+                + "name = ? COLLATE NOCASE", new String[]{type, name});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Splits the column definitions of a <code>CREATE TABLE</code> statement.
+     *
+     * @return The definitions by lower case column name, in order of declaration.
+     */
+    static Map<String, String> parseColumns(String createStatement) {
+        final int start = createStatement.indexOf('(');
+        final int end = createStatement.lastIndexOf(')');
+        final String definitions = createStatement.substring(start + 1, end);
+
+        final Map<String, String> columns = new LinkedHashMap<String, String>();
+        int depth = 0;
+        int from = 0;
+        for (int i = 0; i <= definitions.length(); i++) {
+            final char c = i < definitions.length() ? definitions.charAt(i) : ',';
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                final String definition = definitions.substring(from, i).trim()
+                        .replaceAll("\\s+", " ");
+                if (definition.length() > 0) {
+                    columns.put(getName(definition).toLowerCase(Locale.US), definition);
+                }
+                from = i + 1;
+            }
+        }
+        return columns;
+    }
+
+    private static String getName(String definition) {
+        return definition.split(" ")[0];
+    }
+
+    private static Map<String, String> normalize(Map<String, String> columns) {
+        final Map<String, String> result = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            result.put(column.getKey(), normalize(column.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Collapses whitespace and converts to upper case, so statements can be compared regardless
+     * of formatting. SQL keywords and names are not case sensitive.
+     */
+    private static String normalize(String sql) {
+        String result = sql.trim().replaceAll("\\s+", " ");
+        if (result.endsWith(";")) {
+            result = result.substring(0, result.length() - 1).trim();
+        }
+        return result.toUpperCase(Locale.US);
+    }
+
+}
@@ -19,44 +19,103 @@ package de.triplet.simpleprovider;
  * Modifications:
  * - Imported from AOSP frameworks/base/core/java/com/android/internal/content
  * - Added whereEquals() method
+ * - Added typed arguments, pooling and statement based update() and delete()
+ * - query() no longer modifies the columns passed by the caller
  */
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 /**
  * Helper for building selection clauses for {@link SQLiteDatabase}. Each
  * appended clause is combined using {@code AND}. This class is <em>not</em>
  * thread safe.
+ * <p>
+ * Arguments are stored in recycled slots, so numbers and blobs can be bound
+ * without converting them to strings. Use {@link #obtain(String)} and
+ * {@link #recycle()} to reuse builders instead of allocating new ones.
  */
 public class SelectionBuilder {
 
-    private final String mTable;
+    private static final int MAX_POOL_SIZE = 8;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_BLOB = 3;
+
+    private static final Object sPoolSync = new Object();
+    private static SelectionBuilder sPool;
+    private static int sPoolSize;
+
+    private SelectionBuilder mNext;
+
+    private String mTable;
 
     private Map<String, String> mProjectionMap = new HashMap<String, String>();
 
-    private StringBuilder mSelection = new StringBuilder();
+    private final StringBuilder mSelection = new StringBuilder();
 
-    private ArrayList<String> mSelectionArgs = new ArrayList<String>();
+    private int mArgCount;
+    private int[] mArgTypes = new int[4];
+    private Object[] mObjectArgs = new Object[4];
+    private long[] mLongArgs = new long[4];
+    private double[] mDoubleArgs = new double[4];
 
     public SelectionBuilder(String table) {
         mTable = table;
     }
 
+    /**
+     * Return a builder for the given table from the pool, or a new one if the
+     * pool is empty. Call {@link #recycle()} once the builder is no longer used.
+     */
+    public static SelectionBuilder obtain(String table) {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                SelectionBuilder builder = sPool;
+                sPool = builder.mNext;
+                builder.mNext = null;
+                builder.mTable = table;
+                sPoolSize--;
+                return builder;
+            }
+        }
+        return new SelectionBuilder(table);
+    }
+
+    /**
+     * Reset this builder and return it to the pool. The builder must not be
+     * used afterwards.
+     */
+    public void recycle() {
+        reset();
+        mTable = null;
+        mProjectionMap.clear();
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
     /**
      * Reset any internal state, allowing this builder to be recycled.
      */
     public SelectionBuilder reset() {
         mSelection.setLength(0);
-        mSelectionArgs.clear();
+        Arrays.fill(mObjectArgs, 0, mArgCount, null);
+        mArgCount = 0;
         return this;
     }
 
@@ -75,13 +134,12 @@ public class SelectionBuilder {
             return this;
         }
 
-        if (mSelection.length() > 0) {
-            mSelection.append(" AND ");
-        }
-
-        mSelection.append("(").append(selection).append(")");
+        appendClause(selection, null);
         if (selectionArgs != null) {
-            Collections.addAll(mSelectionArgs, selectionArgs);
+            for (String arg : selectionArgs) {
+                final int index = addArg(TYPE_STRING);
+                mObjectArgs[index] = arg;
+            }
         }
 
         return this;
@@ -96,7 +154,74 @@ public class SelectionBuilder {
 	 * @author Christian Becker
 	 */
     public SelectionBuilder whereEquals(String column, String value) {
-        return where(column + "=?", value);
+        appendClause(column, "=?");
+        final int index = addArg(TYPE_STRING);
+        mObjectArgs[index] = value;
+        return this;
+    }
+
+    /**
+     * Same as {@link #whereEquals(String, String)}, but binds the value as an
+     * integer when executed through {@link #update(SQLiteDatabase, ContentValues)}
+     * or {@link #delete(SQLiteDatabase)}.
+     */
+    public SelectionBuilder whereEquals(String column, long value) {
+        appendClause(column, "=?");
+        final int index = addArg(TYPE_LONG);
+        mLongArgs[index] = value;
+        return this;
+    }
+
+    /**
+     * Same as {@link #whereEquals(String, String)}, but binds the value as a
+     * floating point number when executed through
+     * {@link #update(SQLiteDatabase, ContentValues)} or {@link #delete(SQLiteDatabase)}.
+     */
+    public SelectionBuilder whereEquals(String column, double value) {
+        appendClause(column, "=?");
+        final int index = addArg(TYPE_DOUBLE);
+        mDoubleArgs[index] = value;
+        return this;
+    }
+
+    /**
+     * Same as {@link #whereEquals(String, String)} for blobs. Blobs can't be
+     * converted to selection arguments, so the builder can only be executed
+     * through {@link #update(SQLiteDatabase, ContentValues)} or
+     * {@link #delete(SQLiteDatabase)}.
+     */
+    public SelectionBuilder whereEquals(String column, byte[] value) {
+        appendClause(column, "=?");
+        final int index = addArg(TYPE_BLOB);
+        mObjectArgs[index] = value;
+        return this;
+    }
+
+    private void appendClause(String clause, String suffix) {
+        if (mSelection.length() > 0) {
+            mSelection.append(" AND ");
+        }
+
+        mSelection.append('(').append(clause);
+        if (suffix != null) {
+            mSelection.append(suffix);
+        }
+        mSelection.append(')');
+    }
+
+    /**
+     * Reserve the next argument slot and return its index.
+     */
+    private int addArg(int type) {
+        if (mArgCount == mArgTypes.length) {
+            int capacity = mArgCount * 2;
+            mArgTypes = Arrays.copyOf(mArgTypes, capacity);
+            mObjectArgs = Arrays.copyOf(mObjectArgs, capacity);
+            mLongArgs = Arrays.copyOf(mLongArgs, capacity);
+            mDoubleArgs = Arrays.copyOf(mDoubleArgs, capacity);
+        }
+        mArgTypes[mArgCount] = type;
+        return mArgCount++;
     }
 
     private void assertTable() {
@@ -125,27 +250,107 @@ public class SelectionBuilder {
     }
 
     /**
-     * Return selection arguments for current internal state.
+     * Return selection arguments for current internal state. Numbers are
+     * converted to strings.
      * 
+     * @throws IllegalStateException if a blob argument has been added.
      * @see #getSelection()
      */
     public String[] getSelectionArgs() {
-        return mSelectionArgs.toArray(new String[mSelectionArgs.size()]);
+        final String[] args = new String[mArgCount];
+        for (int i = 0; i < mArgCount; i++) {
+            args[i] = getArgString(i);
+        }
+        return args;
     }
 
-    private void mapColumns(String[] columns) {
+    /**
+     * Return the number of arguments for current internal state.
+     */
+    public int getArgumentCount() {
+        return mArgCount;
+    }
+
+    /**
+     * Bind the arguments for current internal state to the given statement,
+     * starting at the given (1-based) index.
+     */
+    public void bindArgs(SQLiteStatement statement, int startIndex) {
+        for (int i = 0; i < mArgCount; i++) {
+            final int index = startIndex + i;
+            switch (mArgTypes[i]) {
+                case TYPE_LONG:
+                    statement.bindLong(index, mLongArgs[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    statement.bindDouble(index, mDoubleArgs[i]);
+                    break;
+                case TYPE_BLOB:
+                    statement.bindBlob(index, (byte[]) mObjectArgs[i]);
+                    break;
+                default:
+                    if (mObjectArgs[i] == null) {
+                        statement.bindNull(index);
+                    } else {
+                        statement.bindString(index, (String) mObjectArgs[i]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private String getArgString(int i) {
+        switch (mArgTypes[i]) {
+            case TYPE_LONG:
+                return Long.toString(mLongArgs[i]);
+            case TYPE_DOUBLE:
+                return Double.toString(mDoubleArgs[i]);
+            case TYPE_BLOB:
+                throw new IllegalStateException(
+                        "Blob arguments can't be converted to selection arguments");
+            default:
+                return (String) mObjectArgs[i];
+        }
+    }
+
+    /**
+     * Return the given columns with all mapped columns replaced. The caller's
+     * array is never modified, it is only copied if a column is mapped.
+     */
+    private String[] mapColumns(String[] columns) {
+        if (mProjectionMap.isEmpty()) {
+            return columns;
+        }
+
+        String[] mapped = columns;
         for (int i = 0; i < columns.length; i++) {
             final String target = mProjectionMap.get(columns[i]);
             if (target != null) {
-                columns[i] = target;
+                if (mapped == columns) {
+                    mapped = columns.clone();
+                }
+                mapped[i] = target;
             }
         }
+        return mapped;
     }
 
     @Override
     public String toString() {
-        return "SelectionBuilder[table=" + mTable + ", selection=" + getSelection()
-                + ", selectionArgs=" + Arrays.toString(getSelectionArgs()) + "]";
+        final StringBuilder builder = new StringBuilder("SelectionBuilder[table=")
+                .append(mTable).append(", selection=").append(mSelection)
+                .append(", selectionArgs=[");
+        for (int i = 0; i < mArgCount; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            if (mArgTypes[i] == TYPE_BLOB) {
+                builder.append(Arrays.toString((byte[]) mObjectArgs[i]));
+            } else {
+                builder.append(getArgString(i));
+            }
+        }
+        return builder.append("]]").toString();
     }
 
     /**
@@ -162,7 +367,7 @@ public class SelectionBuilder {
             String orderBy, String limit) {
         assertTable();
         if (columns != null)
-            mapColumns(columns);
+            columns = mapColumns(columns);
         return db.query(mTable, columns, getSelection(), getSelectionArgs(), groupBy, having,
                 orderBy, limit);
     }
@@ -172,7 +377,27 @@ public class SelectionBuilder {
      */
     public int update(SQLiteDatabase db, ContentValues values) {
         assertTable();
-        return db.update(mTable, values, getSelection(), getSelectionArgs());
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        final StringBuilder sql = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            sql.append(i++ > 0 ? "," : "").append(value.getKey()).append("=?");
+        }
+
+        final SQLiteStatement statement = compileStatement(db, sql);
+        try {
+            i = 1;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                Utils.bindValue(statement, i++, value.getValue());
+            }
+            bindArgs(statement, i);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
     }
 
     /**
@@ -180,6 +405,20 @@ public class SelectionBuilder {
      */
     public int delete(SQLiteDatabase db) {
         assertTable();
-        return db.delete(mTable, getSelection(), getSelectionArgs());
+        final SQLiteStatement statement = compileStatement(db,
+                new StringBuilder("DELETE FROM ").append(mTable));
+        try {
+            bindArgs(statement, 1);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private SQLiteStatement compileStatement(SQLiteDatabase db, StringBuilder sql) {
+        if (mSelection.length() > 0) {
+            sql.append(" WHERE ").append(mSelection);
+        }
+        return db.compileStatement(sql.toString());
     }
 }
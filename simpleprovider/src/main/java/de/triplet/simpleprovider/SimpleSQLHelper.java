@@ -1,25 +1,54 @@
 package de.triplet.simpleprovider;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.lang.reflect.Field;
-import java.util.ArrayList;
-
 public class SimpleSQLHelper extends SQLiteOpenHelper {
 
     private Class<?> mTableClass;
+    private Schema mSchema;
+    private DatabaseConfiguration mConfiguration;
+    private SchemaMigrator mMigrator;
+    private final int mSchemaVersion;
+    private boolean mForeignKeysSuspended;
 
     public SimpleSQLHelper(Context context, String fileName, int schemaVersion) {
         super(context, fileName, null, schemaVersion);
+        mSchemaVersion = schemaVersion;
     }
 
     public void setTableClass(Class<?> tableClass) {
         mTableClass = tableClass;
+        mSchema = null;
+    }
+
+    /**
+     * Sets the schema of the tables stored in this database instead of reading it from the table
+     * class, e.g. to store only some of the declared tables.
+     */
+    public void setSchema(Schema schema) {
+        mSchema = schema;
+    }
+
+    /**
+     * Sets the connection settings applied in {@link #onConfigure(SQLiteDatabase)}. Must be
+     * called before the database is opened.
+     */
+    public void setConfiguration(DatabaseConfiguration configuration) {
+        mConfiguration = configuration;
+    }
+
+    /**
+     * Sets the migrator that upgrades and downgrades the tables by comparing them with the
+     * declared schema. Without a migrator, upgrades only add the tables, columns and indices
+     * whose <code>since</code> version is in range, and downgrades fail.
+     */
+    public void setMigrator(SchemaMigrator migrator) {
+        mMigrator = migrator;
     }
 
     private Class<?> getTableClass() {
@@ -30,6 +59,41 @@ public class SimpleSQLHelper extends SQLiteOpenHelper {
         }
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        /* Override in derived classes */
+        if (mConfiguration != null) {
+            mConfiguration.apply(db);
+        }
+    }
+
+    /**
+     * Turns off foreign key constraints if the migrator is about to run. Rebuilding a table drops
+     * it, which would delete or change the rows referencing it, and SQLite can't turn them off
+     * within the transaction of the migration. They are checked after the migration and turned
+     * on again in {@link #onOpen(SQLiteDatabase)}. Derived classes that enable foreign keys in
+     * {@link #onConfigure(SQLiteDatabase)} call this method afterwards.
+     */
+    protected final void suspendForeignKeys(SQLiteDatabase db) {
+        final int version = db.getVersion();
+        if (mMigrator == null || version == 0 || version == mSchemaVersion) {
+            return;
+        }
+
+        if (DatabaseUtils.longForQuery(db, "PRAGMA foreign_keys", null) == 1) {
+            db.execSQL("PRAGMA foreign_keys = OFF");
+            mForeignKeysSuspended = true;
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (mForeignKeysSuspended) {
+            mForeignKeysSuspended = false;
+            db.execSQL("PRAGMA foreign_keys = ON");
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         createTables(db);
@@ -43,65 +107,50 @@ public class SimpleSQLHelper extends SQLiteOpenHelper {
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        /* Override in derived classes */
+        if (mMigrator != null) {
+            migrate(db);
+            return;
+        }
+
         throw new SQLiteException("Can't downgrade database from version " + oldVersion + " to "
                 + newVersion);
     }
 
-    private void createTables(SQLiteDatabase db) {
-        for (Class<?> clazz : getTableClass().getClasses()) {
-            Table table = clazz.getAnnotation(Table.class);
-            if (table != null) {
-                createTable(db, Utils.getTableName(clazz, table), clazz);
-            }
+    /**
+     * Returns the schema of the tables declared in the table class. The schema is generated at
+     * compile time if the <code>simpleprovider-compiler</code> annotation processor is used and
+     * read via reflection otherwise.
+     */
+    protected Schema getSchema() {
+        if (mSchema == null) {
+            mSchema = Schema.forClass(getTableClass());
         }
+        return mSchema;
     }
 
-    private void createTable(SQLiteDatabase db, String tableName, Class<?> tableClass) {
-        ArrayList<String> columns = new ArrayList<String>();
-        for (Field field : tableClass.getFields()) {
-            Column column = field.getAnnotation(Column.class);
-            if (column != null) {
-                try {
-                    columns.add(Utils.getColumnConstraint(field, column));
-                } catch (Exception e) {
-                    Log.e("SimpleSQLHelper", "Error accessing " + field, e);
-                }
-            }
+    private void createTables(SQLiteDatabase db) {
+        for (String statement : getSchema().getCreateStatements()) {
+            db.execSQL(statement);
         }
-
-        db.execSQL("CREATE TABLE " + tableName + " (" + TextUtils.join(", ", columns) + ");");
     }
 
     private void upgradeTables(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d("SimpleSQLHelper", "Upgrading Tables: " + oldVersion + " -> " + newVersion);
 
-        for (Class<?> clazz : getTableClass().getClasses()) {
-            Table table = clazz.getAnnotation(Table.class);
-            if (table != null) {
-                int since = table.since();
-                if (oldVersion < since && newVersion >= since) {
-                    createTable(db, Utils.getTableName(clazz, table), clazz);
-                } else {
-                    upgradeTable(db, oldVersion, newVersion, Utils.getTableName(clazz, table), clazz);
-                }
-            }
+        if (mMigrator != null) {
+            migrate(db);
+            return;
+        }
+
+        for (String statement : getSchema().getUpgradeStatements(oldVersion, newVersion)) {
+            db.execSQL(statement);
         }
     }
 
-    private void upgradeTable(SQLiteDatabase db, int oldVersion, int newVersion, String tableName, Class<?> tableClass) {
-        for (Field field : tableClass.getFields()) {
-            Column column = field.getAnnotation(Column.class);
-            if (column != null) {
-                int since = column.since();
-                if (oldVersion < since && newVersion >= since) {
-                    try {
-                        db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " + Utils.getColumnConstraint(field, column) + ";");
-                    } catch (Exception e) {
-                        Log.e("SimpleSQLHelper", "Error accessing " + field, e);
-                    }
-                }
-            }
+    private void migrate(SQLiteDatabase db) {
+        mMigrator.migrate(db, getSchema());
+        if (mForeignKeysSuspended) {
+            SchemaMigrator.checkForeignKeys(db);
         }
     }
 
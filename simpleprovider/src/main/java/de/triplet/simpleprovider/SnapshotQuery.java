@@ -0,0 +1,361 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query that is run together with other queries against the same state of the database, so
+ * changes committed by other threads can't show up between them, e.g. a post and its comments.
+ *
+ * <pre>
+ * Cursor[] cursors = SnapshotQuery.query(getContentResolver(), AUTHORITY, Arrays.asList(
+ *         new SnapshotQuery(postUri, null, null, null, null),
+ *         new SnapshotQuery(commentsUri, null, "post_id = ?", new String[]{postId}, null)));
+ * </pre>
+ *
+ * @see AbstractProvider#querySnapshot(List)
+ * @see AbstractProvider#CALL_QUERY_SNAPSHOT
+ */
+public final class SnapshotQuery {
+
+    private static final String KEY_QUERIES = "queries";
+    private static final String KEY_CURSORS = "cursors";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_PROJECTION = "projection";
+    private static final String KEY_SELECTION = "selection";
+    private static final String KEY_SELECTION_ARGS = "selectionArgs";
+    private static final String KEY_SORT_ORDER = "sortOrder";
+    private static final String KEY_COLUMNS = "columns";
+    private static final String KEY_WINDOWS = "windows";
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    /**
+     * The arguments are the same as those of {@link ContentResolver#query}.
+     */
+    public SnapshotQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                         String sortOrder) {
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+    }
+
+    /**
+     * Runs the given queries against a single snapshot of the provider with the given authority,
+     * using {@link ContentResolver#call(Uri, String, String, Bundle)}. All rows are transferred
+     * at once, so this should only be used for results of moderate size.
+     *
+     * @return The cursors in the order of the queries.
+     */
+    public static Cursor[] query(ContentResolver resolver, String authority,
+                                 List<SnapshotQuery> queries) {
+        final Bundle result = resolver.call(Uri.parse("content://" + authority),
+                AbstractProvider.CALL_QUERY_SNAPSHOT, null, toExtras(queries));
+        if (result == null) {
+            throw new IllegalStateException("Provider " + authority
+                    + " doesn't support snapshot queries");
+        }
+
+        final Cursor[] cursors = readCursors(result);
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i].setNotificationUri(resolver, queries.get(i).getUri());
+        }
+        return cursors;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    public String[] getProjection() {
+        return mProjection;
+    }
+
+    public String getSelection() {
+        return mSelection;
+    }
+
+    public String[] getSelectionArgs() {
+        return mSelectionArgs;
+    }
+
+    public String getSortOrder() {
+        return mSortOrder;
+    }
+
+    static Bundle toExtras(List<SnapshotQuery> queries) {
+        final ArrayList<Bundle> bundles = new ArrayList<Bundle>(queries.size());
+        for (SnapshotQuery query : queries) {
+            final Bundle bundle = new Bundle();
+            bundle.putParcelable(KEY_URI, query.mUri);
+            bundle.putStringArray(KEY_PROJECTION, query.mProjection);
+            bundle.putString(KEY_SELECTION, query.mSelection);
+            bundle.putStringArray(KEY_SELECTION_ARGS, query.mSelectionArgs);
+            bundle.putString(KEY_SORT_ORDER, query.mSortOrder);
+            bundles.add(bundle);
+        }
+
+        final Bundle extras = new Bundle();
+        extras.putParcelableArrayList(KEY_QUERIES, bundles);
+        return extras;
+    }
+
+    static List<SnapshotQuery> fromExtras(Bundle extras) {
+        final ArrayList<Bundle> bundles = extras == null ? null
+                : extras.<Bundle>getParcelableArrayList(KEY_QUERIES);
+        if (bundles == null) {
+            throw new IllegalArgumentException("No queries given");
+        }
+
+        final List<SnapshotQuery> queries = new ArrayList<SnapshotQuery>(bundles.size());
+        for (Bundle bundle : bundles) {
+            queries.add(new SnapshotQuery(bundle.<Uri>getParcelable(KEY_URI),
+                    bundle.getStringArray(KEY_PROJECTION), bundle.getString(KEY_SELECTION),
+                    bundle.getStringArray(KEY_SELECTION_ARGS), bundle.getString(KEY_SORT_ORDER)));
+        }
+        return queries;
+    }
+
+    /**
+     * Copies all rows of the given cursors into cursor windows, which can be sent to another
+     * process, and closes the cursors.
+     */
+    static Bundle writeCursors(Cursor[] cursors) {
+        final ArrayList<Bundle> bundles = new ArrayList<Bundle>(cursors.length);
+        for (Cursor cursor : cursors) {
+            try {
+                final List<CursorWindow> windows = new ArrayList<CursorWindow>();
+                final int count = cursor.getCount();
+                int position = 0;
+                do {
+                    final CursorWindow window = new CursorWindow(null);
+                    fillWindow(cursor, position, window);
+                    windows.add(window);
+                    if (window.getNumRows() == 0 && position < count) {
+                        throw new IllegalStateException("Row " + position
+                                + " doesn't fit into a cursor window");
+                    }
+                    position += window.getNumRows();
+                } while (position < count);
+
+                final Bundle bundle = new Bundle();
+                bundle.putStringArray(KEY_COLUMNS, cursor.getColumnNames());
+                bundle.putParcelableArray(KEY_WINDOWS,
+                        windows.toArray(new CursorWindow[windows.size()]));
+                bundles.add(bundle);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final Bundle result = new Bundle();
+        result.putParcelableArrayList(KEY_CURSORS, bundles);
+        return result;
+    }
+
+    /**
+     * Copies the rows of the cursor starting at the given position into the window until the
+     * window is full.
+     */
+    private static void fillWindow(Cursor cursor, int position, CursorWindow window) {
+        final int columns = cursor.getColumnCount();
+        window.clear();
+        window.setStartPosition(position);
+        window.setNumColumns(columns);
+        if (!cursor.moveToPosition(position)) {
+            return;
+        }
+
+        do {
+            if (!window.allocRow()) {
+                return;
+            }
+
+            for (int i = 0; i < columns; i++) {
+                final boolean success;
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        success = window.putLong(cursor.getLong(i), position, i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        success = window.putDouble(cursor.getDouble(i), position, i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        success = window.putString(cursor.getString(i), position, i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        success = window.putBlob(cursor.getBlob(i), position, i);
+                        break;
+                    default:
+                        success = window.putNull(position, i);
+                        break;
+                }
+
+                if (!success) {
+                    window.freeLastRow();
+                    return;
+                }
+            }
+            position++;
+        } while (cursor.moveToNext());
+    }
+
+    static Cursor[] readCursors(Bundle result) {
+        final ArrayList<Bundle> bundles = result.getParcelableArrayList(KEY_CURSORS);
+        final Cursor[] cursors = new Cursor[bundles.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            final Parcelable[] parcelables = bundles.get(i).getParcelableArray(KEY_WINDOWS);
+            final CursorWindow[] windows = new CursorWindow[parcelables.length];
+            System.arraycopy(parcelables, 0, windows, 0, windows.length);
+            cursors[i] = new WindowCursor(bundles.get(i).getStringArray(KEY_COLUMNS), windows);
+        }
+        return cursors;
+    }
+
+    /**
+     * Copies all rows of the given cursor into memory and closes it.
+     */
+    static MatrixCursor copy(Cursor cursor) {
+        try {
+            final MatrixCursor copy = new MatrixCursor(cursor.getColumnNames(), cursor.getCount());
+            final Object[] values = new Object[cursor.getColumnCount()];
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < values.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            values[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            values[i] = null;
+                            break;
+                    }
+                }
+                copy.addRow(values);
+            }
+            return copy;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read-only cursor over rows that have been copied into consecutive cursor windows.
+     */
+    private static final class WindowCursor extends AbstractCursor {
+
+        private final String[] mColumns;
+        private final CursorWindow[] mWindows;
+        private final int mCount;
+
+        WindowCursor(String[] columns, CursorWindow[] windows) {
+            mColumns = columns;
+            mWindows = windows;
+
+            int count = 0;
+            for (CursorWindow window : windows) {
+                count += window.getNumRows();
+            }
+            mCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            return windowAtPosition().getString(mPos, column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return windowAtPosition().getShort(mPos, column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return windowAtPosition().getInt(mPos, column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return windowAtPosition().getLong(mPos, column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return windowAtPosition().getFloat(mPos, column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return windowAtPosition().getDouble(mPos, column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return windowAtPosition().getBlob(mPos, column);
+        }
+
+        @Override
+        public int getType(int column) {
+            return windowAtPosition().getType(mPos, column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getType(column) == Cursor.FIELD_TYPE_NULL;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            for (CursorWindow window : mWindows) {
+                window.close();
+            }
+        }
+
+        private CursorWindow windowAtPosition() {
+            checkPosition();
+            for (CursorWindow window : mWindows) {
+                if (mPos < window.getStartPosition() + window.getNumRows()) {
+                    return window;
+                }
+            }
+            throw new IllegalStateException("No window for row " + mPos);
+        }
+
+    }
+
+}
@@ -0,0 +1,449 @@
+package de.triplet.simpleprovider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded LRU cache for the SQL that <code>AbstractProvider</code> generates for each shape of
+ * request, i.e. the table, whether a row id is given, the selection, the columns, the grouping
+ * and the sort order. Only the bind arguments change between requests of the same shape, so the
+ * selection is parsed once and <code>UPDATE</code>, <code>DELETE</code> and counting statements
+ * are compiled once and reused.
+ * <br>
+ * The counters of this class can be used to tune the size of the cache.<br>
+ * <br>
+ * If a schema has been set, the columns of each new shape are validated before its SQL is built,
+ * so requests that are answered from the cache are not validated again.
+ *
+ * @see AbstractProvider#getStatementCacheSize()
+ */
+public final class StatementCache {
+
+    static final int QUERY = 0;
+    static final int UPDATE = 1;
+    static final int DELETE = 2;
+    static final int COUNT = 3;
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static final Pattern ROW_ID = Pattern.compile("(?i)rowid|oid|_rowid_");
+
+    private static final String SEARCH_DOCID = "_fts_docid";
+    private static final String SEARCH_RANK = "_fts_rank";
+
+    private final LruCache<Key, Entry> mCache;
+
+    private volatile Schema mSchema;
+
+    StatementCache(int maxSize) {
+        mCache = new LruCache<Key, Entry>(maxSize) {
+
+            @Override
+            protected Entry create(Key key) {
+                final Schema schema = mSchema;
+                if (schema != null) {
+                    key.validateColumns(schema);
+                }
+                return new Entry(key.buildSql());
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Entry oldValue,
+                                        Entry newValue) {
+                oldValue.close();
+            }
+
+        };
+    }
+
+    /**
+     * @throws IllegalArgumentException If a column of a new shape is not part of the schema.
+     */
+    Entry get(Key key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Sets the schema used to validate the columns of new shapes, or disables the validation if
+     * <code>schema</code> is <code>null</code>.
+     */
+    void setSchema(Schema schema) {
+        mSchema = schema;
+    }
+
+    /**
+     * Closes all compiled statements and clears the cache.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of requests that could reuse previously built SQL.
+     */
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * Returns the number of requests that had to build their SQL.
+     */
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * Returns the number of entries that have been evicted because the cache was full.
+     */
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return mCache.toString();
+    }
+
+    /**
+     * Identifies the shape of a request. Keys are immutable.
+     */
+    static final class Key {
+
+        private final int mType;
+        private final String mTable;
+        private final boolean mHasId;
+        private final boolean mHasAfter;
+        private final boolean mHasLimit;
+        private final boolean mSearch;
+        private final boolean mSnippet;
+        private final boolean mDistinct;
+        private final String mGroupBy;
+        private final String mHaving;
+        private final String mSelection;
+        private final String[] mColumns;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(int type, String table, boolean hasId, String selection, String[] columns,
+            String sortOrder) {
+            this(type, table, hasId, false, false, selection, columns, sortOrder);
+        }
+
+        /**
+         * @param hasAfter Whether only rows after a given <code>_id</code> are selected.
+         * @param hasLimit Whether the number of rows is limited.
+         * @param columns  The projection for queries or the updated columns for updates.
+         */
+        Key(int type, String table, boolean hasId, boolean hasAfter, boolean hasLimit,
+            String selection, String[] columns, String sortOrder) {
+            this(type, table, hasId, hasAfter, hasLimit, false, false, selection, columns,
+                    sortOrder);
+        }
+
+        /**
+         * @param search  Whether the query matches the full-text index of the table. The
+         *                <code>MATCH</code> argument is bound before all other arguments.
+         * @param snippet Whether the query returns {@link AbstractProvider#COLUMN_SNIPPET}.
+         */
+        Key(int type, String table, boolean hasId, boolean hasAfter, boolean hasLimit,
+            boolean search, boolean snippet, String selection, String[] columns,
+            String sortOrder) {
+            this(type, table, hasId, hasAfter, hasLimit, search, snippet, false, null, null,
+                    selection, columns, sortOrder);
+        }
+
+        /**
+         * @param distinct Whether the query returns only distinct rows.
+         * @param groupBy  The <code>GROUP BY</code> clause of the query or <code>null</code>.
+         * @param having   The <code>HAVING</code> clause of a grouped query or
+         *                 <code>null</code>.
+         */
+        Key(int type, String table, boolean hasId, boolean hasAfter, boolean hasLimit,
+            boolean search, boolean snippet, boolean distinct, String groupBy, String having,
+            String selection, String[] columns, String sortOrder) {
+            mType = type;
+            mTable = table;
+            mHasId = hasId;
+            mHasAfter = hasAfter;
+            mHasLimit = hasLimit;
+            mSearch = search;
+            mSnippet = snippet;
+            mDistinct = distinct;
+            mGroupBy = TextUtils.isEmpty(groupBy) ? null : groupBy;
+            mHaving = TextUtils.isEmpty(having) ? null : having;
+            mSelection = TextUtils.isEmpty(selection) ? null : selection;
+            mColumns = columns == null ? null : columns.clone();
+            mSortOrder = sortOrder;
+
+            int result = mType;
+            result = 31 * result + mTable.hashCode();
+            result = 31 * result + (mHasId ? 1 : 0);
+            result = 31 * result + (mHasAfter ? 1 : 0);
+            result = 31 * result + (mHasLimit ? 1 : 0);
+            result = 31 * result + (mSearch ? 1 : 0);
+            result = 31 * result + (mSnippet ? 1 : 0);
+            result = 31 * result + (mDistinct ? 1 : 0);
+            result = 31 * result + (mGroupBy != null ? mGroupBy.hashCode() : 0);
+            result = 31 * result + (mHaving != null ? mHaving.hashCode() : 0);
+            result = 31 * result + (mSelection != null ? mSelection.hashCode() : 0);
+            result = 31 * result + Arrays.hashCode(mColumns);
+            result = 31 * result + (mSortOrder != null ? mSortOrder.hashCode() : 0);
+            mHashCode = result;
+        }
+
+        /**
+         * Checks that the projection or the updated columns and the grouping only contain
+         * columns of the table. Expressions and tables that are not part of the schema are not
+         * checked.
+         *
+         * @throws IllegalArgumentException If a column is unknown.
+         */
+        void validateColumns(Schema schema) {
+            if ((mColumns == null && mGroupBy == null)
+                    || !schema.getTableNames().contains(mTable)) {
+                return;
+            }
+
+            final Set<String> known = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+            known.addAll(schema.getColumnTypes(mTable).keySet());
+            if (mColumns != null) {
+                for (String column : mColumns) {
+                    validateColumn(known, column);
+                }
+            }
+            if (mGroupBy != null) {
+                for (String column : mGroupBy.split(",")) {
+                    validateColumn(known, column.trim());
+                }
+            }
+        }
+
+        private void validateColumn(Set<String> known, String column) {
+            if (column != null && IDENTIFIER.matcher(column).matches()
+                    && !known.contains(column) && !ROW_ID.matcher(column).matches()) {
+                throw new IllegalArgumentException("Unknown column " + column + " of table "
+                        + mTable);
+            }
+        }
+
+        String buildSql() {
+            final SelectionBuilder builder = SelectionBuilder.obtain(mTable);
+            final String where;
+            try {
+                if (mHasId) {
+                    builder.where(BaseColumns._ID + "=?");
+                }
+                if (mHasAfter) {
+                    builder.where(BaseColumns._ID + ">?");
+                }
+                where = builder.where(mSelection).getSelection();
+            } finally {
+                builder.recycle();
+            }
+
+            switch (mType) {
+                case QUERY:
+                    if (mSearch) {
+                        return buildSearchSql(where);
+                    }
+
+                    // The limit is bound as an argument, so all pages share the same entry
+                    String query = SQLiteQueryBuilder.buildQueryString(mDistinct, mTable,
+                            mColumns, where, mGroupBy, mHaving, mSortOrder, null);
+                    return mHasLimit ? query + " LIMIT ?" : query;
+                case COUNT:
+                    return appendWhere(new StringBuilder("SELECT count(*) FROM ")
+                            .append(mSearch ? buildSearchFrom(false) : mTable), where);
+                case UPDATE:
+                    StringBuilder sql = new StringBuilder("UPDATE ").append(mTable).append(" SET ");
+                    for (int i = 0; i < mColumns.length; i++) {
+                        sql.append(i > 0 ? "," : "").append(mColumns[i]).append("=?");
+                    }
+                    return appendWhere(sql, where);
+                case DELETE:
+                    return appendWhere(new StringBuilder("DELETE FROM ").append(mTable), where);
+                default:
+                    throw new IllegalStateException("Unknown statement type " + mType);
+            }
+        }
+
+        /**
+         * Joins the table with the rows of its full-text index that match the search. The
+         * columns of the index are hidden in a subquery, so the projection and the selection
+         * refer to the columns of the table without qualifying them. Rows are ranked by the
+         * number of matched terms unless a sort order is given.
+         */
+        private String buildSearchSql(String where) {
+            String[] columns = mColumns == null ? new String[]{mTable + ".*"} : mColumns;
+            if (mSnippet) {
+                columns = Arrays.copyOf(columns, columns.length + 1);
+                columns[columns.length - 1] = AbstractProvider.COLUMN_SNIPPET;
+            }
+
+            final String query = SQLiteQueryBuilder.buildQueryString(mDistinct,
+                    buildSearchFrom(true), columns, where, mGroupBy, mHaving,
+                    TextUtils.isEmpty(mSortOrder) ? SEARCH_RANK + " DESC" : mSortOrder, null);
+            return mHasLimit ? query + " LIMIT ?" : query;
+        }
+
+        /**
+         * @param ranked Whether the rank and the snippet of each row are needed.
+         */
+        private String buildSearchFrom(boolean ranked) {
+            final String fts = Schema.getFullTextTableName(mTable);
+            final String offsets = "offsets(" + fts + ")";
+            return mTable + " JOIN (SELECT docid AS " + SEARCH_DOCID + (ranked ? ", (length("
+                    + offsets + ") - length(replace(" + offsets + ", ' ', '')) + 1) / 4 AS "
+                    + SEARCH_RANK : "") + (ranked && mSnippet ? ", snippet(" + fts + ") AS "
+                    + AbstractProvider.COLUMN_SNIPPET : "") + " FROM " + fts + " WHERE " + fts
+                    + " MATCH ?) ON " + SEARCH_DOCID + " = " + mTable + ".rowid";
+        }
+
+        private static String appendWhere(StringBuilder sql, String where) {
+            if (!TextUtils.isEmpty(where)) {
+                sql.append(" WHERE ").append(where);
+            }
+            return sql.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return mHashCode == key.mHashCode
+                    && mType == key.mType
+                    && mHasId == key.mHasId
+                    && mHasAfter == key.mHasAfter
+                    && mHasLimit == key.mHasLimit
+                    && mSearch == key.mSearch
+                    && mSnippet == key.mSnippet
+                    && mDistinct == key.mDistinct
+                    && mTable.equals(key.mTable)
+                    && TextUtils.equals(mGroupBy, key.mGroupBy)
+                    && TextUtils.equals(mHaving, key.mHaving)
+                    && TextUtils.equals(mSelection, key.mSelection)
+                    && Arrays.equals(mColumns, key.mColumns)
+                    && TextUtils.equals(mSortOrder, key.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+    }
+
+    /**
+     * The SQL of a cached request and, for writes and counts, its compiled statements. A
+     * statement can only be executed by one thread at a time, so each thread takes an idle
+     * statement or compiles a new one. No lock is held while a statement is executed: SQLite
+     * may have to wait for the connection, which another thread may hold while it waits for
+     * this entry.
+     */
+    static final class Entry {
+
+        final String mSql;
+
+        private final ArrayList<SQLiteStatement> mIdle = new ArrayList<SQLiteStatement>(1);
+
+        private boolean mClosed;
+
+        Entry(String sql) {
+            mSql = sql;
+        }
+
+        /**
+         * Binds the given arguments and executes the <code>UPDATE</code> or <code>DELETE</code>
+         * statement of this entry.
+         *
+         * @return The number of rows affected.
+         */
+        int executeUpdateDelete(SQLiteDatabase db, Object[] bindArgs) {
+            final SQLiteStatement statement = bind(db, bindArgs);
+            try {
+                return statement.executeUpdateDelete();
+            } finally {
+                release(statement);
+            }
+        }
+
+        /**
+         * Binds the given arguments and executes the <code>count(*)</code> query of this entry.
+         *
+         * @param bindArgs The arguments or <code>null</code>.
+         * @return The number of rows counted.
+         */
+        long simpleQueryForLong(SQLiteDatabase db, Object[] bindArgs) {
+            final SQLiteStatement statement = bind(db, bindArgs);
+            try {
+                return statement.simpleQueryForLong();
+            } finally {
+                release(statement);
+            }
+        }
+
+        private SQLiteStatement bind(SQLiteDatabase db, Object[] bindArgs) {
+            SQLiteStatement statement = acquire();
+            if (statement == null) {
+                statement = db.compileStatement(mSql);
+            }
+
+            if (bindArgs != null) {
+                for (int i = 0; i < bindArgs.length; i++) {
+                    Utils.bindValue(statement, i + 1, bindArgs[i]);
+                }
+            }
+            return statement;
+        }
+
+        private synchronized SQLiteStatement acquire() {
+            final int size = mIdle.size();
+            return size > 0 ? mIdle.remove(size - 1) : null;
+        }
+
+        private void release(SQLiteStatement statement) {
+            statement.clearBindings();
+            synchronized (this) {
+                if (!mClosed) {
+                    mIdle.add(statement);
+                    return;
+                }
+            }
+            // This entry has been evicted while the statement was in use
+            statement.close();
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            for (SQLiteStatement statement : mIdle) {
+                statement.close();
+            }
+            mIdle.clear();
+        }
+
+    }
+
+}
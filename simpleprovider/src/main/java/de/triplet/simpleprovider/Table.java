@@ -13,4 +13,39 @@ public @interface Table {
 
     int since() default 1;
 
+    /**
+     * Maximum number of rows of this table that are kept in memory to answer queries for a
+     * single row by <code>_id</code>. The cache is disabled by default.
+     *
+     * @see AbstractProvider#getRowCache(String)
+     */
+    int rowCacheSize() default 0;
+
+    /**
+     * Indices of this table, e.g. on multiple columns.
+     */
+    Index[] indices() default {};
+
+    /**
+     * The schema version the full-text index of this table has been added in. The index covers
+     * all columns marked with {@link Column#fullText()} and is created again, including the
+     * existing rows, when it is added or when one of its columns is added.
+     */
+    int fullTextSince() default 1;
+
+    /**
+     * The name of the database file this table is stored in. Tables of different databases
+     * have their own connection, lock and journal, so writes to a large, busy table don't block
+     * the other tables. Transactions don't span databases. By default, tables are stored in the
+     * main database of the provider.
+     * <p>
+     * Changing the database of an existing table doesn't move its rows. The table is created
+     * empty in the new database, while the old table and its rows stay in the old file until
+     * they are copied and dropped, e.g. in
+     * {@link AbstractProvider#onDatabaseOpened(android.database.sqlite.SQLiteDatabase, long)}.
+     *
+     * @see AbstractProvider#getDatabaseFileName(String)
+     */
+    String database() default "";
+
 }
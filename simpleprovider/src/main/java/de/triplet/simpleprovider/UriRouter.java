@@ -0,0 +1,141 @@
+package de.triplet.simpleprovider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the URIs of a provider to the tables declared in its {@link Schema}. A route holding
+ * everything a request needs to know about its table is built once per table when the database
+ * is opened, so each request resolves its table with a single lookup instead of querying the
+ * schema and several maps. URIs of tables that are not declared are rejected before any SQL is
+ * built, unless the provider allows them.
+ *
+ * @see AbstractProvider#isTableValidationEnabled()
+ */
+final class UriRouter {
+
+    private final Map<String, Route> mRoutes = new HashMap<String, Route>();
+
+    private final SQLiteDatabase mMainDatabase;
+
+    private final boolean mStrict;
+
+    /**
+     * @param databases The open databases by name, see {@link Schema#getDatabase(String)}.
+     * @param strict    Whether URIs of tables that are not declared are rejected.
+     */
+    UriRouter(Schema schema, Map<String, SQLiteDatabase> databases, boolean strict) {
+        for (String table : schema.getTableNames()) {
+            mRoutes.put(table, new Route(schema, table,
+                    databases.get(schema.getDatabase(table))));
+        }
+        mMainDatabase = databases.get("");
+        mStrict = strict;
+    }
+
+    /**
+     * Returns the route of the table addressed by the given path segments, i.e. the first
+     * segment of <code>/table</code> or <code>/table/id</code>. Longer paths are rejected, so a
+     * mistyped row URI can't address the whole table.
+     *
+     * @throws IllegalArgumentException If the URI doesn't address a table or a row, or if the
+     *                                  table is not declared and such tables are rejected.
+     */
+    Route route(Uri uri, List<String> segments) {
+        if (segments == null || segments.isEmpty()) {
+            throw new IllegalArgumentException("No table in " + uri);
+        }
+        if (segments.size() > 2) {
+            throw new IllegalArgumentException("Unsupported URI " + uri);
+        }
+
+        final String table = segments.get(0);
+        final Route route = mRoutes.get(table);
+        if (route != null) {
+            return route;
+        }
+        if (mStrict) {
+            throw new IllegalArgumentException("Unknown table " + table + " in " + uri);
+        }
+        return new Route(table, mMainDatabase);
+    }
+
+    /**
+     * @return The route or <code>null</code> if the table is not declared.
+     */
+    Route get(String table) {
+        return mRoutes.get(table);
+    }
+
+    /**
+     * Returns the routes of all declared tables.
+     */
+    Collection<Route> getRoutes() {
+        return Collections.unmodifiableCollection(mRoutes.values());
+    }
+
+    /**
+     * Describes a table to requests. Routes are immutable.
+     */
+    static final class Route {
+
+        final String mTable;
+
+        /**
+         * The database the table is stored in.
+         */
+        final SQLiteDatabase mDatabase;
+
+        /**
+         * The row cache or <code>null</code> if rows of this table are not cached.
+         */
+        final RowCache mRowCache;
+
+        /**
+         * The columns of queries without a projection or <code>null</code> for all columns.
+         */
+        final String[] mDefaultProjection;
+
+        final boolean mFullText;
+
+        final List<String[]> mUniqueKeys;
+
+        /**
+         * The columns stored in files or <code>null</code> if the table has no such columns.
+         */
+        final String[] mFileColumns;
+
+        /**
+         * Creates the route of a table that is not declared, about which nothing is known
+         * except that it is stored in the main database.
+         */
+        Route(String table, SQLiteDatabase database) {
+            mTable = table;
+            mDatabase = database;
+            mRowCache = null;
+            mDefaultProjection = null;
+            mFullText = false;
+            mUniqueKeys = Collections.emptyList();
+            mFileColumns = null;
+        }
+
+        Route(Schema schema, String table, SQLiteDatabase database) {
+            final int rowCacheSize = schema.getRowCacheSize(table);
+            mTable = table;
+            mDatabase = database;
+            mRowCache = rowCacheSize > 0 ? new RowCache(rowCacheSize) : null;
+            mDefaultProjection = schema.getDefaultProjection(table);
+            mFullText = schema.getFullTextColumns(table) != null;
+            mUniqueKeys = Collections.unmodifiableList(schema.getUniqueKeys(table));
+            mFileColumns = schema.getFileColumns(table);
+        }
+
+    }
+
+}
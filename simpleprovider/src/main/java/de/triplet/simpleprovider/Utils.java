@@ -1,5 +1,6 @@
 package de.triplet.simpleprovider;
 
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 import java.lang.reflect.Field;
@@ -47,4 +48,36 @@ final class Utils {
                 + (column.unique() ? " UNIQUE" : "");
     }
 
+    static String getIndexName(String table, String[] columns) {
+        StringBuilder name = new StringBuilder(table);
+        for (String column : columns) {
+            // Strip ASC or DESC
+            name.append('_').append(column.trim().split("\\s+")[0]);
+        }
+        return name.toString();
+    }
+
+    static String getIndexStatement(String table, String name, String[] columns, boolean unique,
+                                    String where) {
+        return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + name + " ON " + table + " ("
+                + TextUtils.join(", ", columns) + ")"
+                + (TextUtils.isEmpty(where) ? "" : " WHERE " + where) + ";";
+    }
+
+    static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
 }
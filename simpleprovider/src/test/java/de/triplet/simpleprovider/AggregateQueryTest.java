@@ -0,0 +1,147 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AggregateQueryTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+    private static final Uri COUNT = Uri.withAppendedPath(POSTS, AbstractProvider.PATH_COUNT);
+    private static final String[] TOTALS = {TestProvider.Post.CONTENT, "count(*) AS total"};
+
+    private TestProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new TestProvider();
+        mProvider.onCreate();
+
+        insertPost(1, "a");
+        insertPost(2, "b");
+        insertPost(3, "a");
+        insertPost(4, "c");
+        insertPost(5, "a");
+    }
+
+    @Test
+    public void groupBy() {
+        Uri uri = POSTS.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_GROUP_BY, TestProvider.Post.CONTENT)
+                .build();
+        Cursor c = mProvider.query(uri, TOTALS, TestProvider.Post.ID + " < ?",
+                new String[]{"5"}, TestProvider.Post.CONTENT);
+
+        assertEquals(3, c.getCount());
+        c.moveToFirst();
+        assertEquals("a", c.getString(0));
+        assertEquals(2, c.getInt(1));
+        c.close();
+    }
+
+    @Test
+    public void having() {
+        Uri uri = POSTS.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_GROUP_BY, TestProvider.Post.CONTENT)
+                .appendQueryParameter(AbstractProvider.QUERY_HAVING, "count(*) > 1")
+                .build();
+        Cursor c = mProvider.query(uri, TOTALS, null, null, null);
+
+        assertEquals(1, c.getCount());
+        c.moveToFirst();
+        assertEquals("a", c.getString(0));
+        assertEquals(3, c.getInt(1));
+        c.close();
+    }
+
+    @Test
+    public void distinctAndLimit() {
+        Uri uri = POSTS.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_DISTINCT, "true")
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "2")
+                .build();
+        Cursor c = mProvider.query(uri, new String[]{TestProvider.Post.CONTENT}, null, null,
+                TestProvider.Post.CONTENT);
+
+        assertEquals(2, c.getCount());
+        c.moveToLast();
+        assertEquals("b", c.getString(0));
+        c.close();
+    }
+
+    @Test
+    public void rejectsInvalidGrouping() {
+        assertRejected(POSTS.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_GROUP_BY, "author").build());
+        assertRejected(POSTS.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_HAVING, "count(*) > 1").build());
+        assertRejected(COUNT.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "1").build());
+        assertRejected(COUNT.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_GROUP_BY, TestProvider.Post.CONTENT)
+                .build());
+    }
+
+    @Test
+    public void count() {
+        assertEquals(5, count(COUNT, null, null));
+        assertEquals(3, count(COUNT, TestProvider.Post.CONTENT + " = ?", new String[]{"a"}));
+
+        Uri after = COUNT.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_AFTER, "3").build();
+        assertEquals(1, count(after, TestProvider.Post.CONTENT + " = ?", new String[]{"a"}));
+    }
+
+    @Test
+    public void countReusesStatement() {
+        count(COUNT, null, null);
+        int hits = mProvider.getStatementCache().hitCount();
+
+        mProvider.delete(Uri.withAppendedPath(POSTS, "1"), null, null);
+        assertEquals(4, count(COUNT, null, null));
+        assertEquals(hits + 1, mProvider.getStatementCache().hitCount());
+    }
+
+    private int count(Uri uri, String selection, String[] selectionArgs) {
+        Cursor c = mProvider.query(uri, null, selection, selectionArgs, null);
+        try {
+            assertArrayEquals(new String[]{BaseColumns._COUNT}, c.getColumnNames());
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getCount());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertRejected(Uri uri) {
+        try {
+            mProvider.query(uri, TOTALS, null, null, null);
+            fail(uri + " should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void insertPost(int id, String content) {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, id);
+        values.put(TestProvider.Post.CONTENT, content);
+        mProvider.insert(POSTS, values);
+    }
+
+}
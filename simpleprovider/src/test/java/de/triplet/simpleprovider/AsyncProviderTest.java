@@ -0,0 +1,346 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AsyncProviderTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    private BlockingProvider mProvider;
+    private ProviderMetrics mMetrics;
+    private AsyncProvider mAsyncProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new BlockingProvider();
+        mProvider.onCreate();
+        mMetrics = new ProviderMetrics();
+        mProvider.setMetrics(mMetrics);
+        ShadowContentResolver.registerProvider(TestProvider.AUTHORITY, mProvider);
+        mAsyncProvider = new AsyncProvider(mProvider);
+    }
+
+    @After
+    public void tearDown() {
+        mAsyncProvider.shutdown();
+    }
+
+    @Test
+    public void appliesWrites() throws Exception {
+        RecordingCallback<Uri> callback = new RecordingCallback<Uri>();
+        Uri uri = mAsyncProvider.insert(POSTS, createPost(1), callback).get(5, TimeUnit.SECONDS);
+        assertEquals(Uri.withAppendedPath(POSTS, "1"), uri);
+        callback.await();
+        assertEquals(uri, callback.mResult);
+
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, "Updated");
+        assertEquals(1, mAsyncProvider.update(POSTS, values, null, null, null)
+                .get(5, TimeUnit.SECONDS).intValue());
+
+        Cursor c = mAsyncProvider.query(POSTS, null, null, null, null, null)
+                .get(5, TimeUnit.SECONDS);
+        c.moveToFirst();
+        assertEquals("Updated", c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
+        c.close();
+
+        assertEquals(1, mAsyncProvider.delete(POSTS, null, null, null)
+                .get(5, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    public void groupsAdjacentWrites() throws Exception {
+        mProvider.mBlocked = new CountDownLatch(1);
+        Future<Uri> first = mAsyncProvider.insert(POSTS, createPost(1), null);
+        assertTrue(mProvider.mEntered.await(5, TimeUnit.SECONDS));
+
+        // These writes queue up while the writer is blocked
+        List<Future<Uri>> futures = new ArrayList<Future<Uri>>();
+        for (int id = 2; id <= 6; id++) {
+            futures.add(mAsyncProvider.insert(POSTS, createPost(id), null));
+        }
+        assertEquals(5, mAsyncProvider.getQueueDepth());
+        mProvider.mBlocked.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Uri.withAppendedPath(POSTS, String.valueOf(i + 2)),
+                    futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(5, mAsyncProvider.getMaxQueueDepth());
+        assertEquals(2, mMetrics.getHistogram(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.GROUP_COMMIT).getCount());
+        assertEquals(6, mMetrics.getRowCount(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.GROUP_COMMIT));
+        assertEquals("Each group should notify once", 2, getNotifiedUris().size());
+    }
+
+    @Test
+    public void failedWriteFailsAlone() throws Exception {
+        mProvider.mBlocked = new CountDownLatch(1);
+        mAsyncProvider.insert(POSTS, createPost(1), null);
+        assertTrue(mProvider.mEntered.await(5, TimeUnit.SECONDS));
+
+        Future<Uri> before = mAsyncProvider.insert(POSTS, createPost(2), null);
+        ContentValues values = new ContentValues();
+        values.put("unknown", "value");
+        RecordingCallback<Integer> callback = new RecordingCallback<Integer>();
+        Future<Integer> failed = mAsyncProvider.update(POSTS, values, null, null, callback);
+        Future<Uri> after = mAsyncProvider.insert(POSTS, createPost(3), null);
+        mProvider.mBlocked.countDown();
+
+        assertEquals(Uri.withAppendedPath(POSTS, "2"), before.get(5, TimeUnit.SECONDS));
+        assertEquals(Uri.withAppendedPath(POSTS, "3"), after.get(5, TimeUnit.SECONDS));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("The update of an unknown column should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        callback.await();
+        assertTrue(callback.mException instanceof IllegalArgumentException);
+        assertNull(callback.mResult);
+        assertEquals(3, countPosts());
+    }
+
+    @Test
+    public void failingCallbackDoesNotStopWriter() throws Exception {
+        mProvider.mBlocked = new CountDownLatch(1);
+        mAsyncProvider.insert(POSTS, createPost(1), null);
+        assertTrue(mProvider.mEntered.await(5, TimeUnit.SECONDS));
+
+        Future<Uri> failing = mAsyncProvider.insert(POSTS, createPost(2),
+                new AsyncProvider.Callback<Uri>() {
+
+                    @Override
+                    public void onSuccess(Uri result) {
+                        throw new IllegalStateException("Callback failed");
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                    }
+
+                });
+        Future<Uri> grouped = mAsyncProvider.insert(POSTS, createPost(3), null);
+        mProvider.mBlocked.countDown();
+
+        assertEquals(Uri.withAppendedPath(POSTS, "2"), failing.get(5, TimeUnit.SECONDS));
+        assertEquals(Uri.withAppendedPath(POSTS, "3"), grouped.get(5, TimeUnit.SECONDS));
+        assertEquals(Uri.withAppendedPath(POSTS, "4"),
+                mAsyncProvider.insert(POSTS, createPost(4), null).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void appliesBatchesAlone() throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createPost(1))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createPost(2))
+                .build());
+
+        ContentProviderResult[] results = mAsyncProvider.applyBatch(operations, null)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, results.length);
+        assertEquals(0, mMetrics.getHistogram(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.GROUP_COMMIT).getCount());
+        assertEquals(2, countPosts());
+    }
+
+    @Test
+    public void shutdownAppliesPendingWrites() throws Exception {
+        Future<Uri> pending = mAsyncProvider.insert(POSTS, createPost(1), null);
+        mAsyncProvider.shutdown();
+
+        assertEquals(Uri.withAppendedPath(POSTS, "1"), pending.get(5, TimeUnit.SECONDS));
+        try {
+            mAsyncProvider.insert(POSTS, createPost(2), null);
+            fail("Writes after shutdown should be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesRacingShutdownAreApplied() throws Exception {
+        final AtomicInteger ids = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(20);
+        final List<Future<Uri>> accepted =
+                Collections.synchronizedList(new ArrayList<Future<Uri>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            accepted.add(mAsyncProvider.insert(POSTS,
+                                    createPost(ids.incrementAndGet()), null));
+                            started.countDown();
+                        }
+                    } catch (RejectedExecutionException e) {
+                        // The provider has been shut down
+                    }
+                }
+
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        mAsyncProvider.shutdown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        for (Future<Uri> future : accepted) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(accepted.size(), countPosts());
+    }
+
+    @Test
+    public void interruptedWriterFailsPendingWrites() throws Exception {
+        mProvider.mBlocked = new CountDownLatch(1);
+        Future<Uri> first = mAsyncProvider.insert(POSTS, createPost(1), null);
+        assertTrue(mProvider.mEntered.await(5, TimeUnit.SECONDS));
+
+        RecordingCallback<Uri> callback = new RecordingCallback<Uri>();
+        Future<Uri> pending = mAsyncProvider.insert(POSTS, createPost(2), callback);
+        mProvider.mInterrupt = true;
+        mProvider.mBlocked.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        try {
+            pending.get(5, TimeUnit.SECONDS);
+            fail("The pending write should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        callback.await();
+        assertTrue(callback.mException instanceof RejectedExecutionException);
+        try {
+            mAsyncProvider.insert(POSTS, createPost(3), null);
+            fail("Writes after the writer stopped should be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    private int countPosts() {
+        Cursor c = mProvider.query(POSTS, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ContentValues createPost(int id) {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, id);
+        values.put(TestProvider.Post.CONTENT, "Post #" + id);
+        return values;
+    }
+
+    private static List<ShadowContentResolver.NotifiedUri> getNotifiedUris() {
+        ShadowContentResolver shadow = Robolectric.shadowOf_(
+                Robolectric.application.getContentResolver());
+        return shadow.getNotifiedUris();
+    }
+
+    private static final class RecordingCallback<T> implements AsyncProvider.Callback<T> {
+
+        final CountDownLatch mCalled = new CountDownLatch(1);
+        volatile T mResult;
+        volatile Exception mException;
+
+        @Override
+        public void onSuccess(T result) {
+            mResult = result;
+            mCalled.countDown();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            mException = e;
+            mCalled.countDown();
+        }
+
+        /**
+         * Waits for the callback, which may be called after the future has been completed.
+         */
+        void await() throws InterruptedException {
+            assertTrue(mCalled.await(5, TimeUnit.SECONDS));
+        }
+
+    }
+
+    /**
+     * Blocks the first insert until {@link #mBlocked} is released, so other writes queue up.
+     */
+    public static class BlockingProvider extends TestProvider {
+
+        final CountDownLatch mEntered = new CountDownLatch(1);
+
+        volatile CountDownLatch mBlocked;
+
+        volatile boolean mInterrupt;
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            final CountDownLatch blocked = mBlocked;
+            if (blocked != null && mEntered.getCount() > 0) {
+                mEntered.countDown();
+                try {
+                    blocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final Uri result = super.insert(uri, values);
+            if (mInterrupt) {
+                // Interrupts the writer thread once it waits for the next write
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+
+    }
+
+}
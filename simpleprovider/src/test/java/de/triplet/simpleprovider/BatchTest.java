@@ -0,0 +1,96 @@
+package de.triplet.simpleprovider;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BatchTest {
+
+    private SQLiteDatabase mDatabase;
+
+    private Batch mBatch;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY)");
+        mBatch = new Batch();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void nestedFailureFailsBatch() {
+        mBatch.begin();
+        mBatch.begin();
+
+        assertFalse(mBatch.end(false));
+        assertTrue(mBatch.end(true));
+        assertTrue(mBatch.isFailed());
+    }
+
+    @Test
+    public void joinBeginsOneTransaction() {
+        mBatch.begin();
+        mBatch.join(mDatabase);
+        mBatch.join(mDatabase);
+
+        assertTrue(mDatabase.inTransaction());
+        assertEquals(Collections.singletonList(mDatabase), mBatch.getDatabases());
+
+        mDatabase.execSQL("INSERT INTO posts VALUES (1)");
+        mBatch.endTransactions(true);
+
+        assertFalse(mDatabase.inTransaction());
+        assertTrue(mBatch.getDatabases().isEmpty());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDatabase, "posts"));
+    }
+
+    @Test
+    public void failedBatchRollsBack() {
+        mBatch.begin();
+        mBatch.join(mDatabase);
+        mDatabase.execSQL("INSERT INTO posts VALUES (1)");
+
+        mBatch.endTransactions(false);
+
+        assertFalse(mDatabase.inTransaction());
+        assertFalse(mBatch.isPartiallyCommitted());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, "posts"));
+    }
+
+    @Test
+    public void filesAreOnlyDeletedByDeleteFiles() throws IOException {
+        File file = File.createTempFile("batch", null);
+        file.deleteOnExit();
+        mBatch.deleteFile(file);
+
+        mBatch.clear();
+        mBatch.deleteFiles();
+        assertTrue("Cleared files must be kept", file.exists());
+
+        mBatch.deleteFile(file);
+        mBatch.deleteFiles();
+        assertFalse(file.exists());
+    }
+
+}
@@ -0,0 +1,188 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ChunkedBatchTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    private ChunkedProvider mProvider;
+    private List<int[]> mProgress;
+    private BatchOptions mOptions;
+
+    @Before
+    public void setUp() {
+        mProvider = new ChunkedProvider();
+        mProvider.onCreate();
+        ShadowContentResolver.registerProvider(TestProvider.AUTHORITY, mProvider);
+
+        mProgress = new ArrayList<int[]>();
+        mOptions = new BatchOptions().chunkSize(2).progressListener(
+                new BatchOptions.ProgressListener() {
+
+                    @Override
+                    public void onProgress(int committedOperations, int totalOperations,
+                                           long durationMillis) {
+                        mProgress.add(new int[]{committedOperations, totalOperations});
+                    }
+
+                });
+    }
+
+    @Test
+    public void commitsChunks() throws OperationApplicationException {
+        ContentProviderResult[] results = mProvider.applyBatch(createInserts(1, 5), mOptions);
+
+        assertEquals(5, results.length);
+        assertEquals(ContentUris.withAppendedId(POSTS, 5), results[4].uri);
+        assertEquals(3, mProgress.size());
+        assertProgress(2, 5, mProgress.get(0));
+        assertProgress(4, 5, mProgress.get(1));
+        assertProgress(5, 5, mProgress.get(2));
+        assertEquals("Each chunk should notify once", 3, getNotifiedUris().size());
+        assertEquals(5, countPosts());
+    }
+
+    @Test
+    public void keepsBackReferencesAcrossChunks() throws OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = createInserts(41, 2);
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, 43);
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(values)
+                .withValueBackReference(TestProvider.Post.CONTENT, 0).build());
+
+        ContentProviderResult[] results = mProvider.applyBatch(operations, mOptions);
+
+        // The row id of the first post, which differs from its _id column in TestProvider
+        String rowId = Long.toString(ContentUris.parseId(results[0].uri));
+        Cursor c = mProvider.query(ContentUris.withAppendedId(POSTS, 43), null, null, null, null);
+        c.moveToFirst();
+        assertEquals(rowId, c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
+        c.close();
+    }
+
+    @Test
+    public void failedChunkKeepsCommittedChunks() {
+        final int[] failedBatch = new int[2];
+        mProvider.setMetrics(new ProviderMetrics() {
+
+            @Override
+            protected void onFailedBatch(int committedOperations, int totalOperations) {
+                failedBatch[0] = committedOperations;
+                failedBatch[1] = totalOperations;
+            }
+
+        });
+        ArrayList<ContentProviderOperation> operations = createInserts(1, 3);
+        operations.add(ContentProviderOperation.newAssertQuery(POSTS).withExpectedCount(0)
+                .build());
+        operations.addAll(createInserts(4, 2));
+
+        try {
+            mProvider.applyBatch(operations, mOptions);
+            fail("The assertion should have failed");
+        } catch (OperationApplicationException e) {
+            assertEquals("Chunks are not yields", 0, e.getNumSuccessfulYieldPoints());
+        }
+
+        assertProgress(2, 6, failedBatch);
+        assertEquals(2, countPosts());
+        assertEquals(1, mProgress.size());
+        assertEquals("The failed chunk must not notify", 1, getNotifiedUris().size());
+
+        // Resume after the committed operations
+        operations.remove(3);
+        try {
+            mProvider.applyBatch(new ArrayList<ContentProviderOperation>(
+                    operations.subList(2, operations.size())), mOptions);
+        } catch (OperationApplicationException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(5, countPosts());
+    }
+
+    @Test
+    public void appliesBatchOptionsOfProvider() throws OperationApplicationException {
+        mProvider.mOptions = mOptions;
+        mProvider.applyBatch(createInserts(1, 3));
+
+        assertEquals(2, mProgress.size());
+        assertEquals(2, getNotifiedUris().size());
+    }
+
+    @Test
+    public void yieldsOnlyWhenAllowed() throws OperationApplicationException {
+        BatchOptions options = new BatchOptions().yieldIfContended(true);
+        mProvider.applyBatch(createInserts(1, 3), options);
+
+        // Nothing is contending, so the batch is committed once
+        assertEquals(1, getNotifiedUris().size());
+        assertEquals(3, countPosts());
+    }
+
+    private static void assertProgress(int committed, int total, int[] progress) {
+        assertEquals(committed, progress[0]);
+        assertEquals(total, progress[1]);
+    }
+
+    private static ArrayList<ContentProviderOperation> createInserts(int firstId, int count) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int id = firstId; id < firstId + count; id++) {
+            ContentValues values = new ContentValues();
+            values.put(TestProvider.Post.ID, id);
+            values.put(TestProvider.Post.CONTENT, "Post #" + id);
+            operations.add(ContentProviderOperation.newInsert(POSTS).withValues(values)
+                    .withYieldAllowed(true).build());
+        }
+        return operations;
+    }
+
+    private int countPosts() {
+        Cursor c = mProvider.query(POSTS, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static List<ShadowContentResolver.NotifiedUri> getNotifiedUris() {
+        ShadowContentResolver shadow = Robolectric.shadowOf_(
+                Robolectric.application.getContentResolver());
+        return shadow.getNotifiedUris();
+    }
+
+    public static class ChunkedProvider extends TestProvider {
+
+        BatchOptions mOptions;
+
+        @Override
+        protected BatchOptions getBatchOptions(ArrayList<ContentProviderOperation> operations) {
+            return mOptions;
+        }
+
+    }
+
+}
@@ -0,0 +1,224 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DatabaseConfigurationTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+
+        // Robolectric loads the system resources lazily, which isn't thread safe
+        Robolectric.application.getString(android.R.string.ok);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void pragmasAreApplied() {
+        ConfiguredProvider provider = new ConfiguredProvider(new DatabaseConfiguration()
+                .writeAheadLogging(true)
+                .synchronous(DatabaseConfiguration.Synchronous.NORMAL)
+                .cacheSize(1000)
+                .tempStore(DatabaseConfiguration.TempStore.MEMORY));
+        provider.onCreate();
+        SQLiteDatabase db = provider.getDatabase();
+
+        assertEquals("wal", pragma(db, "journal_mode"));
+        assertEquals("1", pragma(db, "synchronous"));
+        assertEquals("1000", pragma(db, "cache_size"));
+        assertEquals("2", pragma(db, "temp_store"));
+    }
+
+    @Test
+    public void readersAreBlockedWithoutWriteAheadLogging() throws Exception {
+        ConfiguredProvider provider = new ConfiguredProvider(new DatabaseConfiguration());
+        provider.onCreate();
+
+        Future<Integer> reader = queryWhileWriting(provider);
+        try {
+            reader.get(200, TimeUnit.MILLISECONDS);
+            fail("Reader should wait for the writer");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        provider.mWriterDone.countDown();
+
+        assertEquals("Reader should see the committed row", 1, (int) reader.get(5,
+                TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void readersAreNotBlockedWithWriteAheadLogging() throws Exception {
+        ConfiguredProvider provider = new ConfiguredProvider(new DatabaseConfiguration()
+                .writeAheadLogging(true));
+        provider.onCreate();
+
+        Future<Integer> reader = queryWhileWriting(provider);
+        try {
+            assertEquals("Reader should see the last committed state", 0,
+                    (int) reader.get(5, TimeUnit.SECONDS));
+        } finally {
+            provider.mWriterDone.countDown();
+        }
+    }
+
+    @Test
+    public void concurrentThroughput() throws Exception {
+        final ConfiguredProvider provider = new ConfiguredProvider(new DatabaseConfiguration()
+                .writeAheadLogging(true)
+                .synchronous(DatabaseConfiguration.Synchronous.NORMAL));
+        provider.onCreate();
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicInteger readsDuringWrites = new AtomicInteger();
+        Future<?> writer = mExecutor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() {
+                ContentValues values = new ContentValues();
+                values.put(TestProvider.Post.CONTENT, "content");
+                for (int i = 0; i < 200; i++) {
+                    provider.insert(POSTS, values);
+                }
+                writing.set(false);
+                return null;
+            }
+
+        });
+
+        for (int i = 0; i < 3; i++) {
+            mExecutor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    while (writing.get()) {
+                        provider.query(POSTS, null, null, null, null).close();
+                        if (writing.get()) {
+                            readsDuringWrites.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+
+            });
+        }
+
+        writer.get(30, TimeUnit.SECONDS);
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertTrue("Readers should make progress while the writer is busy",
+                readsDuringWrites.get() > 0);
+    }
+
+    /**
+     * Starts a transaction that inserts one row and keeps it open until the writer is released,
+     * then queries the table on another thread. Returns once the query is about to start.
+     */
+    private Future<Integer> queryWhileWriting(final ConfiguredProvider provider)
+            throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        mExecutor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                SQLiteDatabase db = provider.getDatabase();
+                db.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(TestProvider.Post.CONTENT, "content");
+                    db.insert("posts", null, values);
+                    writing.countDown();
+                    provider.mWriterDone.await();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                return null;
+            }
+
+        });
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch querying = new CountDownLatch(1);
+        Future<Integer> reader = mExecutor.submit(new Callable<Integer>() {
+
+            @Override
+            public Integer call() {
+                querying.countDown();
+                Cursor c = provider.query(POSTS, null, null, null, null);
+                try {
+                    return c.getCount();
+                } finally {
+                    c.close();
+                }
+            }
+
+        });
+        assertTrue(querying.await(5, TimeUnit.SECONDS));
+        return reader;
+    }
+
+    private static String pragma(SQLiteDatabase db, String name) {
+        Cursor c = db.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class ConfiguredProvider extends TestProvider {
+
+        final CountDownLatch mWriterDone = new CountDownLatch(1);
+
+        private final DatabaseConfiguration mConfiguration;
+
+        ConfiguredProvider(DatabaseConfiguration configuration) {
+            mConfiguration = configuration;
+        }
+
+        @Override
+        protected DatabaseConfiguration getDatabaseConfiguration() {
+            return mConfiguration;
+        }
+
+    }
+
+}
@@ -0,0 +1,378 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, shadows = FileColumnTest.ShadowFileDescriptor.class)
+public class FileColumnTest {
+
+    private static final Uri ATTACHMENTS = Uri.parse("content://"
+            + AttachmentProvider.AUTHORITY + "/attachments");
+    private static final Uri ROW = Uri.withAppendedPath(ATTACHMENTS, "1");
+    private static final Uri DATA = Uri.withAppendedPath(ROW, AttachmentProvider.Attachment.DATA);
+
+    private AttachmentProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new AttachmentProvider();
+        mProvider.onCreate();
+
+        ContentValues values = new ContentValues();
+        values.put(AttachmentProvider.Attachment.ID, 1);
+        values.put(AttachmentProvider.Attachment.NAME, "image.png");
+        mProvider.insert(ATTACHMENTS, values);
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        assertNull(queryFile());
+
+        write(DATA, "w", "content");
+
+        File file = queryFile();
+        assertNotNull(file);
+        assertEquals(new File(mProvider.getDatabase().getPath() + AbstractProvider.FILES_SUFFIX,
+                "attachments"), file.getParentFile());
+        assertEquals("content", read(DATA));
+    }
+
+    @Test
+    public void replaceKeepsOpenFiles() throws IOException {
+        write(DATA, "w", "old");
+        File old = queryFile();
+        ParcelFileDescriptor reader = mProvider.openFile(DATA, "r");
+
+        write(DATA, "wt", "new");
+
+        assertFalse(old.equals(queryFile()));
+        assertFalse(old.exists());
+        assertEquals("new", read(DATA));
+        assertEquals("old", read(reader));
+    }
+
+    @Test
+    public void appendToFile() throws IOException {
+        write(DATA, "w", "abc");
+        File file = queryFile();
+
+        write(DATA, "wa", "def");
+
+        assertEquals(file, queryFile());
+        assertEquals("abcdef", read(DATA));
+    }
+
+    @Test
+    public void deleteRemovesFiles() throws IOException {
+        write(DATA, "w", "content");
+        File file = queryFile();
+
+        assertEquals(1, mProvider.delete(ATTACHMENTS, AttachmentProvider.Attachment.NAME + " = ?",
+                new String[]{"image.png"}));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deleteByIdsRemovesFiles() throws IOException {
+        write(DATA, "w", "content");
+        File file = queryFile();
+
+        assertEquals(1, mProvider.deleteByIds(ATTACHMENTS, new long[]{1, 2}, null, null));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void rollbackKeepsFiles() throws IOException {
+        write(DATA, "w", "content");
+        File file = queryFile();
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newDelete(ROW).build());
+        operations.add(ContentProviderOperation.newAssertQuery(ATTACHMENTS).withExpectedCount(1)
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+            fail("The assertion should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        assertTrue(file.exists());
+        assertEquals("content", read(DATA));
+    }
+
+    @Test
+    public void deleteOrphanedFiles() throws IOException {
+        write(DATA, "w", "content");
+        File file = queryFile();
+        ContentValues values = new ContentValues();
+        values.put(AttachmentProvider.Attachment.ID, 2);
+        mProvider.insert(ATTACHMENTS, values);
+        Uri data = Uri.withAppendedPath(ATTACHMENTS, "2/" + AttachmentProvider.Attachment.DATA);
+        write(data, "w", "orphan");
+        File orphan = new File(file.getParentFile(), queryFileName(2));
+
+        // Like ON DELETE CASCADE, this doesn't delete the file
+        mProvider.getDatabase().execSQL("DELETE FROM attachments WHERE _id = 2");
+        assertTrue(orphan.exists());
+
+        assertEquals(1, mProvider.deleteOrphanedFiles());
+        assertFalse(orphan.exists());
+        assertTrue(file.exists());
+        assertEquals(0, mProvider.deleteOrphanedFiles());
+    }
+
+    @Test
+    public void upgradeDeletesOrphanedFiles() throws IOException {
+        write(DATA, "w", "content");
+        File file = queryFile();
+        File orphan = new File(file.getParentFile(), "orphan");
+        assertTrue(orphan.createNewFile());
+        mProvider.getDatabase().close();
+
+        new AttachmentProvider(2).onCreate();
+
+        assertTrue(file.exists());
+        assertFalse(orphan.exists());
+    }
+
+    @Test
+    public void fileUrisAreRejectedByDeleteAndUpdate() throws IOException {
+        write(DATA, "w", "content");
+        ContentValues values = new ContentValues();
+        values.put(AttachmentProvider.Attachment.ID, 2);
+        values.put(AttachmentProvider.Attachment.NAME, "other.png");
+        mProvider.insert(ATTACHMENTS, values);
+
+        try {
+            mProvider.delete(DATA, null, null);
+            fail("The delete of a file URI should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            mProvider.update(DATA, values, null, null);
+            fail("The update of a file URI should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Cursor c = mProvider.query(ATTACHMENTS, null, null, null, null);
+        assertEquals(2, c.getCount());
+        c.close();
+        assertEquals("image.png", queryName(1));
+        assertEquals("content", read(DATA));
+    }
+
+    @Test
+    public void missingFiles() {
+        assertNotFound(DATA, "r");
+        assertNotFound(Uri.withAppendedPath(ATTACHMENTS, "2/data"), "r");
+        assertNotFound(Uri.withAppendedPath(ATTACHMENTS, "2/data"), "w");
+        assertNotFound(Uri.withAppendedPath(ROW, AttachmentProvider.Attachment.NAME), "w");
+        assertNotFound(ROW, "w");
+    }
+
+    @Test
+    public void rejectsWritingFileNames() {
+        ContentValues values = new ContentValues();
+        values.put(AttachmentProvider.Attachment.DATA, "../../provider.db");
+
+        try {
+            mProvider.update(ROW, values, null, null);
+            fail("The file name should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            mProvider.insert(ATTACHMENTS, values);
+            fail("The file name should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private File queryFile() {
+        final String name = queryFileName(1);
+        if (name == null) {
+            return null;
+        }
+        return new File(mProvider.getDatabase().getPath() + AbstractProvider.FILES_SUFFIX
+                + "/attachments", name);
+    }
+
+    private String queryFileName(long id) {
+        Cursor c = mProvider.query(Uri.withAppendedPath(ATTACHMENTS, String.valueOf(id)),
+                new String[]{AttachmentProvider.Attachment.DATA}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private String queryName(long id) {
+        Cursor c = mProvider.query(Uri.withAppendedPath(ATTACHMENTS, String.valueOf(id)),
+                new String[]{AttachmentProvider.Attachment.NAME}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void write(Uri uri, String mode, String content) throws IOException {
+        ParcelFileDescriptor pfd = mProvider.openFile(uri, mode);
+        try {
+            FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor());
+            out.write(content.getBytes("UTF-8"));
+            out.flush();
+        } finally {
+            pfd.close();
+        }
+    }
+
+    private String read(Uri uri) throws IOException {
+        return read(mProvider.openFile(uri, "r"));
+    }
+
+    private static String read(ParcelFileDescriptor pfd) throws IOException {
+        try {
+            FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+            StringBuilder content = new StringBuilder();
+            byte[] buffer = new byte[64];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                content.append(new String(buffer, 0, count, "UTF-8"));
+            }
+            return content.toString();
+        } finally {
+            pfd.close();
+        }
+    }
+
+    private void assertNotFound(Uri uri, String mode) {
+        try {
+            mProvider.openFile(uri, mode);
+            fail(uri + " should not have been found");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Opens files like the platform does, which Robolectric doesn't support.
+     */
+    @Implements(ParcelFileDescriptor.class)
+    public static class ShadowFileDescriptor {
+
+        private RandomAccessFile mFile;
+
+        @Implementation
+        public static ParcelFileDescriptor open(File file, int mode) throws FileNotFoundException {
+            if (!file.exists() && (mode & ParcelFileDescriptor.MODE_CREATE) == 0) {
+                throw new FileNotFoundException(file.toString());
+            }
+
+            ParcelFileDescriptor pfd = Robolectric.newInstanceOf(ParcelFileDescriptor.class);
+            ShadowFileDescriptor shadow = Robolectric.shadowOf_(pfd);
+            shadow.mFile = new RandomAccessFile(file,
+                    (mode & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0 ? "rw" : "r");
+            try {
+                if ((mode & ParcelFileDescriptor.MODE_TRUNCATE) != 0) {
+                    shadow.mFile.setLength(0);
+                } else if ((mode & ParcelFileDescriptor.MODE_APPEND) != 0) {
+                    shadow.mFile.seek(shadow.mFile.length());
+                }
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+            return pfd;
+        }
+
+        @Implementation
+        public FileDescriptor getFileDescriptor() throws IOException {
+            return mFile.getFD();
+        }
+
+        @Implementation
+        public void close() throws IOException {
+            mFile.close();
+        }
+
+    }
+
+    public static class AttachmentProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.ATTACHMENTS";
+
+        private final int mSchemaVersion;
+
+        public AttachmentProvider() {
+            this(1);
+        }
+
+        AttachmentProvider(int schemaVersion) {
+            mSchemaVersion = schemaVersion;
+        }
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Override
+        protected int getSchemaVersion() {
+            return mSchemaVersion;
+        }
+
+        @Table
+        public class Attachment {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String NAME = "name";
+
+            @Column(value = Column.FieldType.TEXT, file = true)
+            public static final String DATA = "data";
+
+        }
+
+    }
+
+}
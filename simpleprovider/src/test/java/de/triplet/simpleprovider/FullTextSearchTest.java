@@ -0,0 +1,251 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class FullTextSearchTest {
+
+    private static final Uri ARTICLES = Uri.parse("content://" + ArticleProvider.AUTHORITY
+            + "/articles");
+
+    private ArticleProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ArticleProvider();
+        mProvider.onCreate();
+
+        insertArticle(1, "SQLite on Android", "Android ships with SQLite.", "alice");
+        insertArticle(2, "Content providers", "Providers wrap a SQLite database.", "bob");
+        insertArticle(3, "Layouts", "Nested layouts are slow.", "alice");
+    }
+
+    @Test
+    public void fullTextColumns() {
+        Schema schema = Schema.forClass(ArticleProvider.class);
+
+        assertArrayEquals(new String[]{ArticleProvider.Article.TITLE,
+                ArticleProvider.Article.BODY}, schema.getFullTextColumns("articles"));
+        assertEquals(5, schema.getFullTextStatements("articles").size());
+        assertNull(Schema.forClass(TestProvider.class).getFullTextColumns("posts"));
+    }
+
+    @Test
+    public void searchRanksMatches() {
+        Cursor c = mProvider.query(searchUri("sqlite OR android", false), null, null, null, null);
+
+        assertEquals(2, c.getCount());
+        assertEquals(-1, c.getColumnIndex(AbstractProvider.COLUMN_SNIPPET));
+        assertEquals(4, c.getColumnCount());
+        assertEquals(1, getIds(c).get(0).intValue());
+        c.close();
+    }
+
+    @Test
+    public void searchWithSelectionAndSortOrder() {
+        Cursor c = mProvider.query(searchUri("sqlite", false),
+                new String[]{ArticleProvider.Article.ID}, ArticleProvider.Article.AUTHOR + " = ?",
+                new String[]{"bob"}, null);
+        assertEquals(1, c.getCount());
+        assertEquals(2, getIds(c).get(0).intValue());
+        c.close();
+
+        Uri uri = searchUri("sqlite", false).buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "1").build();
+        c = mProvider.query(uri, null, null, null, ArticleProvider.Article.ID + " DESC");
+        assertEquals(1, c.getCount());
+        assertEquals(2, getIds(c).get(0).intValue());
+        c.close();
+    }
+
+    @Test
+    public void searchReturnsSnippets() {
+        Cursor c = mProvider.query(searchUri("providers", true),
+                new String[]{ArticleProvider.Article.ID}, null, null, null);
+
+        assertEquals(1, c.getCount());
+        c.moveToFirst();
+        assertEquals(2, c.getColumnCount());
+        assertTrue(c.getString(c.getColumnIndex(AbstractProvider.COLUMN_SNIPPET))
+                .toLowerCase(Locale.US).contains("<b>providers</b>"));
+        c.close();
+    }
+
+    @Test
+    public void countMatches() {
+        Uri uri = Uri.withAppendedPath(ARTICLES, AbstractProvider.PATH_COUNT).buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_SEARCH, "sqlite").build();
+        Cursor c = mProvider.query(uri, null, ArticleProvider.Article.AUTHOR + " = ?",
+                new String[]{"alice"}, null);
+
+        c.moveToFirst();
+        assertEquals(1, c.getInt(0));
+        c.close();
+    }
+
+    @Test
+    public void triggersKeepIndexInSync() {
+        ContentValues values = new ContentValues();
+        values.put(ArticleProvider.Article.BODY, "Measure before optimizing layouts.");
+        mProvider.update(Uri.withAppendedPath(ARTICLES, "1"), values, null, null);
+        mProvider.delete(Uri.withAppendedPath(ARTICLES, "2"), null, null);
+
+        assertEquals(0, count(searchUri("ships", false)));
+        assertEquals(2, count(searchUri("layouts", false)));
+        assertEquals(1, count(searchUri("sqlite", false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void searchRequiresFullTextIndex() {
+        TestProvider provider = new TestProvider();
+        provider.onCreate();
+        provider.query(Uri.parse("content://" + TestProvider.AUTHORITY + "/posts?"
+                + AbstractProvider.QUERY_SEARCH + "=test"), null, null, null, null);
+    }
+
+    @Test
+    public void upgradeIndexesExistingRows() {
+        Schema schema = Schema.forClass(ArticleProvider.class);
+        SQLiteDatabase db = createVersion1(schema);
+
+        for (String statement : schema.getUpgradeStatements(1, 2)) {
+            db.execSQL(statement);
+        }
+
+        assertEquals(1, countMatches(db, "layouts"));
+        db.close();
+    }
+
+    @Test
+    public void migratorCreatesIndex() {
+        Schema schema = Schema.forClass(ArticleProvider.class);
+        SQLiteDatabase db = createVersion1(schema);
+
+        final List<String> migrated = new ArrayList<String>();
+        SchemaMigrator migrator = new SchemaMigrator() {
+
+            @Override
+            protected void onTableMigrated(String table, Change change, long copiedRows,
+                                           long durationMillis) {
+                migrated.add(table + " " + change);
+            }
+
+        };
+
+        migrator.migrate(db, schema);
+        assertEquals(1, countMatches(db, "layouts"));
+        assertEquals(1, migrated.size());
+
+        // The index is up to date, so it is kept
+        migrator.migrate(db, schema);
+        assertEquals(1, migrated.size());
+
+        db.execSQL("DROP TRIGGER articles_fts_ai");
+        migrator.migrate(db, schema);
+        assertEquals("articles ALTERED", migrated.get(1));
+        db.execSQL("INSERT INTO articles (_id, title) VALUES (2, 'More layouts')");
+        assertEquals(2, countMatches(db, "layouts"));
+        db.close();
+    }
+
+    private void insertArticle(int id, String title, String body, String author) {
+        ContentValues values = new ContentValues();
+        values.put(ArticleProvider.Article.ID, id);
+        values.put(ArticleProvider.Article.TITLE, title);
+        values.put(ArticleProvider.Article.BODY, body);
+        values.put(ArticleProvider.Article.AUTHOR, author);
+        mProvider.insert(ARTICLES, values);
+    }
+
+    private int count(Uri uri) {
+        Cursor c = mProvider.query(uri, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Uri searchUri(String search, boolean snippet) {
+        return ARTICLES.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_SEARCH, search)
+                .appendQueryParameter(AbstractProvider.QUERY_SNIPPET, String.valueOf(snippet))
+                .build();
+    }
+
+    private static List<Integer> getIds(Cursor c) {
+        List<Integer> ids = new ArrayList<Integer>();
+        while (c.moveToNext()) {
+            ids.add(c.getInt(c.getColumnIndex(ArticleProvider.Article.ID)));
+        }
+        return ids;
+    }
+
+    /**
+     * Creates the articles table without its full-text index and inserts an article.
+     */
+    private static SQLiteDatabase createVersion1(Schema schema) {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL(schema.getCreateStatement("articles"));
+        db.execSQL("INSERT INTO articles (_id, title, body) VALUES (1, 'Layouts', 'Nested')");
+        return db;
+    }
+
+    private static int countMatches(SQLiteDatabase db, String search) {
+        Cursor c = db.rawQuery("SELECT docid FROM articles_fts WHERE articles_fts MATCH ?",
+                new String[]{search});
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public static class ArticleProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.ARTICLES";
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Table(fullTextSince = 2)
+        public class Article {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(value = Column.FieldType.TEXT, fullText = true)
+            public static final String TITLE = "title";
+
+            @Column(value = Column.FieldType.TEXT, fullText = true)
+            public static final String BODY = "body";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String AUTHOR = "author";
+
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IdSetTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+    private static final int ROWS = 3000;
+    private static final String WRITE_PERMISSION = "de.triplet.simpleprovider.WRITE";
+
+    private TestProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new TestProvider();
+        mProvider.onCreate();
+
+        ContentValues[] values = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TestProvider.Post.ID, i + 1);
+            values[i].put(TestProvider.Post.CONTENT, i % 2 == 0 ? "odd" : "even");
+        }
+        mProvider.bulkInsert(POSTS, values);
+        getShadowContentResolver().getNotifiedUris().clear();
+    }
+
+    @Test
+    public void deleteMoreIdsThanBindArgs() {
+        long[] ids = new long[2500];
+        for (int i = 0; i < ids.length; i++) {
+            // Includes ids that don't exist
+            ids[i] = i + 600;
+        }
+
+        assertEquals(2401, mProvider.deleteByIds(POSTS, ids, null, null));
+        assertEquals(ROWS - 2401, count(null, null));
+        assertEquals(0, count(TestProvider.Post.ID + " >= ?", new String[]{"600"}));
+
+        List<ShadowContentResolver.NotifiedUri> uris = getShadowContentResolver()
+                .getNotifiedUris();
+        assertEquals(1, uris.size());
+        assertEquals(POSTS, uris.get(0).uri);
+    }
+
+    @Test
+    public void updateWithSelection() {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, "updated");
+
+        assertEquals(2, mProvider.updateByIds(POSTS, new long[]{1, 2, 3, 4}, values,
+                TestProvider.Post.CONTENT + " = ?", new String[]{"odd"}));
+        assertEquals(2, count(TestProvider.Post.CONTENT + " = ?", new String[]{"updated"}));
+        assertEquals(1, count(TestProvider.Post.ID + " = 3 AND " + TestProvider.Post.CONTENT
+                + " = ?", new String[]{"updated"}));
+    }
+
+    @Test
+    public void similarSizesShareStatements() {
+        mProvider.deleteByIds(POSTS, new long[]{1, 2, 3}, null, null);
+        int size = mProvider.getStatementCache().size();
+
+        assertEquals(4, mProvider.deleteByIds(POSTS, new long[]{4, 5, 6, 7}, null, null));
+        assertEquals(size, mProvider.getStatementCache().size());
+        assertEquals(0, mProvider.deleteByIds(POSTS, new long[0], null, null));
+    }
+
+    @Test
+    public void call() {
+        Bundle extras = new Bundle();
+        extras.putLongArray(AbstractProvider.EXTRA_IDS, new long[]{1, 2});
+        Bundle result = mProvider.call(AbstractProvider.CALL_DELETE_BY_IDS, POSTS.toString(),
+                extras);
+        assertEquals(2, result.getInt(AbstractProvider.EXTRA_COUNT));
+
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, "updated");
+        extras.putLongArray(AbstractProvider.EXTRA_IDS, new long[]{2, 3, 4});
+        extras.putParcelable(AbstractProvider.EXTRA_VALUES, values);
+        extras.putString(AbstractProvider.EXTRA_SELECTION, TestProvider.Post.CONTENT + " = ?");
+        extras.putStringArray(AbstractProvider.EXTRA_SELECTION_ARGS, new String[]{"even"});
+        result = mProvider.call(AbstractProvider.CALL_UPDATE_BY_IDS, POSTS.toString(), extras);
+        assertEquals(1, result.getInt(AbstractProvider.EXTRA_COUNT));
+        assertEquals(1, count(TestProvider.Post.CONTENT + " = ?", new String[]{"updated"}));
+    }
+
+    @Test
+    @Config(shadows = SnapshotQueryTest.ShadowProviderWithoutUriPermissions.class)
+    public void callRequiresWritePermission() {
+        WriteProtectedProvider provider = new WriteProtectedProvider();
+        provider.onCreate();
+        Bundle extras = new Bundle();
+        extras.putLongArray(AbstractProvider.EXTRA_IDS, new long[]{1});
+
+        try {
+            provider.call(AbstractProvider.CALL_DELETE_BY_IDS, POSTS.toString(), extras);
+            fail("The delete should have been denied");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        Robolectric.getShadowApplication().grantPermissions(WRITE_PERMISSION);
+        Bundle result = provider.call(AbstractProvider.CALL_DELETE_BY_IDS, POSTS.toString(),
+                extras);
+        assertEquals(0, result.getInt(AbstractProvider.EXTRA_COUNT));
+    }
+
+    @Test
+    public void callRejectsOtherAuthorities() {
+        Bundle extras = new Bundle();
+        extras.putLongArray(AbstractProvider.EXTRA_IDS, new long[]{1});
+
+        try {
+            mProvider.call(AbstractProvider.CALL_DELETE_BY_IDS, "content://other/posts", extras);
+            fail("The URI of another provider should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(ROWS, count(null, null));
+    }
+
+    @Test
+    public void rejectsRowUris() {
+        try {
+            mProvider.deleteByIds(Uri.withAppendedPath(POSTS, "1"), new long[]{1}, null, null);
+            fail("Row URIs should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private int count(String selection, String[] selectionArgs) {
+        Cursor c = mProvider.query(POSTS, null, selection, selectionArgs, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ShadowContentResolver getShadowContentResolver() {
+        return Robolectric.shadowOf_(Robolectric.application.getContentResolver());
+    }
+
+    public static class WriteProtectedProvider extends TestProvider {
+
+        public WriteProtectedProvider() {
+            setWritePermission(WRITE_PERMISSION);
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package de.triplet.simpleprovider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IndexTest {
+
+    private IndexedSQLHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mHelper = new IndexedSQLHelper();
+        mDatabase = SQLiteDatabase.create(null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void createTablesCreatesIndices() {
+        mHelper.onCreate(mDatabase);
+
+        assertEquals(Arrays.asList("comments_author", "comments_author_timestamp",
+                "comments_post_id", "comments_post_id_timestamp"), getIndexNames());
+    }
+
+    @Test
+    public void queryPlanUsesIndices() {
+        mHelper.onCreate(mDatabase);
+
+        String plan = explain("SELECT * FROM comments WHERE post_id = ?");
+        assertTrue(plan, plan.contains("INDEX comments_post_id"));
+
+        plan = explain("SELECT * FROM comments WHERE post_id = ? ORDER BY timestamp DESC");
+        assertTrue(plan, plan.contains("INDEX comments_post_id_timestamp"));
+        assertFalse("Sorting should use the index: " + plan, plan.contains("TEMP B-TREE"));
+    }
+
+    @Test
+    public void upgradeAddsIndices() {
+        // Schema version 1
+        mDatabase.execSQL("CREATE TABLE comments (_id INTEGER PRIMARY KEY, post_id INTEGER, "
+                + "timestamp REAL);");
+        mDatabase.execSQL("CREATE INDEX comments_post_id ON comments (post_id);");
+
+        mHelper.onUpgrade(mDatabase, 1, 2);
+        assertEquals(Arrays.asList("comments_post_id", "comments_post_id_timestamp"),
+                getIndexNames());
+
+        mHelper.onUpgrade(mDatabase, 2, 3);
+        assertEquals(Arrays.asList("comments_author", "comments_author_timestamp",
+                "comments_post_id", "comments_post_id_timestamp"), getIndexNames());
+    }
+
+    @Test
+    public void indicesWaitForTheirColumns() {
+        Schema schema = Schema.forClass(IndexedSQLHelper.class);
+
+        assertEquals(Arrays.asList("CREATE INDEX comments_post_id_timestamp ON comments "
+                        + "(post_id, timestamp DESC);"), schema.getUpgradeStatements(1, 2));
+        assertEquals(Arrays.asList("ALTER TABLE comments ADD COLUMN author TEXT;",
+                        "CREATE INDEX comments_author ON comments (author);",
+                        "CREATE INDEX comments_author_timestamp ON comments (author, timestamp);"),
+                schema.getUpgradeStatements(2, 3));
+    }
+
+    @Test
+    public void partialIndex() {
+        Schema schema = Schema.forClass(PartialIndexTables.class);
+
+        assertEquals(Arrays.asList("CREATE TABLE posts (_id INTEGER PRIMARY KEY, slug TEXT, "
+                        + "deleted INTEGER);",
+                "CREATE UNIQUE INDEX active_slugs ON posts (slug) WHERE deleted = 0;"),
+                schema.getCreateStatements());
+    }
+
+    private List<String> getIndexNames() {
+        List<String> names = new ArrayList<String>();
+        Cursor c = mDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' "
+                + "AND tbl_name = 'comments' AND sql IS NOT NULL ORDER BY name", null);
+        while (c.moveToNext()) {
+            names.add(c.getString(0));
+        }
+        c.close();
+        return names;
+    }
+
+    private String explain(String query) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + query, new String[]{"1"});
+        while (c.moveToNext()) {
+            plan.append(c.getString(c.getColumnIndex("detail"))).append('\n');
+        }
+        c.close();
+        return plan.toString();
+    }
+
+    public static class IndexedSQLHelper extends SimpleSQLHelper {
+
+        public IndexedSQLHelper() {
+            super(Robolectric.application, null, 3);
+        }
+
+        @Table(indices = {
+                @Index(columns = {Comment.POST_ID, Comment.TIMESTAMP + " DESC"}, since = 2),
+                @Index(columns = {Comment.AUTHOR, Comment.TIMESTAMP})
+        })
+        public static final class Comment {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(value = Column.FieldType.INTEGER, index = true)
+            public static final String POST_ID = "post_id";
+
+            @Column(Column.FieldType.REAL)
+            public static final String TIMESTAMP = "timestamp";
+
+            @Column(value = Column.FieldType.TEXT, since = 3, index = true)
+            public static final String AUTHOR = "author";
+
+        }
+
+    }
+
+    public static class PartialIndexTables {
+
+        @Table(indices = @Index(name = "active_slugs", columns = Post.SLUG, unique = true,
+                where = "deleted = 0"))
+        public static final class Post {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String SLUG = "slug";
+
+            @Column(Column.FieldType.INTEGER)
+            public static final String DELETED = "deleted";
+
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentUris;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class NotificationAggregatorTest {
+
+    private static final Uri POSTS = Uri.parse("content://authority/posts");
+    private static final Uri COMMENTS = Uri.parse("content://authority/comments");
+
+    private NotificationAggregator mAggregator;
+
+    @Before
+    public void setUp() {
+        mAggregator = new NotificationAggregator();
+    }
+
+    @Test
+    public void tableUriReplacesRowUris() {
+        mAggregator.add(ContentUris.withAppendedId(POSTS, 1), true);
+        mAggregator.add(POSTS, true);
+        mAggregator.add(ContentUris.withAppendedId(POSTS, 2), true);
+        mAggregator.add(ContentUris.withAppendedId(COMMENTS, 1), true);
+
+        Map<Uri, Boolean> uris = mAggregator.collapse();
+
+        assertEquals(2, uris.size());
+        assertTrue(uris.containsKey(POSTS));
+        assertTrue(uris.containsKey(ContentUris.withAppendedId(COMMENTS, 1)));
+    }
+
+    @Test
+    public void manyRowUrisAreCollapsed() {
+        for (int i = 0; i <= NotificationAggregator.MAX_ROW_URIS; i++) {
+            mAggregator.add(ContentUris.withAppendedId(POSTS, i), true);
+        }
+
+        Map<Uri, Boolean> uris = mAggregator.collapse();
+
+        assertEquals(1, uris.size());
+        assertTrue(uris.containsKey(POSTS));
+    }
+
+    @Test
+    public void syncToNetworkIsMerged() {
+        mAggregator.add(POSTS, false);
+        mAggregator.add(POSTS.buildUpon().appendQueryParameter("foo", "bar").build(), true);
+        mAggregator.add(COMMENTS, false);
+
+        Map<Uri, Boolean> uris = mAggregator.collapse();
+
+        assertEquals(2, uris.size());
+        assertTrue(uris.get(POSTS));
+        assertFalse(uris.get(COMMENTS));
+    }
+
+}
@@ -0,0 +1,161 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class OpenModeTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    @Test
+    public void eagerOpensInOnCreate() {
+        OpenModeProvider provider = new OpenModeProvider(AbstractProvider.OpenMode.EAGER, null);
+
+        assertTrue(provider.onCreate());
+
+        assertNotNull(provider.mDatabase);
+        assertEquals(1, provider.mOpenCount.get());
+    }
+
+    @Test
+    public void lazyOpensOnFirstAccess() {
+        OpenModeProvider provider = new OpenModeProvider(AbstractProvider.OpenMode.LAZY, null);
+
+        assertTrue(provider.onCreate());
+        assertNull("onCreate() must not open the database", provider.mDatabase);
+
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, "content");
+        provider.insert(POSTS, values);
+        Cursor c = provider.query(POSTS, null, null, null, null);
+
+        assertEquals(1, c.getCount());
+        c.close();
+        assertNotNull(provider.mDatabase);
+        assertEquals(1, provider.mOpenCount.get());
+    }
+
+    @Test
+    public void concurrentCallersShareOpen() throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final OpenModeProvider provider = new OpenModeProvider(
+                AbstractProvider.OpenMode.BACKGROUND, new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                // Delay the warm up until the callers are running
+                tasks.add(command);
+            }
+
+        });
+
+        assertTrue(provider.onCreate());
+        assertEquals(1, tasks.size());
+
+        // Robolectric loads the system resources lazily, which isn't thread safe
+        Robolectric.application.getString(android.R.string.ok);
+
+        final int threadCount = 4;
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread() {
+
+                @Override
+                public void run() {
+                    Cursor c = provider.query(POSTS, null, null, null, null);
+                    c.close();
+                    done.countDown();
+                }
+
+            }.start();
+        }
+        tasks.get(0).run();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("The database must be opened once", 1, provider.mOpenCount.get());
+    }
+
+    @Test
+    public void failedOpenIsRetried() {
+        OpenModeProvider provider = new OpenModeProvider(AbstractProvider.OpenMode.LAZY, null);
+        provider.mFailures = 1;
+        assertTrue(provider.onCreate());
+
+        try {
+            provider.query(POSTS, null, null, null, null);
+            fail("Opening the database should have failed");
+        } catch (SQLiteException e) {
+            // expected
+        }
+        assertNull(provider.mDatabase);
+
+        Cursor c = provider.query(POSTS, null, null, null, null);
+        assertEquals(0, c.getCount());
+        c.close();
+        assertEquals(1, provider.mOpenCount.get());
+    }
+
+    private static class OpenModeProvider extends TestProvider {
+
+        final AtomicInteger mOpenCount = new AtomicInteger();
+
+        volatile int mFailures;
+
+        private final OpenMode mOpenMode;
+        private final Executor mExecutor;
+
+        OpenModeProvider(OpenMode openMode, Executor executor) {
+            mOpenMode = openMode;
+            mExecutor = executor;
+        }
+
+        @Override
+        protected OpenMode getOpenMode() {
+            return mOpenMode;
+        }
+
+        @Override
+        protected Executor getOpenExecutor() {
+            return mExecutor;
+        }
+
+        @Override
+        protected void onConfigure(SQLiteDatabase db) {
+            if (mFailures > 0) {
+                mFailures--;
+                throw new SQLiteException("Storage not available");
+            }
+        }
+
+        @Override
+        protected void onDatabaseOpened(SQLiteDatabase db, long durationMillis) {
+            mOpenCount.incrementAndGet();
+        }
+
+    }
+
+}
@@ -0,0 +1,103 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class PageIteratorTest {
+
+    private ContentResolver mContentResolver;
+    private Uri mPostsUri;
+
+    @Before
+    public void setUp() {
+        TestProvider provider = new TestProvider();
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(TestProvider.AUTHORITY, provider);
+
+        mContentResolver = Robolectric.application.getContentResolver();
+        mPostsUri = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+    }
+
+    @Test
+    public void iteratesAllRows() {
+        insertPosts(25);
+
+        PageIterator pages = new PageIterator(mContentResolver, mPostsUri, null, null, null, 10);
+        int[] sizes = {10, 10, 5};
+        long expectedId = 0;
+        Cursor previous = null;
+        for (int size : sizes) {
+            assertTrue(pages.hasNext());
+            Cursor page = pages.next();
+            if (previous != null) {
+                assertTrue("Previous page must be closed", previous.isClosed());
+            }
+
+            assertEquals(size, page.getCount());
+            while (page.moveToNext()) {
+                assertEquals(expectedId++, page.getLong(0));
+            }
+            previous = page;
+        }
+
+        assertFalse(pages.hasNext());
+        assertTrue(previous.isClosed());
+    }
+
+    @Test
+    public void exactMultipleOfPageSize() {
+        insertPosts(20);
+
+        PageIterator pages = new PageIterator(mContentResolver, mPostsUri,
+                new String[]{TestProvider.Post.ID}, TestProvider.Post.ID + " >= ?",
+                new String[]{"5"}, 5);
+        int count = 0;
+        while (pages.hasNext()) {
+            count += pages.next().getCount();
+        }
+        assertEquals(15, count);
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyTable() {
+        PageIterator pages = new PageIterator(mContentResolver, mPostsUri, null, null, null, 10);
+        assertFalse(pages.hasNext());
+        pages.next();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectionWithoutId() {
+        insertPosts(1);
+        new PageIterator(mContentResolver, mPostsUri, new String[]{TestProvider.Post.CONTENT},
+                null, null, 10).hasNext();
+    }
+
+    private void insertPosts(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TestProvider.Post.ID, i);
+            values[i].put(TestProvider.Post.CONTENT, "Post #" + i);
+        }
+        mContentResolver.bulkInsert(mPostsUri, values);
+    }
+
+}
@@ -0,0 +1,124 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ProjectionTest {
+
+    private static final Uri DOCUMENTS = Uri.parse("content://" + DocumentProvider.AUTHORITY
+            + "/documents");
+
+    private DocumentProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new DocumentProvider();
+        mProvider.onCreate();
+
+        ContentValues values = new ContentValues();
+        values.put(DocumentProvider.Document.ID, 1);
+        values.put(DocumentProvider.Document.TITLE, "Title");
+        values.put(DocumentProvider.Document.BODY, "A very long body");
+        values.put(DocumentProvider.Document.THUMBNAIL, new byte[]{1, 2, 3});
+        mProvider.insert(DOCUMENTS, values);
+    }
+
+    @Test
+    public void defaultProjection() {
+        assertArrayEquals(new String[]{DocumentProvider.Document.ID,
+                        DocumentProvider.Document.TITLE},
+                Schema.forClass(DocumentProvider.class).getDefaultProjection("documents"));
+        assertNull(Schema.forClass(TestProvider.class).getDefaultProjection("posts"));
+    }
+
+    @Test
+    public void heavyColumnsAreExcludedByDefault() {
+        Cursor c = mProvider.query(DOCUMENTS, null, null, null, null);
+        assertArrayEquals(new String[]{DocumentProvider.Document.ID,
+                DocumentProvider.Document.TITLE}, c.getColumnNames());
+        c.close();
+
+        // Single rows are answered from the row cache
+        Uri uri = ContentUris.withAppendedId(DOCUMENTS, 1);
+        for (int i = 0; i < 2; i++) {
+            c = mProvider.query(uri, null, null, null, null);
+            assertArrayEquals(new String[]{DocumentProvider.Document.ID,
+                    DocumentProvider.Document.TITLE}, c.getColumnNames());
+            c.close();
+        }
+    }
+
+    @Test
+    public void heavyColumnsCanBeRequested() {
+        Cursor c = mProvider.query(DOCUMENTS, new String[]{DocumentProvider.Document.BODY},
+                null, null, null);
+        c.moveToFirst();
+        assertEquals("A very long body", c.getString(0));
+        c.close();
+    }
+
+    @Test
+    public void expressionsAreNotValidated() {
+        Cursor c = mProvider.query(DOCUMENTS, new String[]{"count(*)", "rowid"}, null, null,
+                null);
+        c.moveToFirst();
+        assertEquals(1, c.getInt(0));
+        c.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumnsAreRejected() {
+        mProvider.query(DOCUMENTS, new String[]{DocumentProvider.Document.TITLE, "titel"}, null,
+                null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownUpdateColumnsAreRejected() {
+        ContentValues values = new ContentValues();
+        values.put("titel", "Typo");
+        mProvider.update(DOCUMENTS, values, null, null);
+    }
+
+    public static class DocumentProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.DOCUMENTS";
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Table(rowCacheSize = 4)
+        public class Document {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String TITLE = "title";
+
+            @Column(value = Column.FieldType.TEXT, heavy = true)
+            public static final String BODY = "body";
+
+            @Column(value = Column.FieldType.BLOB, heavy = true)
+            public static final String THUMBNAIL = "thumbnail";
+
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ProviderMetricsTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    private TestProvider mProvider;
+    private RecordingMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mProvider = new TestProvider();
+        mProvider.onCreate();
+        mMetrics = new RecordingMetrics();
+        mProvider.setMetrics(mMetrics);
+    }
+
+    @Test
+    public void recordsOperationsPerTable() throws OperationApplicationException {
+        mProvider.insert(POSTS, createPost(1));
+        mProvider.bulkInsert(POSTS, new ContentValues[]{createPost(2), createPost(3)});
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createPost(4))
+                .build());
+        mProvider.applyBatch(operations);
+
+        Cursor c = mProvider.query(POSTS, null, null, null, null);
+        assertEquals(4, c.getCount());
+        c.close();
+        mProvider.update(POSTS, createPost(5), TestProvider.Post.ID + " > ?",
+                new String[]{"2"});
+        mProvider.delete(POSTS, null, null);
+
+        assertEquals(2, mMetrics.getHistogram("posts", ProviderMetrics.Operation.INSERT)
+                .getCount());
+        assertEquals(2, mMetrics.getRowCount("posts", ProviderMetrics.Operation.INSERT));
+        assertEquals(2, mMetrics.getRowCount("posts", ProviderMetrics.Operation.BULK_INSERT));
+        assertEquals(1, mMetrics.getHistogram(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.APPLY_BATCH).getCount());
+        assertEquals(4, mMetrics.getRowCount("posts", ProviderMetrics.Operation.QUERY));
+        assertEquals(2, mMetrics.getRowCount("posts", ProviderMetrics.Operation.UPDATE));
+        assertEquals(4, mMetrics.getRowCount("posts", ProviderMetrics.Operation.DELETE));
+        assertTrue(mMetrics.mSlowOperations.isEmpty());
+    }
+
+    @Test
+    public void recordsRowsAndFailuresOfBatches() {
+        mProvider.bulkInsert(POSTS, new ContentValues[]{createPost(1), createPost(2)});
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createPost(3))
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(POSTS)
+                .withValue(TestProvider.Post.CONTENT, "Updated").build());
+        operations.add(ContentProviderOperation.newDelete(Uri.withAppendedPath(POSTS, "1"))
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(5, mMetrics.getRowCount(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.APPLY_BATCH));
+
+        operations.clear();
+        operations.add(ContentProviderOperation.newAssertQuery(POSTS).withExpectedCount(10)
+                .build());
+        try {
+            mProvider.applyBatch(operations);
+            fail("The assertion should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals(2, mMetrics.getHistogram(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.APPLY_BATCH).getCount());
+        assertEquals(5, mMetrics.getRowCount(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.APPLY_BATCH));
+    }
+
+    @Test
+    public void queriesAreRecordedWhenExecuted() {
+        mProvider.bulkInsert(POSTS, new ContentValues[]{createPost(1), createPost(2)});
+
+        Cursor c = mProvider.query(POSTS, null, null, null, null);
+        assertEquals("The query must not be executed by the metrics", 0,
+                mMetrics.getHistogram("posts", ProviderMetrics.Operation.QUERY).getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals(2, c.getCount());
+        c.close();
+        assertEquals(1, mMetrics.getHistogram("posts", ProviderMetrics.Operation.QUERY)
+                .getCount());
+        assertEquals(2, mMetrics.getRowCount("posts", ProviderMetrics.Operation.QUERY));
+
+        mProvider.query(POSTS, null, null, null, null).close();
+        assertEquals(2, mMetrics.getHistogram("posts", ProviderMetrics.Operation.QUERY)
+                .getCount());
+        assertEquals("Cursors that are never read have no rows", 2,
+                mMetrics.getRowCount("posts", ProviderMetrics.Operation.QUERY));
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        mProvider.setMetrics(null);
+        mProvider.insert(POSTS, createPost(1));
+
+        assertTrue(mMetrics.getTables().isEmpty());
+    }
+
+    @Test
+    public void logsSlowQueriesWithPlan() {
+        mMetrics.slowOperationThreshold(0).explainSlowQueries(true);
+        mProvider.insert(POSTS, createPost(1));
+
+        Cursor c = mProvider.query(POSTS, null, TestProvider.Post.CONTENT + " = ?",
+                new String[]{"Post #1"}, null);
+        c.close();
+
+        assertEquals(2, mMetrics.mSlowOperations.size());
+        assertNull("Inserts have no SQL", mMetrics.mSlowOperations.get(0)[0]);
+        String[] query = mMetrics.mSlowOperations.get(1);
+        assertEquals("SELECT * FROM posts WHERE (content = ?), args=[Post #1]", query[0]);
+        assertNotNull(query[1]);
+        assertTrue(query[1], query[1].contains("SCAN TABLE posts"));
+    }
+
+    @Test
+    public void recordsUpgrades() {
+        ProviderMetrics metrics = new ProviderMetrics();
+        UpgradedProvider provider = new UpgradedProvider();
+        provider.setMetrics(metrics);
+        provider.onCreate();
+
+        assertEquals(1, metrics.getHistogram(ProviderMetrics.ALL_TABLES,
+                ProviderMetrics.Operation.UPGRADE).getCount());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i * 10));
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(505, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertEquals(512, histogram.getPercentileMicros(50));
+        assertEquals(1024, histogram.getPercentileMicros(99));
+        assertEquals(0, new LatencyHistogram().getPercentileMicros(99));
+    }
+
+    private static ContentValues createPost(int id) {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, id);
+        values.put(TestProvider.Post.CONTENT, "Post #" + id);
+        return values;
+    }
+
+    private static class RecordingMetrics extends ProviderMetrics {
+
+        final List<String[]> mSlowOperations = new ArrayList<String[]>();
+
+        @Override
+        protected void onSlowOperation(String table, Operation operation, long durationNanos,
+                                       String sql, String queryPlan) {
+            mSlowOperations.add(new String[]{sql, queryPlan});
+        }
+
+    }
+
+    private static class UpgradedProvider extends TestProvider {
+
+        @Override
+        protected String getDatabaseFileName() {
+            // Upgrade the database created by setUp()
+            return TestProvider.class.getName().toLowerCase() + ".db";
+        }
+
+        @Override
+        protected int getSchemaVersion() {
+            return 2;
+        }
+
+    }
+
+}
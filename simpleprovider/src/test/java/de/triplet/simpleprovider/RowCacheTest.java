@@ -0,0 +1,192 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RowCacheTest {
+
+    private static final Uri SETTINGS = Uri.parse("content://" + CachedProvider.AUTHORITY
+            + "/settings");
+
+    private CachedProvider mProvider;
+    private RowCache mRowCache;
+
+    @Before
+    public void setUp() {
+        mProvider = new CachedProvider();
+        mProvider.onCreate();
+        mRowCache = mProvider.getRowCache("settings");
+
+        for (int i = 1; i <= 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(CachedProvider.Setting.ID, i);
+            values.put(CachedProvider.Setting.VALUE, "Value " + i);
+            values.put(CachedProvider.Setting.DATA, new byte[]{(byte) i});
+            mProvider.insert(SETTINGS, values);
+        }
+    }
+
+    @Test
+    public void disabledByDefault() {
+        TestProvider provider = new TestProvider();
+        provider.onCreate();
+
+        assertNull(provider.getRowCache("posts"));
+    }
+
+    @Test
+    public void repeatedQueriesAreCached() {
+        assertEquals("Value 1", queryValue(1));
+        assertEquals("Value 1", queryValue(1));
+
+        assertEquals(1, mRowCache.missCount());
+        assertEquals(1, mRowCache.hitCount());
+        assertEquals(1, mRowCache.size());
+    }
+
+    @Test
+    public void cachedRowsAreCopied() {
+        Cursor c = query(1, null);
+        assertArrayEquals(new String[]{CachedProvider.Setting.ID, CachedProvider.Setting.VALUE,
+                CachedProvider.Setting.DATA}, c.getColumnNames());
+        c.getBlob(2)[0] = 42;
+        c.close();
+
+        c = query(1, new String[]{CachedProvider.Setting.DATA, CachedProvider.Setting.ID});
+        assertArrayEquals(new byte[]{1}, c.getBlob(0));
+        assertEquals(1, c.getLong(1));
+        c.close();
+        assertEquals(1, mRowCache.hitCount());
+    }
+
+    @Test
+    public void updateInvalidatesRow() {
+        queryValue(1);
+        queryValue(2);
+
+        ContentValues values = new ContentValues();
+        values.put(CachedProvider.Setting.VALUE, "Changed");
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(SETTINGS, 1), values, null,
+                null));
+
+        assertEquals(1, mRowCache.size());
+        assertEquals("Changed", queryValue(1));
+        assertEquals("Value 2", queryValue(2));
+
+        values.put(CachedProvider.Setting.VALUE, "All changed");
+        assertEquals(3, mProvider.update(SETTINGS, values, null, null));
+        assertEquals(0, mRowCache.size());
+        assertEquals("All changed", queryValue(2));
+    }
+
+    @Test
+    public void deleteInvalidatesRow() {
+        queryValue(3);
+
+        assertEquals(1, mProvider.delete(ContentUris.withAppendedId(SETTINGS, 3), null, null));
+
+        Cursor c = query(3, null);
+        assertEquals(0, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void applyBatchInvalidatesRow() throws OperationApplicationException {
+        queryValue(1);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(SETTINGS, 1))
+                .withValue(CachedProvider.Setting.VALUE, "Batch").build());
+        mProvider.applyBatch(operations);
+
+        assertEquals("Batch", queryValue(1));
+    }
+
+    @Test
+    public void leastRecentlyUsedRowsAreEvicted() {
+        queryValue(1);
+        queryValue(2);
+        queryValue(3);
+
+        assertEquals(2, mRowCache.size());
+        assertEquals(1, mRowCache.evictionCount());
+    }
+
+    @Test
+    public void selectionsBypassCache() {
+        Cursor c = mProvider.query(ContentUris.withAppendedId(SETTINGS, 1), null,
+                CachedProvider.Setting.VALUE + " = ?", new String[]{"Value 1"}, null);
+        assertEquals(1, c.getCount());
+        c.close();
+
+        c = query(1, new String[]{"COUNT(*)"});
+        assertEquals(1, c.getInt(0));
+        c.close();
+
+        assertEquals(0, mRowCache.hitCount());
+        assertEquals(1, mRowCache.missCount());
+    }
+
+    private Cursor query(long id, String[] projection) {
+        Cursor c = mProvider.query(ContentUris.withAppendedId(SETTINGS, id), projection, null,
+                null, null);
+        if (c.getCount() > 0) {
+            assertTrue(c.moveToFirst());
+        }
+        return c;
+    }
+
+    private String queryValue(long id) {
+        Cursor c = query(id, new String[]{CachedProvider.Setting.VALUE});
+        try {
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public static class CachedProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.CACHED";
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Table(rowCacheSize = 2)
+        public class Setting {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String VALUE = "value";
+
+            @Column(Column.FieldType.BLOB)
+            public static final String DATA = "data";
+
+        }
+
+    }
+
+}
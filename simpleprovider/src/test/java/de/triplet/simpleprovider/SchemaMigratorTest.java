@@ -0,0 +1,325 @@
+package de.triplet.simpleprovider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SchemaMigratorTest {
+
+    private MigratingSQLHelper mHelper;
+    private RecordingMigrator mMigrator;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mHelper = new MigratingSQLHelper();
+        mMigrator = new RecordingMigrator();
+        mMigrator.batchSize(10);
+        mHelper.setMigrator(mMigrator);
+        mDatabase = SQLiteDatabase.create(null);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void createsMissingTables() {
+        mHelper.onUpgrade(mDatabase, 1, 2);
+
+        assertEquals(SchemaMigrator.Change.CREATED, mMigrator.mChanges.get("posts"));
+        assertEquals(SchemaMigrator.Change.CREATED, mMigrator.mChanges.get("events"));
+        assertEquals(Arrays.asList("posts_rating"), getIndexNames());
+    }
+
+    @Test
+    public void addsColumns() {
+        mDatabase.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY, content TEXT NOT NULL, "
+                + "rating INTEGER)");
+        mDatabase.execSQL("INSERT INTO posts VALUES (1, 'Post', 5)");
+
+        mHelper.onUpgrade(mDatabase, 1, 2);
+
+        assertEquals(SchemaMigrator.Change.ALTERED, mMigrator.mChanges.get("posts"));
+        assertEquals(Arrays.asList("_id", "content", "rating", "author"), getColumns("posts"));
+        assertEquals(Arrays.asList("posts_rating"), getIndexNames());
+    }
+
+    @Test
+    public void rebuildsChangedTables() {
+        mDatabase.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY, content TEXT, "
+                + "obsolete TEXT, rating TEXT)");
+        mDatabase.execSQL("CREATE INDEX posts_obsolete ON posts (obsolete)");
+        for (int i = 1; i <= 25; i++) {
+            mDatabase.execSQL("INSERT INTO posts VALUES (" + i * 3 + ", 'Post " + i + "', 'x', '"
+                    + i + "')");
+        }
+
+        mHelper.onUpgrade(mDatabase, 1, 2);
+
+        assertEquals(SchemaMigrator.Change.REBUILT, mMigrator.mChanges.get("posts"));
+        assertEquals(Long.valueOf(25), mMigrator.mCopiedRows.get("posts"));
+        assertEquals(Arrays.asList("_id", "content", "rating", "author"), getColumns("posts"));
+        assertEquals("Indices of dropped columns should be dropped",
+                Arrays.asList("posts_rating"), getIndexNames());
+
+        Cursor c = mDatabase.rawQuery("SELECT _id, content, typeof(rating) FROM posts "
+                + "WHERE rating = 7", null);
+        assertTrue(c.moveToFirst());
+        assertEquals(21, c.getLong(0));
+        assertEquals("Post 7", c.getString(1));
+        assertEquals("integer", c.getString(2));
+        c.close();
+    }
+
+    @Test
+    public void rebuildKeepsSparseRowIds() {
+        mDatabase.execSQL("CREATE TABLE events (message TEXT, level TEXT, source TEXT)");
+        long[] rowIds = new long[]{-5, 1, 2, 1000000, 5000000000000L};
+        for (long rowId : rowIds) {
+            mDatabase.execSQL("INSERT INTO events (_rowid_, message, level) VALUES (" + rowId
+                    + ", 'Event " + rowId + "', '1')");
+        }
+        mMigrator.batchSize(2);
+
+        mHelper.onUpgrade(mDatabase, 1, 2);
+
+        assertEquals(SchemaMigrator.Change.REBUILT, mMigrator.mChanges.get("events"));
+        assertEquals(Long.valueOf(rowIds.length), mMigrator.mCopiedRows.get("events"));
+        Cursor c = mDatabase.rawQuery("SELECT _rowid_, message FROM events ORDER BY _rowid_",
+                null);
+        for (long rowId : rowIds) {
+            assertTrue(c.moveToNext());
+            assertEquals(rowId, c.getLong(0));
+            assertEquals("Event " + rowId, c.getString(1));
+        }
+        c.close();
+    }
+
+    @Test
+    public void unchangedTablesAreNotMigrated() {
+        mHelper.onUpgrade(mDatabase, 1, 2);
+        mMigrator.mChanges.clear();
+
+        mHelper.onUpgrade(mDatabase, 2, 3);
+        assertTrue(mMigrator.mChanges.isEmpty());
+    }
+
+    @Test
+    public void migratesDowngrades() {
+        mDatabase.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY, content TEXT NOT NULL, "
+                + "rating INTEGER, author TEXT, newer TEXT)");
+
+        mHelper.onDowngrade(mDatabase, 3, 2);
+
+        assertEquals(SchemaMigrator.Change.REBUILT, mMigrator.mChanges.get("posts"));
+        assertEquals(Arrays.asList("_id", "content", "rating", "author"), getColumns("posts"));
+    }
+
+    @Test
+    public void rebuildKeepsReferencingRows() {
+        createDatabaseWithReferences();
+        ForeignKeySQLHelper helper = new ForeignKeySQLHelper(true);
+        helper.setMigrator(mMigrator);
+
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(SchemaMigrator.Change.REBUILT, mMigrator.mChanges.get("posts"));
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "comments"));
+            assertEquals(1, DatabaseUtils.longForQuery(db, "PRAGMA foreign_keys", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void rebuildFailsWithForeignKeysEnabled() {
+        createDatabaseWithReferences();
+        ForeignKeySQLHelper helper = new ForeignKeySQLHelper(false);
+        helper.setMigrator(mMigrator);
+
+        try {
+            helper.getWritableDatabase();
+            fail("Rebuilding a referenced table should have failed");
+        } catch (SQLiteException e) {
+            // expected
+        }
+
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getDatabaseFile().getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            assertEquals(1, db.getVersion());
+            assertEquals(1, DatabaseUtils.queryNumEntries(db, "comments"));
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void parseColumns() {
+        Map<String, String> columns = SchemaMigrator.parseColumns("CREATE TABLE \"posts\" ("
+                + "_id INTEGER PRIMARY KEY,\n  Content  TEXT NOT NULL, price NUMERIC(10, 2))");
+
+        assertEquals(Arrays.asList("_id", "content", "price"),
+                new ArrayList<String>(columns.keySet()));
+        assertEquals("Content TEXT NOT NULL", columns.get("content"));
+        assertEquals("price NUMERIC(10, 2)", columns.get("price"));
+    }
+
+    /**
+     * Creates a database of version 1 whose posts have to be rebuilt and are referenced by the
+     * comments.
+     */
+    private static void createDatabaseWithReferences() {
+        File file = getDatabaseFile();
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY, content TEXT, "
+                    + "rating TEXT)");
+            db.execSQL("CREATE TABLE comments (post_id INTEGER REFERENCES posts (_id) "
+                    + "ON DELETE CASCADE)");
+            db.execSQL("INSERT INTO posts VALUES (1, 'Post', '5')");
+            db.execSQL("INSERT INTO comments VALUES (1)");
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static File getDatabaseFile() {
+        return Robolectric.application.getDatabasePath(ForeignKeySQLHelper.FILE_NAME);
+    }
+
+    private List<String> getColumns(String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor c = mDatabase.rawQuery("PRAGMA table_info(" + table + ")", null);
+        while (c.moveToNext()) {
+            columns.add(c.getString(c.getColumnIndex("name")));
+        }
+        c.close();
+        return columns;
+    }
+
+    private List<String> getIndexNames() {
+        List<String> names = new ArrayList<String>();
+        Cursor c = mDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' "
+                + "AND sql IS NOT NULL ORDER BY name", null);
+        while (c.moveToNext()) {
+            names.add(c.getString(0));
+        }
+        c.close();
+        return names;
+    }
+
+    private static class RecordingMigrator extends SchemaMigrator {
+
+        final Map<String, Change> mChanges = new LinkedHashMap<String, Change>();
+        final Map<String, Long> mCopiedRows = new LinkedHashMap<String, Long>();
+
+        @Override
+        protected String getCopyExpression(String table, String column,
+                                           Set<String> existingColumns) {
+            if (MigratingSQLHelper.Post.RATING.equals(column)
+                    && existingColumns.contains(column)) {
+                return "CAST(" + column + " AS INTEGER)";
+            }
+            return super.getCopyExpression(table, column, existingColumns);
+        }
+
+        @Override
+        protected void onTableMigrated(String table, Change change, long copiedRows,
+                                       long durationMillis) {
+            mChanges.put(table, change);
+            mCopiedRows.put(table, copiedRows);
+        }
+
+    }
+
+    public static class MigratingSQLHelper extends SimpleSQLHelper {
+
+        public MigratingSQLHelper() {
+            this(null);
+        }
+
+        MigratingSQLHelper(String fileName) {
+            super(Robolectric.application, fileName, 2);
+        }
+
+        @Table
+        public static final class Post {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(value = Column.FieldType.TEXT, notNull = true)
+            public static final String CONTENT = "content";
+
+            @Column(value = Column.FieldType.INTEGER, index = true)
+            public static final String RATING = "rating";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String AUTHOR = "author";
+
+        }
+
+        @Table
+        public static final class Event {
+
+            @Column(Column.FieldType.TEXT)
+            public static final String MESSAGE = "message";
+
+            @Column(Column.FieldType.INTEGER)
+            public static final String LEVEL = "level";
+
+        }
+
+    }
+
+    private static class ForeignKeySQLHelper extends MigratingSQLHelper {
+
+        static final String FILE_NAME = "foreign-keys.db";
+
+        private final boolean mSuspend;
+
+        ForeignKeySQLHelper(boolean suspend) {
+            super(FILE_NAME);
+            mSuspend = suspend;
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            super.onConfigure(db);
+            db.execSQL("PRAGMA foreign_keys = ON");
+            if (mSuspend) {
+                suspendForeignKeys(db);
+            }
+        }
+
+    }
+
+}
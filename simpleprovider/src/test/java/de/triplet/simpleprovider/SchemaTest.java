@@ -0,0 +1,85 @@
+package de.triplet.simpleprovider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SchemaTest {
+
+    @Test
+    public void generatedSchemaIsUsed() {
+        Schema schema = Schema.forClass(TestSQLHelper.class);
+
+        assertFalse("The annotation processor should have generated a schema",
+                schema instanceof ReflectionSchema);
+        assertEquals(TestSQLHelper.class.getName() + Schema.SUFFIX, schema.getClass().getName());
+    }
+
+    @Test
+    public void schemasAreLoadedOnce() {
+        Schema schema = Schema.forClass(TestProvider.class);
+
+        assertSame(schema, Schema.forClass(TestProvider.class));
+        assertNotSame(schema, Schema.load(TestProvider.class));
+    }
+
+    @Test
+    public void generatedSchemaMatchesReflection() {
+        assertSchemaMatchesReflection(TestSQLHelper.class);
+        assertSchemaMatchesReflection(TestProvider.class);
+        assertSchemaMatchesReflection(RowCacheTest.CachedProvider.class);
+        assertSchemaMatchesReflection(IndexTest.IndexedSQLHelper.class);
+        assertSchemaMatchesReflection(IndexTest.PartialIndexTables.class);
+        assertSchemaMatchesReflection(UpsertTest.ContactProvider.class);
+        assertSchemaMatchesReflection(ProjectionTest.DocumentProvider.class);
+        assertSchemaMatchesReflection(FullTextSearchTest.ArticleProvider.class);
+        assertSchemaMatchesReflection(FileColumnTest.AttachmentProvider.class);
+    }
+
+    private static void assertSchemaMatchesReflection(Class<?> tableClass) {
+        Schema generated = Schema.forClass(tableClass);
+        Schema reflected = new ReflectionSchema(tableClass);
+
+        assertEquals(reflected.getTableNames(), generated.getTableNames());
+        assertEquals(reflected.getCreateStatements(), generated.getCreateStatements());
+        for (int version = 1; version < 4; version++) {
+            assertEquals(reflected.getUpgradeStatements(version, version + 1),
+                    generated.getUpgradeStatements(version, version + 1));
+        }
+        for (String table : reflected.getTableNames()) {
+            assertEquals(reflected.getSince(table), generated.getSince(table));
+            assertEquals(reflected.getRowCacheSize(table), generated.getRowCacheSize(table));
+            assertEquals(reflected.getDatabase(table), generated.getDatabase(table));
+            assertEquals(reflected.getIndexNames(table), generated.getIndexNames(table));
+            assertEquals(reflected.getIndexStatements(table),
+                    generated.getIndexStatements(table));
+            assertEquals(reflected.getColumnTypes(table), generated.getColumnTypes(table));
+            assertArrayEquals(reflected.getDefaultProjection(table),
+                    generated.getDefaultProjection(table));
+            assertArrayEquals(reflected.getFullTextColumns(table),
+                    generated.getFullTextColumns(table));
+            assertEquals(reflected.getFullTextStatements(table),
+                    generated.getFullTextStatements(table));
+            assertArrayEquals(reflected.getFileColumns(table), generated.getFileColumns(table));
+
+            List<String[]> reflectedKeys = reflected.getUniqueKeys(table);
+            List<String[]> generatedKeys = generated.getUniqueKeys(table);
+            assertEquals(reflectedKeys.size(), generatedKeys.size());
+            for (int i = 0; i < reflectedKeys.size(); i++) {
+                assertArrayEquals(reflectedKeys.get(i), generatedKeys.get(i));
+            }
+        }
+    }
+
+}
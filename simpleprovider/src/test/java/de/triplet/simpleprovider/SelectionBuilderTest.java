@@ -0,0 +1,144 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SelectionBuilderTest {
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE posts (_id INTEGER PRIMARY KEY, content TEXT, "
+                + "rating REAL, hash BLOB)");
+        for (int i = 1; i <= 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put("_id", i);
+            values.put("content", "Post " + i);
+            values.put("rating", i / 2.0);
+            values.put("hash", new byte[]{(byte) i});
+            mDatabase.insert("posts", null, values);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void typedArguments() {
+        SelectionBuilder builder = new SelectionBuilder("posts")
+                .whereEquals("_id", 42L)
+                .whereEquals("rating", 1.5)
+                .where("content = ? OR content = ?", "foo", "bar");
+
+        assertEquals("(_id=?) AND (rating=?) AND (content = ? OR content = ?)",
+                builder.getSelection());
+        assertArrayEquals(new String[]{"42", "1.5", "foo", "bar"}, builder.getSelectionArgs());
+        assertEquals(4, builder.getArgumentCount());
+        assertEquals("SelectionBuilder[table=posts, selection=(_id=?) AND (rating=?) AND "
+                + "(content = ? OR content = ?), selectionArgs=[42, 1.5, foo, bar]]",
+                builder.toString());
+    }
+
+    @Test
+    public void manyArguments() {
+        SelectionBuilder builder = new SelectionBuilder("posts");
+        for (int i = 0; i < 20; i++) {
+            builder.whereEquals("_id", i);
+        }
+
+        String[] args = builder.getSelectionArgs();
+        assertEquals(20, args.length);
+        assertEquals("19", args[19]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void blobsAreNoSelectionArgs() {
+        new SelectionBuilder("posts").whereEquals("hash", new byte[]{1}).getSelectionArgs();
+    }
+
+    @Test
+    public void deleteWithTypedArguments() {
+        assertEquals(1, new SelectionBuilder("posts").whereEquals("_id", 1L).delete(mDatabase));
+        assertEquals(1, new SelectionBuilder("posts").whereEquals("rating", 1.0)
+                .delete(mDatabase));
+        assertEquals(1, new SelectionBuilder("posts").whereEquals("hash", new byte[]{3})
+                .delete(mDatabase));
+        assertEquals(0, countPosts());
+    }
+
+    @Test
+    public void updateWithTypedArguments() {
+        ContentValues values = new ContentValues();
+        values.put("content", "Updated");
+
+        assertEquals(1, new SelectionBuilder("posts").whereEquals("_id", 2L)
+                .update(mDatabase, values));
+        assertEquals(3, new SelectionBuilder("posts").update(mDatabase, values));
+
+        Cursor cursor = new SelectionBuilder("posts").where("content = ?", "Updated")
+                .query(mDatabase, new String[]{"_id"}, null);
+        try {
+            assertEquals(3, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void queryDoesNotModifyColumns() {
+        String[] columns = new String[]{"_id", "stars"};
+        Cursor c = new SelectionBuilder("posts").map("stars", "rating * 2")
+                .whereEquals("_id", 3L).query(mDatabase, columns, null);
+
+        assertArrayEquals(new String[]{"_id", "stars"}, columns);
+        assertEquals(1, c.getCount());
+        c.moveToFirst();
+        assertEquals(3.0, c.getDouble(c.getColumnIndex("stars")), 0.0);
+        c.close();
+    }
+
+    @Test
+    public void recycle() {
+        SelectionBuilder builder = SelectionBuilder.obtain("posts").whereEquals("_id", 1L);
+        builder.recycle();
+
+        SelectionBuilder recycled = SelectionBuilder.obtain("comments");
+        assertSame(builder, recycled);
+        assertEquals("", recycled.getSelection());
+        assertEquals(0, recycled.getArgumentCount());
+        assertEquals("SelectionBuilder[table=comments, selection=, selectionArgs=[]]",
+                recycled.toString());
+        assertNotSame(recycled, SelectionBuilder.obtain("posts"));
+        recycled.recycle();
+    }
+
+    private int countPosts() {
+        Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM posts", null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
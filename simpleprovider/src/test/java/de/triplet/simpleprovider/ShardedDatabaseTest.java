@@ -0,0 +1,324 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ShardedDatabaseTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + ShardedProvider.AUTHORITY
+            + "/posts");
+    private static final Uri EVENTS = Uri.parse("content://" + ShardedProvider.AUTHORITY
+            + "/events");
+
+    private ShardedProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ShardedProvider();
+        mProvider.onCreate();
+        ShadowContentResolver.registerProvider(ShardedProvider.AUTHORITY, mProvider);
+    }
+
+    @Test
+    public void schemaOfDatabase() {
+        Schema schema = Schema.forClass(ShardedProvider.class);
+
+        assertEquals("", schema.getDatabase("posts"));
+        assertEquals("events", schema.getDatabase("events"));
+        assertEquals(Collections.singletonList("events"), schema.getDatabaseNames());
+        assertEquals(Arrays.asList("posts"), schema.forDatabase("").getTableNames());
+        assertEquals(Arrays.asList("events"), schema.forDatabase("events").getTableNames());
+    }
+
+    @Test
+    public void generatedSchemaMatchesReflection() {
+        Schema generated = Schema.forClass(ShardedProvider.class);
+        Schema reflected = new ReflectionSchema(ShardedProvider.class);
+
+        for (String table : reflected.getTableNames()) {
+            assertEquals(reflected.getDatabase(table), generated.getDatabase(table));
+        }
+        assertEquals(reflected.getDatabaseNames(), generated.getDatabaseNames());
+    }
+
+    @Test
+    public void tablesAreStoredInSeparateFiles() {
+        SQLiteDatabase main = mProvider.getDatabase();
+        SQLiteDatabase events = mProvider.getDatabase("events");
+
+        assertNotSame(main, events);
+        assertTrue(events.getPath().endsWith("provider-events.db"));
+        assertTrue(hasTable(main, "posts"));
+        assertFalse(hasTable(main, "events"));
+        assertTrue(hasTable(events, "events"));
+        assertFalse(hasTable(events, "posts"));
+
+        insertPost(1);
+        insertEvent(1);
+        assertEquals(1, count(POSTS));
+        assertEquals(1, count(EVENTS));
+        assertEquals(1, DatabaseUtils.queryNumEntries(events, "events"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownDatabase() {
+        mProvider.getDatabase("unknown");
+    }
+
+    @Test
+    public void batchSpansDatabases() throws OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createRow(1))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(EVENTS).withValues(createRow(1))
+                .build());
+
+        assertEquals(2, mProvider.applyBatch(operations).length);
+        assertEquals(1, count(POSTS));
+        assertEquals(1, count(EVENTS));
+        assertEquals(2, getNotifiedUris());
+    }
+
+    @Test
+    public void failedBatchRollsBackAllDatabases() {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(EVENTS).withValues(createRow(1))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createRow(1))
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(POSTS).withExpectedCount(2)
+                .build());
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("The assertion should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        assertEquals(0, count(POSTS));
+        assertEquals(0, count(EVENTS));
+        assertEquals(0, getNotifiedUris());
+    }
+
+    @Test
+    public void groupOnlyJoinsAccessedDatabases() throws Exception {
+        final SQLiteDatabase events = mProvider.getDatabase("events");
+        Object[] results = mProvider.applyGroup(Collections.singletonList(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                insertPost(1);
+                return events.inTransaction();
+            }
+
+        }));
+
+        assertEquals(Boolean.FALSE, results[0]);
+        assertEquals(1, count(POSTS));
+    }
+
+    @Test
+    public void partialCommitNotifiesObservers() {
+        final SQLiteDatabase events = mProvider.getDatabase("events");
+        events.execSQL("PRAGMA foreign_keys = ON");
+        events.execSQL("CREATE TABLE parent (_id INTEGER PRIMARY KEY)");
+        events.execSQL("CREATE TABLE child (parent INTEGER REFERENCES parent (_id)"
+                + " DEFERRABLE INITIALLY DEFERRED)");
+
+        try {
+            mProvider.applyGroup(Collections.singletonList(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    insertPost(1);
+                    insertEvent(1);
+                    // Fails once the events are committed, after the posts
+                    events.execSQL("INSERT INTO child VALUES (1)");
+                    return null;
+                }
+
+            }));
+            fail("Committing the events should have failed");
+        } catch (Exception e) {
+            // expected
+        }
+
+        assertEquals(1, count(POSTS));
+        assertEquals(2, getNotifiedUris());
+    }
+
+    @Test
+    public void failedBeginEndsBatch() throws OperationApplicationException {
+        mProvider.getDatabase("events").close();
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(POSTS).withValues(createRow(1))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(EVENTS).withValues(createRow(1))
+                .build());
+
+        try {
+            mProvider.applyBatch(operations);
+            fail("Beginning a transaction on a closed database should have failed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // Neither a transaction nor the batch must be left open
+        assertFalse(mProvider.getDatabase().inTransaction());
+        insertPost(1);
+        assertEquals(1, getNotifiedUris());
+    }
+
+    @Test
+    public void writesToOtherDatabasesAreNotBlocked() throws InterruptedException {
+        SQLiteDatabase events = mProvider.getDatabase("events");
+        events.beginTransaction();
+        try {
+            Thread postWriter = startInsert(POSTS);
+            postWriter.join(5000);
+            assertFalse("Writes to the main database must not wait", postWriter.isAlive());
+
+            Thread eventWriter = startInsert(EVENTS);
+            eventWriter.join(200);
+            assertTrue("Writes to the same database have to wait", eventWriter.isAlive());
+            events.setTransactionSuccessful();
+        } finally {
+            events.endTransaction();
+        }
+
+        assertEquals(1, count(POSTS));
+    }
+
+    @Test
+    public void snapshotSpansDatabases() {
+        insertPost(1);
+        insertEvent(1);
+        insertEvent(2);
+
+        Cursor[] cursors = mProvider.querySnapshot(Arrays.asList(
+                new SnapshotQuery(POSTS, null, null, null, null),
+                new SnapshotQuery(EVENTS, null, null, null, null)));
+
+        assertEquals(1, cursors[0].getCount());
+        assertEquals(2, cursors[1].getCount());
+        cursors[0].close();
+        cursors[1].close();
+    }
+
+    private Thread startInsert(final Uri uri) {
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                mProvider.insert(uri, createRow(1));
+            }
+
+        };
+        thread.start();
+        return thread;
+    }
+
+    private void insertPost(int id) {
+        mProvider.insert(POSTS, createRow(id));
+    }
+
+    private void insertEvent(int id) {
+        mProvider.insert(EVENTS, createRow(id));
+    }
+
+    private int count(Uri uri) {
+        Cursor c = mProvider.query(uri, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ContentValues createRow(int id) {
+        ContentValues values = new ContentValues();
+        values.put("_id", id);
+        return values;
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table}) > 0;
+    }
+
+    private static int getNotifiedUris() {
+        ShadowContentResolver shadow = Robolectric.shadowOf_(
+                Robolectric.application.getContentResolver());
+        return shadow.getNotifiedUris().size();
+    }
+
+    public static class ShardedProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.SHARDED";
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Override
+        protected String getDatabaseFileName() {
+            return "provider.db";
+        }
+
+        @Table
+        public class Post {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String CONTENT = "content";
+
+        }
+
+        @Table(database = "events")
+        public class Event {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.INTEGER)
+            public static final String TIMESTAMP = "timestamp";
+
+        }
+
+    }
+
+}
@@ -1,7 +1,10 @@
 package de.triplet.simpleprovider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 
@@ -13,6 +16,9 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowContentResolver;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -84,4 +90,254 @@ public class SimpleProviderTest {
                 CONTENT_2, c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
         assertFalse("There shouldn't be any more entries", c.moveToNext());
     }
+
+    @Test
+    public void testBulkInsert() {
+        ContentValues[] values = createPosts(50);
+
+        // Insert the same rows row by row, which is what the framework does by default
+        for (ContentValues row : values) {
+            mContentResolver.insert(mPostsUri, row);
+        }
+        assertEquals("Each insert should notify once",
+                values.length, getNotifiedUris().size());
+        Cursor c = mContentResolver.query(mPostsUri, null, null, null, null);
+        assertEquals(values.length, c.getCount());
+        c.close();
+
+        mContentResolver.delete(mPostsUri, null, null);
+        getNotifiedUris().clear();
+
+        int count = mContentResolver.bulkInsert(mPostsUri, values);
+
+        assertEquals("All rows should be inserted", values.length, count);
+        assertEquals("A bulk insert should notify once",
+                1, getNotifiedUris().size());
+        c = mContentResolver.query(mPostsUri, null, null, null, null);
+        assertEquals(values.length, c.getCount());
+        assertTrue(c.moveToLast());
+        assertEquals("Entry should have the correct content",
+                values[values.length - 1].getAsString(TestProvider.Post.CONTENT),
+                c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
+        c.close();
+    }
+
+    @Test
+    public void testBulkInsertMixedColumns() {
+        ContentValues withId = new ContentValues();
+        withId.put(TestProvider.Post.ID, 100);
+        withId.put(TestProvider.Post.CONTENT, CONTENT_1);
+
+        ContentValues withoutId = new ContentValues();
+        withoutId.put(TestProvider.Post.CONTENT, CONTENT_2);
+
+        int count = mContentResolver.bulkInsert(mPostsUri,
+                new ContentValues[]{withId, withoutId, new ContentValues()});
+
+        assertEquals("Empty rows should be skipped", 2, count);
+        Cursor c = mContentResolver.query(mPostsUri, null, TestProvider.Post.ID + " = ?",
+                new String[]{"100"}, null);
+        assertTrue(c.moveToFirst());
+        assertEquals(CONTENT_1, c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
+        c.close();
+    }
+
+    @Test
+    public void testApplyBatchNotifiesOnce() throws OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues row : createPosts(20)) {
+            operations.add(ContentProviderOperation.newInsert(mPostsUri).withValues(row).build());
+        }
+
+        mProvider.applyBatch(operations);
+
+        List<ShadowContentResolver.NotifiedUri> notifiedUris = getNotifiedUris();
+        assertEquals("A batch should notify once", 1, notifiedUris.size());
+        assertEquals(mPostsUri, notifiedUris.get(0).uri);
+        assertTrue(notifiedUris.get(0).syncToNetwork);
+    }
+
+    @Test
+    public void testApplyBatchKeepsRowUris() throws OperationApplicationException {
+        ContentValues[] posts = createPosts(2);
+        posts[0].put(TestProvider.Post.ID, 1);
+        posts[1].put(TestProvider.Post.ID, 2);
+        mContentResolver.bulkInsert(mPostsUri, posts);
+        getNotifiedUris().clear();
+
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, CONTENT_2);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (long id = 1; id <= 2; id++) {
+            Uri uri = ContentUris.withAppendedId(mPostsUri, id);
+            operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+            operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+        }
+
+        mProvider.applyBatch(operations);
+
+        List<ShadowContentResolver.NotifiedUri> notifiedUris = getNotifiedUris();
+        assertEquals("Each changed row should be notified once", 2, notifiedUris.size());
+        assertEquals(ContentUris.withAppendedId(mPostsUri, 1), notifiedUris.get(0).uri);
+        assertEquals(ContentUris.withAppendedId(mPostsUri, 2), notifiedUris.get(1).uri);
+    }
+
+    @Test
+    public void testApplyBatchRollbackDoesNotNotify() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ContentValues row : createPosts(5)) {
+            operations.add(ContentProviderOperation.newInsert(mPostsUri).withValues(row).build());
+        }
+        operations.add(ContentProviderOperation.newAssertQuery(mPostsUri).withExpectedCount(0)
+                .build());
+
+        try {
+            mProvider.applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        assertEquals("A failed batch must not notify", 0, getNotifiedUris().size());
+        Cursor c = mContentResolver.query(mPostsUri, null, null, null, null);
+        assertEquals("A failed batch must be rolled back", 0, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void testSyncAdapterChangesAreNotSynced() {
+        Uri uri = mPostsUri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, CONTENT_1);
+
+        mContentResolver.insert(uri, values);
+        mContentResolver.bulkInsert(uri, createPosts(2));
+
+        List<ShadowContentResolver.NotifiedUri> notifiedUris = getNotifiedUris();
+        assertEquals(2, notifiedUris.size());
+        assertFalse(notifiedUris.get(0).syncToNetwork);
+        assertEquals("Batched notifications should not contain query parameters",
+                mPostsUri, notifiedUris.get(1).uri);
+        assertFalse(notifiedUris.get(1).syncToNetwork);
+    }
+
+    @Test
+    public void testStatementCache() {
+        ContentValues[] posts = createPosts(3);
+        for (int i = 0; i < posts.length; i++) {
+            posts[i].put(TestProvider.Post.ID, 100 + i);
+        }
+        mContentResolver.bulkInsert(mPostsUri, posts);
+        StatementCache cache = mProvider.getStatementCache();
+        int misses = cache.missCount();
+
+        // Same shape, different ids
+        for (int i = 0; i < posts.length; i++) {
+            Cursor c = mContentResolver.query(ContentUris.withAppendedId(mPostsUri, 100 + i), null,
+                    null, null, null);
+            assertTrue(c.moveToFirst());
+            assertEquals(posts[i].getAsString(TestProvider.Post.CONTENT),
+                    c.getString(c.getColumnIndex(TestProvider.Post.CONTENT)));
+            assertFalse(c.moveToNext());
+            c.close();
+        }
+
+        assertEquals("The query should be built once", misses + 1, cache.missCount());
+        assertEquals(posts.length - 1, cache.hitCount());
+    }
+
+    @Test
+    public void testUpdateAndDeleteWithCachedStatements() {
+        ContentValues[] posts = createPosts(3);
+        for (int i = 0; i < posts.length; i++) {
+            posts[i].put(TestProvider.Post.ID, 100 + i);
+        }
+        mContentResolver.bulkInsert(mPostsUri, posts);
+
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, CONTENT_2);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(1, mContentResolver.update(ContentUris.withAppendedId(mPostsUri, 100 + i),
+                    values, TestProvider.Post.CONTENT + " = ?", new String[]{"Post #" + i}));
+        }
+
+        Cursor c = mContentResolver.query(mPostsUri, null, TestProvider.Post.CONTENT + " = ?",
+                new String[]{CONTENT_2}, TestProvider.Post.ID);
+        assertEquals(2, c.getCount());
+        c.close();
+
+        assertEquals(1, mContentResolver.delete(ContentUris.withAppendedId(mPostsUri, 100), null,
+                null));
+        assertEquals(2, mContentResolver.delete(mPostsUri, null, null));
+        assertEquals(0, mContentResolver.delete(mPostsUri, null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSelectionArgsWithoutSelection() {
+        mContentResolver.query(mPostsUri, null, null, new String[]{"foo"}, null);
+    }
+
+    @Test
+    public void testKeysetPagination() {
+        mContentResolver.bulkInsert(mPostsUri, createPostsWithIds(25));
+
+        Uri page = mPostsUri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "10")
+                .appendQueryParameter(AbstractProvider.QUERY_AFTER, "18")
+                .build();
+        Cursor c = mContentResolver.query(page, null, TestProvider.Post.ID + " != ?",
+                new String[]{"20"}, null);
+        assertEquals(5, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals(19, c.getLong(c.getColumnIndex(TestProvider.Post.ID)));
+        assertTrue(c.moveToNext());
+        assertEquals(21, c.getLong(c.getColumnIndex(TestProvider.Post.ID)));
+        c.close();
+
+        Uri limited = mPostsUri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "3").build();
+        c = mContentResolver.query(limited, null, null, null, TestProvider.Post.ID + " DESC");
+        assertEquals(3, c.getCount());
+        assertTrue(c.moveToFirst());
+        assertEquals(24, c.getLong(c.getColumnIndex(TestProvider.Post.ID)));
+        c.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        mContentResolver.query(mPostsUri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_LIMIT, "0").build(),
+                null, null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysetPaginationRequiresIdOrder() {
+        mContentResolver.query(mPostsUri.buildUpon()
+                .appendQueryParameter(AbstractProvider.QUERY_AFTER, "1").build(),
+                null, null, null, TestProvider.Post.CONTENT);
+    }
+
+    private List<ShadowContentResolver.NotifiedUri> getNotifiedUris() {
+        // Robolectric.shadowOf() can't be used as support-v4 is not on the classpath
+        ShadowContentResolver shadow = Robolectric.shadowOf_(mContentResolver);
+        return shadow.getNotifiedUris();
+    }
+
+    private static ContentValues[] createPostsWithIds(int count) {
+        ContentValues[] values = createPosts(count);
+        for (int i = 0; i < count; i++) {
+            values[i].put(TestProvider.Post.ID, i);
+        }
+        return values;
+    }
+
+    private static ContentValues[] createPosts(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TestProvider.Post.CONTENT, "Post #" + i);
+        }
+        return values;
+    }
 }
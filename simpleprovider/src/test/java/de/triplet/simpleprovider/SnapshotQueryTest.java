@@ -0,0 +1,280 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SnapshotQueryTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+    private static final String READ_PERMISSION = "de.triplet.simpleprovider.READ";
+
+    private SnapshotProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new SnapshotProvider();
+        mProvider.onCreate();
+        ShadowContentResolver.registerProvider(TestProvider.AUTHORITY, mProvider);
+
+        for (int id = 1; id <= 3; id++) {
+            insertPost(id);
+        }
+    }
+
+    @Test
+    public void returnsCursorsInOrder() {
+        Cursor[] cursors = mProvider.querySnapshot(Arrays.asList(
+                new SnapshotQuery(POSTS, null, null, null, TestProvider.Post.ID + " DESC"),
+                new SnapshotQuery(POSTS, new String[]{TestProvider.Post.CONTENT},
+                        TestProvider.Post.ID + " = ?", new String[]{"2"}, null)));
+
+        assertEquals(2, cursors.length);
+        assertEquals(3, cursors[0].getCount());
+        cursors[0].moveToFirst();
+        assertEquals(3, cursors[0].getInt(cursors[0].getColumnIndex(TestProvider.Post.ID)));
+        assertEquals(1, cursors[1].getCount());
+        cursors[1].moveToFirst();
+        assertEquals("Post #2", cursors[1].getString(0));
+        close(cursors);
+    }
+
+    @Test
+    public void writesWaitForSnapshot() throws InterruptedException {
+        mProvider.mInterleavedWrite = true;
+        Cursor[] cursors = mProvider.querySnapshot(Arrays.asList(
+                new SnapshotQuery(POSTS, null, null, null, null),
+                new SnapshotQuery(POSTS, null, null, null, null)));
+        mProvider.mWriter.join();
+
+        assertFalse(mProvider.mWriteCompleted);
+        assertEquals(3, cursors[0].getCount());
+        assertEquals("The write must not land between the queries", 3, cursors[1].getCount());
+        close(cursors);
+
+        Cursor c = mProvider.query(POSTS, null, null, null, null);
+        assertEquals(4, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void writesDontWaitForSnapshotWithWriteAheadLogging() {
+        SnapshotProvider provider = new WalSnapshotProvider();
+        provider.onCreate();
+        for (int id = 1; id <= 3; id++) {
+            insertPost(provider, id);
+        }
+
+        provider.mInterleavedWrite = true;
+        provider.mWriterTimeout = 5000;
+        Cursor[] cursors = provider.querySnapshot(Arrays.asList(
+                new SnapshotQuery(POSTS, null, null, null, null),
+                new SnapshotQuery(POSTS, null, null, null, null)));
+
+        assertTrue("The write must not wait for the snapshot", provider.mWriteCompleted);
+        assertEquals(3, cursors[0].getCount());
+        assertEquals("The write must not show up in the snapshot", 3, cursors[1].getCount());
+        close(cursors);
+
+        Cursor c = provider.query(POSTS, null, null, null, null);
+        assertEquals(4, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void callTransfersRows() {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, 4);
+        mProvider.insert(POSTS, values);
+
+        List<SnapshotQuery> queries = Arrays.asList(
+                new SnapshotQuery(POSTS, null, null, null, TestProvider.Post.ID),
+                new SnapshotQuery(POSTS, null, TestProvider.Post.ID + " > 10", null, null));
+        Bundle result = mProvider.call(AbstractProvider.CALL_QUERY_SNAPSHOT, null,
+                SnapshotQuery.toExtras(queries));
+        Cursor[] cursors = SnapshotQuery.readCursors(result);
+
+        assertEquals(2, cursors.length);
+        assertEquals(4, cursors[0].getCount());
+        assertEquals(0, cursors[1].getCount());
+
+        int content = cursors[0].getColumnIndex(TestProvider.Post.CONTENT);
+        assertTrue(cursors[0].moveToPosition(1));
+        assertEquals("Post #2", cursors[0].getString(content));
+        assertTrue(cursors[0].moveToLast());
+        assertTrue(cursors[0].isNull(content));
+        assertNull(cursors[0].getString(content));
+        close(cursors);
+    }
+
+    @Test
+    @Config(shadows = ShadowProviderWithoutUriPermissions.class)
+    public void callRequiresReadPermission() {
+        mProvider.requireReadPermission(READ_PERMISSION);
+        Bundle extras = SnapshotQuery.toExtras(Collections.singletonList(
+                new SnapshotQuery(POSTS, null, null, null, null)));
+
+        try {
+            mProvider.call(AbstractProvider.CALL_QUERY_SNAPSHOT, null, extras);
+            fail("The query should have been denied");
+        } catch (SecurityException e) {
+            // expected
+        }
+
+        Robolectric.getShadowApplication().grantPermissions(READ_PERMISSION);
+        Cursor[] cursors = SnapshotQuery.readCursors(
+                mProvider.call(AbstractProvider.CALL_QUERY_SNAPSHOT, null, extras));
+        assertEquals(3, cursors[0].getCount());
+        close(cursors);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void callRejectsOtherAuthorities() {
+        mProvider.call(AbstractProvider.CALL_QUERY_SNAPSHOT, null,
+                SnapshotQuery.toExtras(Collections.singletonList(new SnapshotQuery(
+                        Uri.parse("content://other/posts"), null, null, null, null))));
+    }
+
+    @Test
+    public void passesOtherMethodsToSuper() {
+        assertNull(mProvider.call("unknown", null, null));
+    }
+
+    @Test
+    public void failedQueryFailsSnapshot() {
+        try {
+            mProvider.querySnapshot(Arrays.asList(
+                    new SnapshotQuery(POSTS, null, null, null, null),
+                    new SnapshotQuery(POSTS, new String[]{"unknown"}, null, null, null)));
+            fail("The unknown column should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // The transaction has been closed
+        insertPost(4);
+    }
+
+    private void insertPost(int id) {
+        insertPost(mProvider, id);
+    }
+
+    private static void insertPost(TestProvider provider, int id) {
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.ID, id);
+        values.put(TestProvider.Post.CONTENT, "Post #" + id);
+        provider.insert(POSTS, values);
+    }
+
+    private static void close(Cursor[] cursors) {
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Denies all permissions granted for single URIs, which Robolectric can't check.
+     */
+    @Implements(ContentProvider.class)
+    public static class ShadowProviderWithoutUriPermissions {
+
+        @Implementation
+        public Context getContext() {
+            return new ContextWrapper(Robolectric.application) {
+
+                @Override
+                public int checkCallingOrSelfUriPermission(Uri uri, int modeFlags) {
+                    return PackageManager.PERMISSION_DENIED;
+                }
+
+            };
+        }
+
+    }
+
+    public static class SnapshotProvider extends TestProvider {
+
+        boolean mInterleavedWrite;
+
+        long mWriterTimeout = 200;
+
+        Thread mWriter;
+
+        boolean mWriteCompleted;
+
+        void requireReadPermission(String permission) {
+            setReadPermission(permission);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            final Cursor cursor = super.query(uri, projection, selection, selectionArgs,
+                    sortOrder);
+            if (mInterleavedWrite && mWriter == null) {
+                // Try to commit a write between the first and the second query
+                mWriter = new Thread() {
+
+                    @Override
+                    public void run() {
+                        ContentValues values = new ContentValues();
+                        values.put(Post.ID, 4);
+                        insert(POSTS, values);
+                    }
+
+                };
+                mWriter.start();
+                try {
+                    mWriter.join(mWriterTimeout);
+                    mWriteCompleted = !mWriter.isAlive();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return cursor;
+        }
+
+    }
+
+    public static class WalSnapshotProvider extends SnapshotProvider {
+
+        @Override
+        protected String getDatabaseFileName() {
+            return "wal-snapshot.db";
+        }
+
+        @Override
+        protected DatabaseConfiguration getDatabaseConfiguration() {
+            return new DatabaseConfiguration().writeAheadLogging(true);
+        }
+
+    }
+
+}
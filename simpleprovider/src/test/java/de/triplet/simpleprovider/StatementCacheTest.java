@@ -0,0 +1,151 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class StatementCacheTest {
+
+    private static final Uri POSTS = Uri.parse("content://" + TestProvider.AUTHORITY + "/posts");
+
+    @Test
+    public void buildQuery() {
+        StatementCache.Key key = new StatementCache.Key(StatementCache.QUERY, "posts", true,
+                "content = ?", new String[]{"_id", "content"}, "_id DESC");
+
+        assertEquals("SELECT _id, content FROM posts WHERE (_id=?) AND (content = ?) ORDER BY _id DESC",
+                key.buildSql());
+    }
+
+    @Test
+    public void buildUpdate() {
+        StatementCache.Key key = new StatementCache.Key(StatementCache.UPDATE, "posts", false,
+                "content = ?", new String[]{"author", "content"}, null);
+
+        assertEquals("UPDATE posts SET author=?,content=? WHERE (content = ?)", key.buildSql());
+    }
+
+    @Test
+    public void buildDelete() {
+        StatementCache.Key key = new StatementCache.Key(StatementCache.DELETE, "posts", false,
+                "", null, null);
+
+        assertEquals("DELETE FROM posts", key.buildSql());
+    }
+
+    @Test
+    public void buildGroupedQuery() {
+        StatementCache.Key key = new StatementCache.Key(StatementCache.QUERY, "comments", false,
+                false, true, false, false, true, "post_id", "count(*) > 1", null,
+                new String[]{"post_id", "count(*) AS total"}, null);
+
+        assertEquals("SELECT DISTINCT post_id, count(*) AS total FROM comments GROUP BY post_id"
+                + " HAVING count(*) > 1 LIMIT ?", key.buildSql());
+    }
+
+    @Test
+    public void buildCount() {
+        StatementCache.Key key = new StatementCache.Key(StatementCache.COUNT, "posts", false,
+                true, false, "content = ?", null, null);
+
+        assertEquals("SELECT count(*) FROM posts WHERE (_id>?) AND (content = ?)",
+                key.buildSql());
+    }
+
+    @Test
+    public void keysCopyColumns() {
+        String[] projection = {"_id"};
+        StatementCache.Key key = new StatementCache.Key(StatementCache.QUERY, "posts", false,
+                null, projection, null);
+        StatementCache.Key other = new StatementCache.Key(StatementCache.QUERY, "posts", false,
+                "", new String[]{"_id"}, null);
+
+        assertEquals(key, other);
+        assertEquals(key.hashCode(), other.hashCode());
+
+        projection[0] = "content";
+        assertEquals("Changing the projection must not change the key", key, other);
+        assertNotEquals(key, new StatementCache.Key(StatementCache.QUERY, "posts", false, null,
+                projection, null));
+    }
+
+    @Test
+    public void sharedStatementsDontBlockTransactions() throws Exception {
+        final TestProvider provider = new TestProvider();
+        provider.onCreate();
+        for (int i = 1; i <= 2; i++) {
+            ContentValues values = new ContentValues();
+            values.put(TestProvider.Post.ID, i);
+            provider.insert(POSTS, values);
+        }
+
+        // Robolectric loads the system resources lazily, which isn't thread safe
+        Robolectric.application.getString(android.R.string.ok);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch inTransaction = new CountDownLatch(1);
+            final CountDownLatch deleting = new CountDownLatch(1);
+            Future<Integer> transaction = executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+                    SQLiteDatabase db = provider.getDatabase();
+                    db.beginTransaction();
+                    try {
+                        inTransaction.countDown();
+                        assertTrue(deleting.await(5, TimeUnit.SECONDS));
+                        // Let the other delete wait for the connection
+                        Thread.sleep(200);
+                        int count = delete(provider, 2);
+                        db.setTransactionSuccessful();
+                        return count;
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+
+            });
+            assertTrue(inTransaction.await(5, TimeUnit.SECONDS));
+            Future<Integer> other = executor.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() {
+                    deleting.countDown();
+                    return delete(provider, 1);
+                }
+
+            });
+
+            assertEquals(1, (int) transaction.get(5, TimeUnit.SECONDS));
+            assertEquals(1, (int) other.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int delete(TestProvider provider, long id) {
+        return provider.delete(POSTS, TestProvider.Post.ID + " = ?",
+                new String[]{String.valueOf(id)});
+    }
+
+}
@@ -0,0 +1,221 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UpsertTest {
+
+    private static final Uri CONTACTS = Uri.parse("content://" + ContactProvider.AUTHORITY
+            + "/contacts");
+
+    private ContactProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = new ContactProvider();
+        mProvider.onCreate();
+    }
+
+    @Test
+    public void uniqueKeys() {
+        Schema schema = Schema.forClass(ContactProvider.class);
+
+        assertEquals(3, schema.getUniqueKeys("contacts").size());
+        assertArrayEquals(new String[]{ContactProvider.Contact.ID},
+                schema.getUniqueKeys("contacts").get(0));
+        assertArrayEquals(new String[]{ContactProvider.Contact.EMAIL},
+                schema.getUniqueKeys("contacts").get(1));
+        assertArrayEquals(new String[]{ContactProvider.Contact.ACCOUNT,
+                ContactProvider.Contact.SOURCE_ID}, schema.getUniqueKeys("contacts").get(2));
+    }
+
+    @Test
+    public void upsertByPrimaryKey() {
+        Uri uri = upsertUri("true");
+        ContentValues values = createContact(1, "a", "Alice");
+        values.put(ContactProvider.Contact.EMAIL, "alice@example.com");
+        assertEquals(ContentUris.withAppendedId(uri, 1), mProvider.insert(uri, values));
+
+        // Columns that aren't part of the upsert keep their value
+        assertEquals(ContentUris.withAppendedId(uri, 1),
+                mProvider.insert(uri, createContact(1, "a", "Alicia")));
+
+        Cursor c = mProvider.query(CONTACTS, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.moveToFirst();
+        assertEquals("Alicia", c.getString(c.getColumnIndex(ContactProvider.Contact.NAME)));
+        assertEquals("alice@example.com",
+                c.getString(c.getColumnIndex(ContactProvider.Contact.EMAIL)));
+        c.close();
+    }
+
+    @Test
+    public void bulkUpsertByCompositeKey() {
+        Uri uri = upsertUri(ContactProvider.Contact.SOURCE_ID + ","
+                + ContactProvider.Contact.ACCOUNT);
+        ContentValues[] values = new ContentValues[]{
+                createContact(null, "a", "Alice"),
+                createContact(null, "b", "Bob")
+        };
+        assertEquals(2, mProvider.bulkInsert(uri, values));
+        long bobId = queryId("b");
+
+        values = new ContentValues[]{
+                createContact(null, "b", "Robert"),
+                createContact(null, "c", "Carol"),
+                createContact(null, "c", "Caroline")
+        };
+        assertEquals(3, mProvider.bulkInsert(uri, values));
+
+        assertEquals("Updates keep the row id", bobId, queryId("b"));
+        assertEquals("Robert", queryName("b"));
+        assertEquals("Caroline", queryName("c"));
+
+        Cursor c = mProvider.query(CONTACTS, null, null, null, null);
+        assertEquals(3, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void upsertOfKeyOnlyRowKeepsExistingRow() {
+        Uri uri = upsertUri("true");
+        mProvider.insert(uri, createContact(1, "a", "Alice"));
+
+        ContentValues values = new ContentValues();
+        values.put(ContactProvider.Contact.ID, 1);
+        assertEquals(ContentUris.withAppendedId(uri, 1), mProvider.insert(uri, values));
+        assertEquals("Alice", queryName("a"));
+    }
+
+    @Test
+    public void upsertInvalidatesRowCache() {
+        Uri uri = upsertUri("true");
+        mProvider.insert(uri, createContact(1, "a", "Alice"));
+        assertEquals("Alice", queryNameById(1));
+
+        mProvider.insert(uri, createContact(1, "a", "Alicia"));
+        assertEquals("Alicia", queryNameById(1));
+    }
+
+    @Test
+    public void upsertChangingIdInvalidatesBothRows() {
+        mProvider.insert(CONTACTS, createContact(1, "a", "Alice"));
+        assertEquals("Alice", queryNameById(1));
+
+        Uri uri = upsertUri(ContactProvider.Contact.ACCOUNT + ","
+                + ContactProvider.Contact.SOURCE_ID);
+        assertEquals(ContentUris.withAppendedId(uri, 2),
+                mProvider.insert(uri, createContact(2, "a", "Alicia")));
+
+        Cursor c = mProvider.query(ContentUris.withAppendedId(CONTACTS, 1), null, null, null,
+                null);
+        assertEquals("The old row must not be served from the cache", 0, c.getCount());
+        c.close();
+        assertEquals("Alicia", queryNameById(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void upsertRequiresKeyValues() {
+        mProvider.insert(upsertUri("true"), createContact(null, "a", "Alice"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void upsertRequiresUniqueKey() {
+        mProvider.insert(upsertUri(ContactProvider.Contact.NAME), createContact(1, "a", "Alice"));
+    }
+
+    private static Uri upsertUri(String key) {
+        return CONTACTS.buildUpon().appendQueryParameter(AbstractProvider.QUERY_UPSERT, key)
+                .build();
+    }
+
+    private static ContentValues createContact(Integer id, String sourceId, String name) {
+        ContentValues values = new ContentValues();
+        if (id != null) {
+            values.put(ContactProvider.Contact.ID, id);
+        }
+        values.put(ContactProvider.Contact.ACCOUNT, "account");
+        values.put(ContactProvider.Contact.SOURCE_ID, sourceId);
+        values.put(ContactProvider.Contact.NAME, name);
+        return values;
+    }
+
+    private long queryId(String sourceId) {
+        Cursor c = mProvider.query(CONTACTS, null, ContactProvider.Contact.SOURCE_ID + " = ?",
+                new String[]{sourceId}, null);
+        try {
+            c.moveToFirst();
+            return c.getLong(c.getColumnIndex(ContactProvider.Contact.ID));
+        } finally {
+            c.close();
+        }
+    }
+
+    private String queryName(String sourceId) {
+        Cursor c = mProvider.query(CONTACTS, null, ContactProvider.Contact.SOURCE_ID + " = ?",
+                new String[]{sourceId}, null);
+        try {
+            c.moveToFirst();
+            return c.getString(c.getColumnIndex(ContactProvider.Contact.NAME));
+        } finally {
+            c.close();
+        }
+    }
+
+    private String queryNameById(long id) {
+        Cursor c = mProvider.query(ContentUris.withAppendedId(CONTACTS, id), null, null, null,
+                null);
+        try {
+            c.moveToFirst();
+            return c.getString(c.getColumnIndex(ContactProvider.Contact.NAME));
+        } finally {
+            c.close();
+        }
+    }
+
+    public static class ContactProvider extends AbstractProvider {
+
+        static final String AUTHORITY = "de.triplet.simpleprovider.CONTACTS";
+
+        @Override
+        protected String getAuthority() {
+            return AUTHORITY;
+        }
+
+        @Table(rowCacheSize = 4, indices = @Index(columns = {Contact.ACCOUNT, Contact.SOURCE_ID},
+                unique = true))
+        public class Contact {
+
+            @Column(value = Column.FieldType.INTEGER, primaryKey = true)
+            public static final String ID = "_id";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String ACCOUNT = "account";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String SOURCE_ID = "source_id";
+
+            @Column(value = Column.FieldType.TEXT, unique = true)
+            public static final String EMAIL = "email";
+
+            @Column(Column.FieldType.TEXT)
+            public static final String NAME = "name";
+
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package de.triplet.simpleprovider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UriRouterTest {
+
+    private static final String BASE_URI = "content://" + TestProvider.AUTHORITY;
+    private static final Map<String, SQLiteDatabase> NO_DATABASES =
+            Collections.emptyMap();
+
+    @Test
+    public void routesDeclaredTables() {
+        UriRouter router = new UriRouter(Schema.forClass(FullTextSearchTest.ArticleProvider.class),
+                NO_DATABASES, true);
+        Uri uri = Uri.parse("content://" + FullTextSearchTest.ArticleProvider.AUTHORITY
+                + "/articles/1");
+
+        UriRouter.Route route = router.route(uri, uri.getPathSegments());
+        assertEquals("articles", route.mTable);
+        assertTrue(route.mFullText);
+        assertNull(route.mRowCache);
+        assertEquals(1, route.mUniqueKeys.size());
+        assertArrayEquals(new String[]{"_id"}, route.mUniqueKeys.get(0));
+        assertSame(route, router.get("articles"));
+    }
+
+    @Test
+    public void rejectsUnknownTables() {
+        UriRouter router = new UriRouter(Schema.forClass(TestProvider.class), NO_DATABASES, true);
+
+        assertRejected(router, Uri.parse(BASE_URI + "/post"));
+        assertRejected(router, Uri.parse(BASE_URI));
+        assertRejected(router, Uri.parse(BASE_URI + "/posts/1/content"));
+        assertNull(router.get("post"));
+    }
+
+    @Test
+    public void routesUnknownTablesIfNotStrict() {
+        UriRouter router = new UriRouter(Schema.forClass(TestProvider.class), NO_DATABASES, false);
+        Uri uri = Uri.parse(BASE_URI + "/other/1");
+
+        UriRouter.Route route = router.route(uri, uri.getPathSegments());
+        assertEquals("other", route.mTable);
+        assertFalse(route.mFullText);
+        assertNull(route.mDefaultProjection);
+        assertRejected(router, Uri.parse(BASE_URI));
+    }
+
+    @Test
+    public void providerRejectsUnknownTables() {
+        TestProvider provider = new TestProvider();
+        provider.onCreate();
+        Uri uri = Uri.parse(BASE_URI + "/post");
+
+        try {
+            provider.query(uri, null, null, null, null);
+            fail("The query of an unknown table should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            provider.insert(uri, new ContentValues());
+            fail("The insert into an unknown table should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            provider.delete(uri, null, null);
+            fail("The delete from an unknown table should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void providerRejectsLongerPaths() {
+        TestProvider provider = new TestProvider();
+        provider.onCreate();
+        Uri posts = Uri.parse(BASE_URI + "/posts");
+        ContentValues values = new ContentValues();
+        values.put(TestProvider.Post.CONTENT, "content");
+        provider.insert(posts, values);
+        Uri uri = Uri.withAppendedPath(posts, "1/whatever");
+
+        try {
+            provider.query(uri, null, null, null, null);
+            fail("The query should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            provider.update(uri, values, null, null);
+            fail("The update should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            provider.delete(uri, null, null);
+            fail("The delete should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Cursor c = provider.query(posts, null, null, null, null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    @Test
+    public void providerAllowsUndeclaredTables() {
+        UncheckedProvider provider = new UncheckedProvider();
+        provider.onCreate();
+        provider.getDatabase().execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, text TEXT)");
+        Uri uri = Uri.parse(BASE_URI + "/notes");
+
+        ContentValues values = new ContentValues();
+        values.put("text", "Undeclared");
+        assertEquals(Uri.withAppendedPath(uri, "1"), provider.insert(uri, values));
+
+        Cursor c = provider.query(uri, new String[]{"text"}, null, null, null);
+        assertTrue(c.moveToFirst());
+        assertArrayEquals(new String[]{"text"}, c.getColumnNames());
+        assertEquals("Undeclared", c.getString(0));
+        c.close();
+    }
+
+    private static void assertRejected(UriRouter router, Uri uri) {
+        try {
+            router.route(uri, uri.getPathSegments());
+            fail(uri + " should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public static class UncheckedProvider extends TestProvider {
+
+        @Override
+        protected boolean isTableValidationEnabled() {
+            return false;
+        }
+
+    }
+
+}